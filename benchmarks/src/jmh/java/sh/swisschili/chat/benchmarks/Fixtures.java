@@ -0,0 +1,52 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.benchmarks;
+
+import org.bson.types.ObjectId;
+import sh.swisschili.chat.util.ChatProtos;
+
+/**
+ * Shared test data for benchmarks
+ */
+final class Fixtures {
+    static final ChatProtos.User SENDER = ChatProtos.User.newBuilder()
+            .setName("bench")
+            .setHost("bench.invalid")
+            .setId(new ObjectId().toString())
+            .build();
+
+    static final ChatProtos.Channel CHANNEL = ChatProtos.Channel.newBuilder()
+            .setId(new ObjectId().toString())
+            .setName("general")
+            .build();
+
+    private static final String BODY = "The quick brown fox jumps over the lazy dog, "
+            + "a message of roughly the length people actually send.";
+
+    private Fixtures() {
+    }
+
+    static ChatProtos.Message message(long unixTime) {
+        return ChatProtos.Message.newBuilder()
+                .setBody(BODY)
+                .setSender(SENDER)
+                .setUnixTime(unixTime)
+                .build();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.benchmarks;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import sh.swisschili.chat.util.ChatProtos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protobuf encoding of messages, done once per message sent and once per subscriber delivery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageSerializationBenchmark {
+    private ChatProtos.Message message;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        message = ChatProtos.Message.newBuilder(Fixtures.message(System.currentTimeMillis()))
+                .setId(new ObjectId().toString())
+                .build();
+        bytes = message.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return message.toByteArray();
+    }
+
+    @Benchmark
+    public ChatProtos.Message parse() throws InvalidProtocolBufferException {
+        return ChatProtos.Message.parseFrom(bytes);
+    }
+
+    @Benchmark
+    public ChatProtos.Message build() {
+        return ChatProtos.Message.newBuilder(message)
+                .setId(new ObjectId().toString())
+                .build();
+    }
+}
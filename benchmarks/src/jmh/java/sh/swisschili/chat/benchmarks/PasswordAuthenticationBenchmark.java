@@ -0,0 +1,58 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import sh.swisschili.chat.server.PasswordAuthentication;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password hashing at several costs. Each step of cost doubles the work, so this shows what a given cost means for
+ * sign-in and registration latency on the machine it runs on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class PasswordAuthenticationBenchmark {
+    @Param({"8", "12", "16"})
+    private int cost;
+
+    private final char[] password = "correct horse battery staple".toCharArray();
+    private PasswordAuthentication auth;
+    private String token;
+
+    @Setup
+    public void setup() {
+        auth = new PasswordAuthentication(cost);
+        token = auth.hash(password);
+    }
+
+    @Benchmark
+    public String hash() {
+        return auth.hash(password);
+    }
+
+    @Benchmark
+    public boolean authenticate() {
+        return auth.authenticate(password, token);
+    }
+}
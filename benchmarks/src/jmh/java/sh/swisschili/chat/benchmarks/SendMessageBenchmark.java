@@ -0,0 +1,186 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.benchmarks;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.*;
+import sh.swisschili.chat.server.*;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos;
+import sh.swisschili.chat.util.SignedAuth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.SignatureException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * ChatService.sendMessage and sendMessages end to end over in-process gRPC: key lookup, signature verification, the write-behind
+ * queue, storage and publishing. Messages are published on the in-process bus, and are either discarded, to measure
+ * the server's own overhead, or written to the embedded log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendMessageBenchmark {
+    @Param({"PERSISTED", "ENQUEUED"})
+    private MessageWriter.AckMode ackMode;
+
+    /**
+     * Where messages are written: discarded, or the embedded log in a temporary directory
+     */
+    @Param({"DISCARD", "LOG"})
+    private String store;
+
+    private static final int BATCH_SIZE = 64;
+
+    private Server server;
+    private ManagedChannel channel;
+    private ChatService chatService;
+    private ChatGrpc.ChatBlockingStub stub;
+    private ChatProtos.OutgoingMessage request;
+    private ChatProtos.SendMessagesRequest batchRequest;
+    private MessageStore messageStore;
+    private Path dataDir;
+
+    private static class DiscardingStore implements MessageStore {
+        private final AtomicLong sequence = new AtomicLong(0);
+
+        @Override
+        public void saveMessages(List<ChannelMessage> batch) {
+        }
+
+        @Override
+        public List<ChatProtos.Message> getMessagesBefore(ChatProtos.Channel channel,
+                                                          ChatProtos.MessageCursor before, int number) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<ChatProtos.Message> getMessageRange(ChatProtos.Channel channel, int start, int number) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<ChatProtos.Message> getMessagesAfter(ChatProtos.Channel channel, long afterSeq, int number) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public long reserveSequence(ChatProtos.Channel channel, int count) {
+            return sequence.getAndAdd(count) + 1;
+        }
+
+        @Override
+        public Usage getUsage(ChatProtos.Channel channel) {
+            return new Usage(0, 0);
+        }
+
+        @Override
+        public long deleteMessagesThrough(ChatProtos.Channel channel, long seq) {
+            return 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException, InvalidKeyException, SignatureException {
+        KeyPair keyPair = SignedAuth.generateKeyPair();
+        if (store.equals("LOG")) {
+            dataDir = Files.createTempDirectory("chat-bench");
+            messageStore = new LogMessageStore(dataDir);
+        } else {
+            messageStore = new DiscardingStore();
+        }
+
+        // sendMessage never touches metadata
+        chatService = new ChatService(new InProcessMessageBus(), null, messageStore, new MessageWriter(messageStore),
+                new SignatureVerifier());
+        chatService.setAckMode(ackMode);
+        chatService.getKeyCache().put(Fixtures.SENDER, keyPair.getPublic());
+
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(chatService)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        stub = ChatGrpc.newBlockingStub(channel);
+
+        ChatProtos.Message message = Fixtures.message(System.currentTimeMillis());
+        request = ChatProtos.OutgoingMessage.newBuilder()
+                .setMessage(message)
+                .setChannel(Fixtures.CHANNEL)
+                .setSignature(ByteString.copyFrom(SignedAuth.sign(keyPair, message.toByteArray(),
+                        Fixtures.CHANNEL.toByteArray())))
+                .build();
+
+        ChatProtos.SendMessagesRequest.Builder batch = ChatProtos.SendMessagesRequest.newBuilder();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.addMessages(request);
+        }
+        batchRequest = batch.build();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException, IOException {
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        chatService.close();
+        messageStore.close();
+
+        if (dataDir != null) {
+            try (Stream<Path> files = Files.walk(dataDir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Benchmark
+    public ChatProtos.MessageResponse sendMessage() {
+        return stub.sendMessage(request);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ChatProtos.MessageResponse sendMessageContended() {
+        return stub.sendMessage(request);
+    }
+
+    /**
+     * The same messages sent {@value BATCH_SIZE} at a time, scored per message
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public ChatProtos.SendMessagesResponse sendMessagesBatched() {
+        return stub.sendMessages(batchRequest);
+    }
+}
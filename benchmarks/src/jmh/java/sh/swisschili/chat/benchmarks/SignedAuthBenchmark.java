@@ -0,0 +1,65 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import sh.swisschili.chat.util.SignedAuth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.SignatureException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing and verifying an outgoing message, as done by every client send and every server receive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SignedAuthBenchmark {
+    private KeyPair keyPair;
+    private byte[] message;
+    private byte[] channel;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws InvalidKeyException, SignatureException {
+        keyPair = SignedAuth.generateKeyPair();
+        message = Fixtures.message(0).toByteArray();
+        channel = Fixtures.CHANNEL.toByteArray();
+        signature = SignedAuth.sign(keyPair, message, channel);
+    }
+
+    @Benchmark
+    public byte[] sign() throws InvalidKeyException, SignatureException {
+        return SignedAuth.sign(keyPair, message, channel);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return SignedAuth.verify(keyPair.getPublic(), signature, message, channel);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean verifyContended() {
+        return SignedAuth.verify(keyPair.getPublic(), signature, message, channel);
+    }
+}
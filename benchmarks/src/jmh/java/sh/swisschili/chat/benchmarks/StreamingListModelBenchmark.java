@@ -0,0 +1,111 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import sh.swisschili.chat.client.StreamingListModel;
+import sh.swisschili.chat.util.ChatProtos;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filling a client list model, as happens when a channel's history or a group's user list is loaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamingListModelBenchmark {
+    @Param({"100", "1000", "5000"})
+    private int size;
+
+    private ChatProtos.Message[] inOrder;
+    private ChatProtos.Message[] shuffled;
+
+    @Setup
+    public void setup() {
+        inOrder = new ChatProtos.Message[size];
+        for (int i = 0; i < size; i++) {
+            inOrder[i] = ChatProtos.Message.newBuilder(Fixtures.message(i))
+                    .setId(Integer.toString(i))
+                    .build();
+        }
+
+        // Deterministic shuffle so every run sees the same order
+        shuffled = inOrder.clone();
+        Random random = new Random(42);
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            ChatProtos.Message tmp = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+    }
+
+    private static StreamingListModel<String, ChatProtos.Message> model() {
+        return new StreamingListModel<>(ChatProtos.Message::getId,
+                Comparator.comparingLong(ChatProtos.Message::getUnixTime),
+                StreamingListModel.SortDirection.ASCENDING);
+    }
+
+    @Benchmark
+    public void addInOrder(Blackhole blackhole) {
+        StreamingListModel<String, ChatProtos.Message> model = model();
+        for (ChatProtos.Message message : inOrder) {
+            model.add(message);
+        }
+        blackhole.consume(model.getSize());
+    }
+
+    @Benchmark
+    public void addShuffled(Blackhole blackhole) {
+        StreamingListModel<String, ChatProtos.Message> model = model();
+        for (ChatProtos.Message message : shuffled) {
+            model.add(message);
+        }
+        blackhole.consume(model.getSize());
+    }
+
+    @Benchmark
+    public void replaceExisting(Blackhole blackhole) {
+        StreamingListModel<String, ChatProtos.Message> model = model();
+        for (ChatProtos.Message message : inOrder) {
+            model.add(message);
+        }
+        for (ChatProtos.Message message : shuffled) {
+            model.add(message);
+        }
+        blackhole.consume(model.getSize());
+    }
+
+    @Benchmark
+    public void replaceMoving(Blackhole blackhole) {
+        StreamingListModel<String, ChatProtos.Message> model = model();
+        for (ChatProtos.Message message : inOrder) {
+            model.add(message);
+        }
+        // Every replacement sorts somewhere else, like a status change reordering a user list
+        for (ChatProtos.Message message : shuffled) {
+            model.add(message.toBuilder().setUnixTime(size - message.getUnixTime()).build());
+        }
+        blackhole.consume(model.getSize());
+    }
+}
@@ -0,0 +1,231 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.client;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A group's GroupEvents call, which carries user statuses, channel activity, new channels and the messages of every
+ * channel being streamed.
+ *
+ * Channels subscribe and unsubscribe through commands on the call rather than opening calls of their own. If the call
+ * drops it is started again and every subscribed channel resumes after the last message it received. Servers that
+ * predate GroupEvents are reported to the listener once, which is then expected to fall back to separate streams.
+ */
+public class GroupEventStream {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupEventStream.class);
+    private static final long RECONNECT_DELAY_MS = 2000;
+
+    private static final ScheduledExecutorService RECONNECTS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "group-event-reconnects");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface Listener {
+        void onStatus(UserStatus status);
+
+        void onActivity(ChannelActivity activity);
+
+        void onChannelCreated(Channel channel);
+
+        /**
+         * Called once if the server does not support GroupEvents, nothing else is called after it
+         */
+        void onUnsupported();
+    }
+
+    private final ChatGrpc.ChatStub stub;
+    private final GroupUserStatusRequest join;
+    private final Listener listener;
+
+    private final Map<String, ServerChannel> subscriptions = new HashMap<>();
+    private StreamObserver<GroupCommand> commands = null;
+    private StreamObserver<GroupEvent> currentResponses = null;
+    private boolean unsupported = false;
+    private boolean closed = false;
+
+    /**
+     * @param stub     Stub for the group's server
+     * @param join     The group to follow, and the user to set offline once the call ends
+     * @param listener Called from gRPC threads with everything other than messages
+     */
+    public GroupEventStream(ChatGrpc.ChatStub stub, GroupUserStatusRequest join, Listener listener) {
+        this.stub = stub;
+        this.join = join;
+        this.listener = listener;
+    }
+
+    /**
+     * Start the call, subscribing again to every channel that was subscribed before
+     */
+    public synchronized void start() {
+        if (unsupported || closed || commands != null)
+            return;
+
+        StreamObserver<GroupEvent> responses = new StreamObserver<GroupEvent>() {
+            @Override
+            public void onNext(GroupEvent value) {
+                dispatch(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                lost(this, Status.fromThrowable(t));
+            }
+
+            @Override
+            public void onCompleted() {
+                lost(this, Status.UNAVAILABLE.withDescription("Server ended the stream"));
+            }
+        };
+        currentResponses = responses;
+        commands = stub.groupEvents(responses);
+
+        commands.onNext(GroupCommand.newBuilder().setJoin(join).build());
+        for (ServerChannel channel : subscriptions.values()) {
+            sendSubscribe(channel, channel.getLastSeq());
+        }
+    }
+
+    private void dispatch(GroupEvent event) {
+        switch (event.getEventCase()) {
+            case MESSAGE: {
+                ServerChannel channel;
+                synchronized (this) {
+                    channel = subscriptions.get(event.getMessage().getChannelId());
+                }
+                if (channel != null)
+                    channel.onStreamedMessage(event.getMessage().getMessage());
+                break;
+            }
+            case ENDED: {
+                SubscriptionEnded ended = event.getEnded();
+                ServerChannel channel;
+                synchronized (this) {
+                    channel = subscriptions.remove(ended.getChannelId());
+                }
+                if (channel != null) {
+                    channel.onSubscriptionEnded(Status.fromCodeValue(ended.getCode())
+                            .withDescription(ended.getDescription()));
+                }
+                break;
+            }
+            case STATUS:
+                listener.onStatus(event.getStatus());
+                break;
+            case ACTIVITY:
+                listener.onActivity(event.getActivity());
+                break;
+            case CHANNELCREATED:
+                listener.onChannelCreated(event.getChannelCreated());
+                break;
+            default:
+                LOGGER.debug("Ignoring unknown group event");
+        }
+    }
+
+    private void lost(StreamObserver<GroupEvent> responses, Status status) {
+        synchronized (this) {
+            if (responses != currentResponses)
+                return;
+            commands = null;
+            currentResponses = null;
+
+            if (status.getCode() == Status.Code.UNIMPLEMENTED) {
+                unsupported = true;
+                subscriptions.clear();
+            }
+        }
+
+        if (status.getCode() == Status.Code.UNIMPLEMENTED) {
+            LOGGER.info("Server does not support group events, streaming each channel separately");
+            listener.onUnsupported();
+            return;
+        }
+
+        LOGGER.warn("Lost group events: " + status);
+        RECONNECTS.schedule(this::start, RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stream a channel's messages to it through {@link ServerChannel#onStreamedMessage(Message)}
+     *
+     * @param channel  The channel
+     * @param afterSeq Replay everything after this sequence number first, 0 to only get new messages
+     * @return False if the server doesn't support GroupEvents, and the channel should open its own stream
+     */
+    public synchronized boolean subscribe(ServerChannel channel, long afterSeq) {
+        if (unsupported)
+            return false;
+
+        subscriptions.put(channel.getChannel().getId(), channel);
+        if (commands != null)
+            sendSubscribe(channel, afterSeq);
+        return true;
+    }
+
+    private void sendSubscribe(ServerChannel channel, long afterSeq) {
+        commands.onNext(GroupCommand.newBuilder()
+                .setSubscribe(GetMessagesRequest.newBuilder()
+                        .setChannel(channel.getChannel())
+                        .setAfterSeq(afterSeq))
+                .build());
+    }
+
+    public synchronized void unsubscribe(ServerChannel channel) {
+        if (subscriptions.remove(channel.getChannel().getId()) == null || commands == null)
+            return;
+
+        commands.onNext(GroupCommand.newBuilder()
+                .setUnsubscribe(channel.getChannel())
+                .build());
+    }
+
+    /**
+     * End the call for good, without reconnecting
+     */
+    public synchronized void close() {
+        closed = true;
+        subscriptions.clear();
+        if (commands != null) {
+            commands.onCompleted();
+            commands = null;
+            currentResponses = null;
+        }
+    }
+
+    /**
+     * @return Number of channels whose messages are streamed
+     */
+    public synchronized int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+}
@@ -64,6 +64,15 @@ public class InfiniteScrollPane<T> extends JScrollPane {
          * @return A future for the list model containing the items
          */
         CompletableFuture<Void> loadMore(int number);
+
+        /**
+         * Called as the list scrolls, so models that only keep some items in memory know which ones are needed
+         * @param first Index of the first visible item, or -1 if none
+         * @param last Index of the last visible item
+         */
+        default void visibleRangeChanged(int first, int last) {
+        }
+
         ListModel<T> getListModel();
         void addItemAddedListener(ItemAddedListener listener);
         void removeItemAddedListener(ItemAddedListener listener);
@@ -130,6 +139,9 @@ public class InfiniteScrollPane<T> extends JScrollPane {
     }
 
     public void viewportStateChanged(ChangeEvent e) {
+        if (bufferedLoader != null)
+            bufferedLoader.visibleRangeChanged(list.getFirstVisibleIndex(), list.getLastVisibleIndex());
+
         Point viewPos = getViewport().getViewPosition();
         if (viewPos.getY() == 0) {
             getMore(false);
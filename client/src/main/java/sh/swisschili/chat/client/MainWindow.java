@@ -143,6 +143,14 @@ public class MainWindow {
 
             LOGGER.info("Channel selected " + channel);
 
+            if (channel == currentChannel)
+                return;
+
+            // Only the channel being viewed streams its messages, the rest are followed through group activity
+            if (currentChannel != null)
+                currentChannel.release();
+            channel.open();
+
             InfiniteScrollPane<Message> infiniteScrollPane = (InfiniteScrollPane<Message>) messagesScrollPane;
             infiniteScrollPane.setBufferedLoader(channel.getBufferedLoader());
             currentChannel = channel;
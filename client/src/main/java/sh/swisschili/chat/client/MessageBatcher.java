@@ -0,0 +1,153 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.client;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos;
+import sh.swisschili.chat.util.ChatProtos.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects messages sent in quick succession into a single SendMessages call.
+ *
+ * A batch is sent once it is full or a few milliseconds after its first message, whichever comes first, so a single
+ * message is barely delayed while a burst costs one round-trip instead of one per message. Servers that predate
+ * SendMessages are detected on the first batch and sent each message on its own from then on.
+ */
+public class MessageBatcher {
+    public static final int MAX_BATCH = 64;
+    public static final long LINGER_MS = 5;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageBatcher.class);
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ChatGrpc.ChatStub stub;
+    private List<OutgoingMessage> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private volatile boolean batchingSupported = true;
+
+    public MessageBatcher(ChatGrpc.ChatStub stub) {
+        this.stub = stub;
+    }
+
+    /**
+     * Queue a signed message to be sent with the next batch
+     *
+     * @param message The message
+     */
+    public void send(OutgoingMessage message) {
+        List<OutgoingMessage> full = null;
+
+        synchronized (this) {
+            pending.add(message);
+
+            if (pending.size() >= MAX_BATCH) {
+                full = pending;
+                pending = new ArrayList<>();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                FLUSHER.schedule(this::flush, LINGER_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full != null)
+            send(full);
+    }
+
+    private void flush() {
+        List<OutgoingMessage> batch;
+
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty())
+                return;
+
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+
+        send(batch);
+    }
+
+    private void send(List<OutgoingMessage> batch) {
+        if (!batchingSupported) {
+            batch.forEach(this::sendOne);
+            return;
+        }
+
+        stub.sendMessages(SendMessagesRequest.newBuilder().addAllMessages(batch).build(),
+                new StreamObserver<SendMessagesResponse>() {
+                    @Override
+                    public void onNext(SendMessagesResponse value) {
+                        for (MessageResult result : value.getResultsList()) {
+                            if (result.getStatus() != ChatProtos.Status.OK)
+                                LOGGER.error("Message failed to send: " + result.getStatus());
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+                            LOGGER.info("Server does not support SendMessages, sending messages one at a time");
+                            batchingSupported = false;
+                            batch.forEach(MessageBatcher.this::sendOne);
+                        } else {
+                            LOGGER.error(String.format("%d messages failed to send %s", batch.size(), t));
+                        }
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        LOGGER.debug(String.format("Sent %d messages", batch.size()));
+                    }
+                });
+    }
+
+    private void sendOne(OutgoingMessage message) {
+        stub.sendMessage(message, new StreamObserver<MessageResponse>() {
+            @Override
+            public void onNext(MessageResponse value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                LOGGER.error("Message failed to send " + t);
+            }
+
+            @Override
+            public void onCompleted() {
+                LOGGER.info("Message sent successfully");
+            }
+        });
+    }
+}
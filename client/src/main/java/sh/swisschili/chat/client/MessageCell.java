@@ -21,7 +21,6 @@ package sh.swisschili.chat.client;
 import com.github.weisj.darklaf.components.border.DarkBorders;
 import com.jgoodies.forms.layout.CellConstraints;
 import com.jgoodies.forms.layout.FormLayout;
-import org.jetbrains.annotations.NotNull;
 import sh.swisschili.chat.util.ChatProtos.Message;
 
 import javax.swing.*;
@@ -29,34 +28,126 @@ import javax.swing.plaf.FontUIResource;
 import javax.swing.text.StyleContext;
 import java.awt.*;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
+/**
+ * Renders messages in a JList with a single, reused component tree.
+ *
+ * Laying out a list measures every cell, and wrapping a message's text is by far the most expensive part of that, so
+ * each message's size is remembered per list width and header visibility. A cell whose size is already known only has
+ * its text set when it is actually painted. Formatted timestamps are remembered alongside. A placeholder from {@link
+ * MessageWindowModel} takes the size of the message it stands in for, so evicting and fetching a page again never
+ * moves the rows around it.
+ */
 public class MessageCell implements ListCellRenderer<Message> {
+    /**
+     * Most messages whose sizes and timestamps are remembered
+     */
+    private static final int MAX_CACHED = 1 << 17;
+
     private JPanel rootPanel;
     private JTextArea body;
     private JLabel sender;
     private JLabel time;
 
-    public MessageCell() {
+    private final CellPanel cell = new CellPanel();
+    private final Map<String, CachedCell> cache = new LinkedHashMap<String, CachedCell>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedCell> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+    private int cacheWidth = -1;
+    private UIDefaults lookAndFeelDefaults;
+
+    private static class CachedCell {
+        final String time;
+        Dimension headerSize = null;
+        Dimension plainSize = null;
+
+        CachedCell(Message message) {
+            time = new Date(message.getUnixTime()).toString();
+        }
+
+        CachedCell(CachedCell other) {
+            time = other.time;
+            headerSize = other.headerSize;
+            plainSize = other.plainSize;
+        }
     }
 
-    public MessageCell(@NotNull Message value, int parentWidth, boolean showHeader) {
-        $$$setupUI$$$();
+    /**
+     * Holds the designer's component tree, only setting the body text once it is needed
+     */
+    private class CellPanel extends JPanel {
+        private String pendingBody = "";
+        private String shownBody = null;
+        private int width = 0;
+        private CachedCell cached;
+        private boolean showHeader;
+
+        CellPanel() {
+            super(new BorderLayout());
+        }
+
+        void show(String text, int width, CachedCell cached, boolean showHeader) {
+            this.pendingBody = text;
+            this.width = width;
+            this.cached = cached;
+            this.showHeader = showHeader;
+        }
 
-        if (!showHeader) {
-            sender.setVisible(false);
-            time.setVisible(false);
+        private void applyBody() {
+            if (!pendingBody.equals(shownBody)) {
+                body.setText(pendingBody);
+                shownBody = pendingBody;
+            }
+
+            if (width > 0)
+                body.setSize(width, Short.MAX_VALUE);
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            Dimension size = showHeader ? cached.headerSize : cached.plainSize;
+            if (size == null) {
+                applyBody();
+                size = super.getPreferredSize();
+                if (showHeader) {
+                    cached.headerSize = size;
+                } else {
+                    cached.plainSize = size;
+                }
+            }
+            return new Dimension(size);
         }
 
-        body.setText(value.getBody());
+        @Override
+        public void validate() {
+            applyBody();
+            super.validate();
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            applyBody();
+            super.paint(g);
+        }
+    }
+
+    public MessageCell() {
+        $$$setupUI$$$();
+
         body.setLineWrap(true);
         body.setWrapStyleWord(true);
+        cell.add(rootPanel, BorderLayout.CENTER);
+        styleSender();
+        lookAndFeelDefaults = UIManager.getLookAndFeelDefaults();
+    }
 
-        if (parentWidth > 0)
-            body.setSize(parentWidth, Short.MAX_VALUE);
-
-        sender.setText(value.getSender().getName());
-        time.setText(new Date(value.getUnixTime()).toString());
+    private void styleSender() {
         Font f = sender.getFont();
         sender.setFont(f.deriveFont(f.getStyle() | Font.BOLD));
     }
@@ -64,12 +155,53 @@ public class MessageCell implements ListCellRenderer<Message> {
     @Override
     public JComponent getListCellRendererComponent(JList<? extends Message> list, Message value, int index,
                                                    boolean isSelected, boolean cellHasFocus) {
+        // The tree is never in a window, so pick up theme changes by hand
+        if (UIManager.getLookAndFeelDefaults() != lookAndFeelDefaults) {
+            lookAndFeelDefaults = UIManager.getLookAndFeelDefaults();
+            SwingUtilities.updateComponentTreeUI(cell);
+            styleSender();
+            cache.clear();
+        }
+
+        int width = list.getWidth();
+        if (width != cacheWidth) {
+            cache.clear();
+            cacheWidth = width;
+        }
+
         // Hide header if multiple messages from same sender
         boolean showHeader = true;
         if (index > 0) {
             showHeader = !list.getModel().getElementAt(index - 1).getSender().equals(value.getSender());
         }
-        return new MessageCell(value, list.getWidth(), showHeader).rootPanel;
+
+        CachedCell cached;
+        if (value.getId().startsWith(MessageWindowModel.PLACEHOLDER_PREFIX)) {
+            // Measured as the message it stands in for, but a size measured for it must not be kept for the message
+            CachedCell message = cache.get(value.getId().substring(MessageWindowModel.PLACEHOLDER_PREFIX.length()));
+            cached = message == null ? new CachedCell(value) : new CachedCell(message);
+        } else if (value.getId().isEmpty()) {
+            cached = new CachedCell(value);
+        } else {
+            cached = cache.computeIfAbsent(value.getId(), id -> new CachedCell(value));
+        }
+
+        sender.setVisible(showHeader);
+        time.setVisible(showHeader);
+        if (showHeader) {
+            sender.setText(value.getSender().getName());
+            time.setText(cached.time);
+        }
+
+        cell.show(value.getBody(), width, cached, showHeader);
+        return cell;
+    }
+
+    /**
+     * @return Number of messages whose sizes or timestamps are remembered
+     */
+    public int getCachedCount() {
+        return cache.size();
     }
 
     /**
@@ -0,0 +1,414 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.client;
+
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.MessageCursor;
+import sh.swisschili.chat.util.ChatProtos.MessageRangeResponse;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * List model for a channel's history that only keeps the pages around the viewport in memory.
+ *
+ * History is split into pages, oldest first. Older pages are fetched with the range RPC as the user scrolls up, and
+ * live messages are appended to the newest page. Once more than a fixed number of pages are loaded, the page farthest
+ * from the visible rows has its messages dropped. Only its size, oldest cursor and a small placeholder per message are
+ * kept, so the list keeps its length and an evicted page can be fetched again with the cursor of the page after it.
+ *
+ * Evicted rows show a placeholder for the message they held, see {@link #placeholderFor(Message)}. Getting an element
+ * never fetches anything, since JList measures every row when laying out; instead pages near the viewport are fetched
+ * in setVisibleRange. The newest page is never evicted, so live messages always have somewhere to go.
+ *
+ * The model must only be used from one thread, by default the event dispatch thread. Fetched pages are applied on it
+ * through the executor given to the constructor, each as a single list event.
+ */
+public class MessageWindowModel extends AbstractListModel<Message> {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_LOADED_PAGES = 12;
+
+    /**
+     * Prefixes the id of a placeholder, followed by the id of the message it stands in for
+     */
+    public static final String PLACEHOLDER_PREFIX = "loading:";
+
+    /**
+     * Shown in place of messages whose page has been evicted, see {@link #placeholderFor(Message)}
+     */
+    public static final Message PLACEHOLDER = Message.newBuilder()
+            .setId("loading")
+            .setBody("Loading...")
+            .build();
+
+    public interface PageLoader {
+        /**
+         * Fetch a page of messages
+         *
+         * @param before Only get messages older than this, or null for the newest messages
+         * @param count  Number of messages to get
+         * @return A future for the messages, newest first
+         */
+        CompletableFuture<MessageRangeResponse> load(MessageCursor before, int count);
+    }
+
+    private static class Page {
+        Message[] messages;
+        /**
+         * Shown while the page is evicted
+         */
+        Message[] placeholders;
+        int size;
+        /**
+         * Cursor of the oldest message, kept after eviction to fetch the page before this one again
+         */
+        MessageCursor oldest;
+        boolean loading = false;
+
+        Page(Message[] messages, int size) {
+            this.messages = messages;
+            this.size = size;
+            if (size > 0)
+                oldest = cursorOf(messages[0]);
+        }
+    }
+
+    private final PageLoader loader;
+    private final Executor applier;
+    private final int pageSize;
+    private final int maxLoadedPages;
+
+    private final List<Page> pages = new ArrayList<>();
+    /**
+     * Index of the first row of each page, rebuilt when pages are added
+     */
+    private int[] starts = new int[0];
+    private boolean startsStale = false;
+    private int size = 0;
+    private int loadedPages = 0;
+    private int firstVisible = -1;
+    private int lastVisible = -1;
+    private boolean historyExhausted = false;
+    private CompletableFuture<Void> loadingOlder = null;
+
+    public MessageWindowModel(PageLoader loader) {
+        this(loader, SwingUtilities::invokeLater, DEFAULT_PAGE_SIZE, DEFAULT_MAX_LOADED_PAGES);
+    }
+
+    /**
+     * @param loader         Fetches pages of history
+     * @param applier        Runs fetched pages on the thread that owns the model
+     * @param pageSize       Number of live messages per page
+     * @param maxLoadedPages Most pages to keep in memory, at least 3 so the viewport and a page either side fit
+     */
+    public MessageWindowModel(PageLoader loader, Executor applier, int pageSize, int maxLoadedPages) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize: " + pageSize);
+        if (maxLoadedPages < 3)
+            throw new IllegalArgumentException("maxLoadedPages: " + maxLoadedPages);
+
+        this.loader = loader;
+        this.applier = applier;
+        this.pageSize = pageSize;
+        this.maxLoadedPages = maxLoadedPages;
+    }
+
+    /**
+     * A placeholder keeps the id, sender and time of the message it stands in for, so its row can keep the message's
+     * height and header until the message is fetched again. Its own id is the message's with {@link
+     * #PLACEHOLDER_PREFIX} in front, so it is never mistaken for the message.
+     *
+     * @param message An evicted message
+     * @return What to show in its place
+     */
+    public static Message placeholderFor(Message message) {
+        return PLACEHOLDER.toBuilder()
+                .setId(PLACEHOLDER_PREFIX + message.getId())
+                .setSender(message.getSender())
+                .setUnixTime(message.getUnixTime())
+                .build();
+    }
+
+    private static MessageCursor cursorOf(Message message) {
+        return MessageCursor.newBuilder()
+                .setUnixTime(message.getUnixTime())
+                .setId(message.getId())
+                .build();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Message getElementAt(int index) {
+        if (index < 0 || index >= size)
+            throw new ArrayIndexOutOfBoundsException(index);
+
+        int pageIndex = pageOf(index);
+        Page page = pages.get(pageIndex);
+        int row = index - starts[pageIndex];
+        return page.messages == null ? page.placeholders[row] : page.messages[row];
+    }
+
+    private void updateStarts() {
+        if (!startsStale)
+            return;
+
+        starts = new int[pages.size()];
+        int start = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            starts[i] = start;
+            start += pages.get(i).size;
+        }
+        startsStale = false;
+    }
+
+    private int pageOf(int index) {
+        updateStarts();
+
+        // Last page whose start is at or before index. Only the newest page grows, so its start is still right
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Append a new message to the end of the list
+     *
+     * @param message The message
+     */
+    public void addMessage(Message message) {
+        Page tail = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (tail == null || tail.size >= pageSize) {
+            tail = new Page(new Message[pageSize], 0);
+            pages.add(tail);
+            startsStale = true;
+            loadedPages++;
+        } else if (tail.messages.length == tail.size) {
+            Message[] grown = new Message[pageSize];
+            System.arraycopy(tail.messages, 0, grown, 0, tail.size);
+            tail.messages = grown;
+        }
+
+        tail.messages[tail.size++] = message;
+        if (tail.oldest == null)
+            tail.oldest = cursorOf(message);
+        size++;
+
+        fireIntervalAdded(this, size - 1, size - 1);
+        evict();
+    }
+
+    /**
+     * Fetch the page before the oldest one, inserting it at the top of the list as a single event
+     *
+     * @param count Number of messages to fetch
+     * @return A future completed once the page is in the list
+     */
+    public CompletableFuture<Void> loadOlder(int count) {
+        if (historyExhausted)
+            return CompletableFuture.completedFuture(null);
+        if (loadingOlder != null)
+            return loadingOlder;
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        loadingOlder = future;
+
+        MessageCursor before = pages.isEmpty() ? null : pages.get(0).oldest;
+        loader.load(before, count).whenComplete((response, t) -> applier.execute(() -> {
+            loadingOlder = null;
+            if (t != null) {
+                future.completeExceptionally(t);
+                return;
+            }
+
+            if (!response.hasNext())
+                historyExhausted = true;
+
+            List<Message> fetched = response.getMessagesList();
+            if (before == null && !pages.isEmpty()) {
+                // Messages that arrived live while the newest page was being fetched are already in the list
+                Set<String> live = new HashSet<>();
+                for (Page page : pages) {
+                    for (int i = 0; page.messages != null && i < page.size; i++) {
+                        live.add(page.messages[i].getId());
+                    }
+                }
+
+                fetched = new ArrayList<>(fetched);
+                fetched.removeIf(message -> live.contains(message.getId()));
+            }
+
+            int n = fetched.size();
+            if (n > 0) {
+                Message[] messages = new Message[n];
+                for (int i = 0; i < n; i++) {
+                    messages[n - 1 - i] = fetched.get(i);
+                }
+
+                pages.add(0, new Page(messages, n));
+                startsStale = true;
+                loadedPages++;
+                size += n;
+                if (firstVisible >= 0) {
+                    firstVisible += n;
+                    lastVisible += n;
+                }
+
+                fireIntervalAdded(this, 0, n - 1);
+                evict();
+            }
+            future.complete(null);
+        }));
+
+        return future;
+    }
+
+    /**
+     * Tell the model which rows are on screen. Evicted pages covering them or next to them are fetched again, and pages
+     * far from them become the first to be evicted.
+     *
+     * @param first First visible row, or -1 if none
+     * @param last  Last visible row
+     */
+    public void setVisibleRange(int first, int last) {
+        if (first < 0 || size == 0)
+            return;
+
+        firstVisible = Math.min(first, size - 1);
+        lastVisible = Math.min(Math.max(last, firstVisible), size - 1);
+
+        int from = Math.max(pageOf(firstVisible) - 1, 0);
+        int to = Math.min(pageOf(lastVisible) + 1, pages.size() - 1);
+        for (int i = from; i <= to; i++) {
+            reload(pages.get(i));
+        }
+    }
+
+    private void reload(Page page) {
+        if (page.messages != null || page.loading)
+            return;
+
+        int index = pages.indexOf(page);
+        // The newest page is never evicted, so there is always a page after this one
+        MessageCursor before = pages.get(index + 1).oldest;
+        page.loading = true;
+
+        loader.load(before, page.size).whenComplete((response, t) -> applier.execute(() -> {
+            page.loading = false;
+            int pageIndex = pages.indexOf(page);
+            if (t != null || pageIndex < 0)
+                return;
+
+            int n = response.getMessagesCount();
+            Message[] messages = new Message[n];
+            for (int i = 0; i < n; i++) {
+                messages[n - 1 - i] = response.getMessages(i);
+            }
+
+            updateStarts();
+            int start = starts[pageIndex];
+            page.messages = messages;
+            page.placeholders = null;
+            loadedPages++;
+
+            if (n == page.size) {
+                fireContentsChanged(this, start, start + n - 1);
+            } else {
+                // Some of the page has been deleted since it was first fetched
+                int old = page.size;
+                page.size = n;
+                size += n - old;
+                startsStale = true;
+                if (n > 0)
+                    page.oldest = cursorOf(messages[0]);
+
+                fireIntervalRemoved(this, start, start + old - 1);
+                if (n > 0)
+                    fireIntervalAdded(this, start, start + n - 1);
+            }
+            evict();
+        }));
+    }
+
+    /**
+     * Drop the loaded pages farthest from the visible rows until at most maxLoadedPages are left
+     */
+    private void evict() {
+        if (loadedPages <= maxLoadedPages)
+            return;
+
+        updateStarts();
+        int near = firstVisible < 0 ? pages.size() - 1 : pageOf((firstVisible + lastVisible) / 2);
+        while (loadedPages > maxLoadedPages) {
+            int farthest = -1;
+            for (int i = 0; i < pages.size() - 1; i++) {
+                if (pages.get(i).messages != null
+                        && (farthest < 0 || Math.abs(i - near) > Math.abs(farthest - near))) {
+                    farthest = i;
+                }
+            }
+
+            if (farthest < 0)
+                return;
+
+            Page page = pages.get(farthest);
+            page.placeholders = new Message[page.size];
+            for (int i = 0; i < page.size; i++) {
+                page.placeholders[i] = placeholderFor(page.messages[i]);
+            }
+            page.messages = null;
+            loadedPages--;
+            fireContentsChanged(this, starts[farthest], starts[farthest] + page.size - 1);
+        }
+    }
+
+    /**
+     * @return Whether the oldest message in the channel has been fetched
+     */
+    public boolean isHistoryExhausted() {
+        return historyExhausted;
+    }
+
+    /**
+     * @return Number of pages whose messages are in memory
+     */
+    public int getLoadedPageCount() {
+        return loadedPages;
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+}
@@ -19,6 +19,9 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package sh.swisschili.chat.client;
 
 import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,16 +36,45 @@ import java.security.KeyPair;
 import java.security.SignatureException;
 import java.util.LinkedList;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ServerChannel {
     private final ServerPool pool;
     private final Channel channel;
-    private final DefaultListModel<Message> messageModel = new DefaultListModel<>();
+    private final MessageWindowModel messageModel;
     private final ChatGrpc.ChatStub stub;
+    private final MessageBatcher batcher;
     private final User user;
     private final LinkedList<ItemAddedListener> itemAddedListeners = new LinkedList<>();
+    private volatile long lastSeq = 0;
+
+    private int viewers = 0;
+    private ClientCallStreamObserver<GetMessagesRequest> call = null;
+    private GroupEventStream events = null;
+    private boolean multiplexed = false;
+    private ScheduledFuture<?> idleClose = null;
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    // Newest message read, and newest message the activity stream has reported
+    private long readSeq = 0;
+    private long activitySeq = 0;
+    private int unread = 0;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ServerPool.class.getName());
+    private static final long RECONNECT_DELAY_MS = 2000;
+    /**
+     * How long a channel keeps streaming after it stops being viewed, so flicking between channels doesn't reopen
+     * streams
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+    private static final ScheduledExecutorService RECONNECTS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "channel-reconnects");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public interface MessageListener {
         void onMessage(Message message);
@@ -53,20 +85,102 @@ public class ServerChannel {
         this.channel = channel;
         this.user = user;
         stub = pool.chatStubFor(server);
+        batcher = new MessageBatcher(stub);
+        messageModel = new MessageWindowModel(this::loadRange);
+    }
+
+    /**
+     * Start streaming new messages, if not already. Each call must be matched by a call to {@link #release()}.
+     */
+    public synchronized void open() {
+        viewers++;
+        if (idleClose != null) {
+            idleClose.cancel(false);
+            idleClose = null;
+        }
+
+        readSeq = Math.max(readSeq, Math.max(lastSeq, activitySeq));
+        unread = 0;
+
+        if (!isStreaming())
+            subscribe();
+    }
+
+    /**
+     * Stop streaming once the channel has not been viewed for the idle timeout
+     */
+    public synchronized void release() {
+        if (viewers == 0 || --viewers > 0)
+            return;
+
+        idleClose = RECONNECTS.schedule(this::closeIfIdle, idleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void closeIfIdle() {
+        idleClose = null;
+        if (viewers > 0 || !isStreaming())
+            return;
+
+        LOGGER.debug("Closing idle stream for " + channel.getName());
+        if (multiplexed) {
+            events.unsubscribe(this);
+            multiplexed = false;
+        } else {
+            call.cancel("Channel is idle", null);
+            call = null;
+        }
+    }
+
+    private synchronized void resubscribe() {
+        if (viewers > 0 || idleClose != null)
+            subscribe();
+    }
+
+    /**
+     * Stream new messages in the channel, through the group's event stream if the server supports it. After a dropped
+     * stream this resumes after the last message received, so the server replays whatever was missed in between.
+     */
+    private synchronized void subscribe() {
+        if (events != null && events.subscribe(this, lastSeq)) {
+            multiplexed = true;
+            return;
+        }
+
+        stub.getMessages(GetMessagesRequest.newBuilder()
+                .setChannel(channel)
+                .setAfterSeq(lastSeq)
+                .build(), new ClientResponseObserver<GetMessagesRequest, Message>() {
+            private ClientCallStreamObserver<GetMessagesRequest> requestStream;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<GetMessagesRequest> requestStream) {
+                this.requestStream = requestStream;
+                call = requestStream;
+            }
 
-        stub.getMessages(channel, new StreamObserver<Message>() {
             @Override
             public void onNext(Message value) {
-                SwingUtilities.invokeLater(() -> {
-                    itemAddedListeners.forEach(ItemAddedListener::beforeItemAdded);
-                    messageModel.addElement(value);
-                    itemAddedListeners.forEach(ItemAddedListener::afterItemAdded);
-                });
+                onStreamedMessage(value);
             }
 
             @Override
             public void onError(Throwable t) {
+                Status status = Status.fromThrowable(t);
+                if (status.getCode() == Status.Code.CANCELLED)
+                    return;
+
                 LOGGER.error("Error getting messages " + t);
+                if (status.getCode() == Status.Code.OUT_OF_RANGE) {
+                    // Too much was missed to replay, carry on from the newest message instead
+                    lastSeq = 0;
+                }
+
+                synchronized (ServerChannel.this) {
+                    if (call != requestStream)
+                        return;
+                    call = null;
+                }
+                RECONNECTS.schedule(ServerChannel.this::resubscribe, RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
             }
 
             @Override
@@ -75,65 +189,108 @@ public class ServerChannel {
         });
     }
 
+    /**
+     * Show a new message, whichever stream it came from
+     */
+    void onStreamedMessage(Message message) {
+        lastSeq = Math.max(lastSeq, message.getSeq());
+        SwingUtilities.invokeLater(() -> {
+            itemAddedListeners.forEach(ItemAddedListener::beforeItemAdded);
+            messageModel.addMessage(message);
+            itemAddedListeners.forEach(ItemAddedListener::afterItemAdded);
+        });
+    }
+
+    /**
+     * The group's event stream stopped sending this channel's messages without being asked to
+     */
+    synchronized void onSubscriptionEnded(Status status) {
+        LOGGER.error("Error getting messages " + status);
+        if (status.getCode() == Status.Code.OUT_OF_RANGE) {
+            // Too much was missed to replay, carry on from the newest message instead
+            lastSeq = 0;
+        }
+
+        multiplexed = false;
+        RECONNECTS.schedule(this::resubscribe, RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stream this channel's messages through the group's event stream from now on
+     */
+    public synchronized void setEvents(GroupEventStream events) {
+        this.events = events;
+    }
+
+    /**
+     * The server doesn't support group event streams, so move to a stream of this channel's own
+     */
+    synchronized void useOwnStream() {
+        events = null;
+        if (multiplexed) {
+            multiplexed = false;
+            subscribe();
+        }
+    }
+
+    long getLastSeq() {
+        return lastSeq;
+    }
+
     public void sendMessage(Message message, KeyPair keys) {
         try {
             byte[] signature = SignedAuth.sign(keys, message.toByteArray(), channel.toByteArray());
 
-            stub.sendMessage(OutgoingMessage.newBuilder()
-                            .setMessage(message)
-                            .setChannel(channel)
-                            .setSignature(ByteString.copyFrom(signature)).build(),
-                    new StreamObserver<MessageResponse>() {
-                        @Override
-                        public void onNext(MessageResponse value) {
-                        }
-
-                        @Override
-                        public void onError(Throwable t) {
-                            LOGGER.error("Message failed to send " + t);
-                        }
-
-                        @Override
-                        public void onCompleted() {
-                            LOGGER.info("Message sent successfully");
-                        }
-                    });
+            batcher.send(OutgoingMessage.newBuilder()
+                    .setMessage(message)
+                    .setChannel(channel)
+                    .setSignature(ByteString.copyFrom(signature)).build());
         } catch (KeyException | SignatureException ignored) {
         }
     }
 
+    private CompletableFuture<MessageRangeResponse> loadRange(MessageCursor before, int count) {
+        MessageRangeRequest.Builder request = MessageRangeRequest.newBuilder()
+                .setCount(count)
+                .setChannel(channel);
+
+        // Page backwards from a cursor rather than an offset, so new messages arriving don't shift the pages
+        if (before != null)
+            request.setBefore(before);
+
+        CompletableFuture<MessageRangeResponse> future = new CompletableFuture<>();
+        stub.getMessageRange(request.build(), new StreamObserver<MessageRangeResponse>() {
+            @Override
+            public void onNext(MessageRangeResponse value) {
+                // Resume from the newest message shown, even if it was fetched rather than streamed
+                if (value.getMessagesCount() > 0)
+                    lastSeq = Math.max(lastSeq, value.getMessages(0).getSeq());
+                future.complete(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                future.complete(MessageRangeResponse.getDefaultInstance());
+            }
+        });
+        return future;
+    }
+
     public InfiniteScrollPane.BufferedLoader<Message> getBufferedLoader() {
         return new InfiniteScrollPane.BufferedLoader<Message>() {
             @Override
             public CompletableFuture<Void> loadMore(int number) {
-//                LOGGER.info(String.format("Starting to fetch from %d length %d", messageModel.getSize(), number));
-
-                CompletableFuture<Void> future = new CompletableFuture<>();
-                stub.getMessageRange(MessageRangeRequest.newBuilder()
-                                .setFrom(messageModel.getSize())
-                                .setCount(number)
-                                .setChannel(channel).build(),
-                        new StreamObserver<MessageRangeResponse>() {
-                            @Override
-                            public void onNext(MessageRangeResponse value) {
-                                SwingUtilities.invokeLater(() -> {
-                                    for (int i = 0; i < value.getMessagesCount(); i++) {
-                                        messageModel.add(0, value.getMessagesList().get(i));
-                                    }
-                                });
-                            }
-
-                            @Override
-                            public void onError(Throwable t) {
-                                future.completeExceptionally(t);
-                            }
-
-                            @Override
-                            public void onCompleted() {
-                                future.complete(null);
-                            }
-                        });
-                return future;
+                return messageModel.loadOlder(number);
+            }
+
+            @Override
+            public void visibleRangeChanged(int first, int last) {
+                messageModel.setVisibleRange(first, last);
             }
 
             @Override
@@ -153,16 +310,58 @@ public class ServerChannel {
         };
     }
 
+    /**
+     * Record activity from the group's activity stream
+     *
+     * @param activity The newest message in this channel
+     * @return Whether the unread count changed
+     */
+    public synchronized boolean onActivity(ChannelActivity activity) {
+        activitySeq = Math.max(activitySeq, activity.getLastSeq());
+
+        if (viewers > 0 || activity.getNewMessages() == 0) {
+            // Either it's being read, or this is the state the channel was in when the group was joined
+            readSeq = Math.max(readSeq, activitySeq);
+            return false;
+        }
+
+        // Updates for a channel are coalesced, so one may stand for many messages. Count them by sequence number.
+        int count = (int) Math.min(Math.max(activitySeq - readSeq, 0), Integer.MAX_VALUE);
+        if (count == unread)
+            return false;
+
+        unread = count;
+        return true;
+    }
+
+    /**
+     * @return Messages sent since the channel was last viewed, as reported by the activity stream
+     */
+    public synchronized int getUnread() {
+        return unread;
+    }
+
+    /**
+     * @return Whether new messages are currently being streamed
+     */
+    public synchronized boolean isStreaming() {
+        return call != null || multiplexed;
+    }
+
+    public synchronized void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
     @Override
-    public String toString() {
-        return channel.getName();
+    public synchronized String toString() {
+        return unread > 0 ? String.format("%s (%d)", channel.getName(), unread) : channel.getName();
     }
 
     public Channel getChannel() {
         return channel;
     }
 
-    public DefaultListModel<Message> getMessageModel() {
+    public MessageWindowModel getMessageModel() {
         return messageModel;
     }
 
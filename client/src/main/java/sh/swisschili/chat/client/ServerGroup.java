@@ -19,6 +19,7 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package sh.swisschili.chat.client;
 
 import io.grpc.Server;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +29,9 @@ import sh.swisschili.chat.util.ServerPool;
 
 import javax.swing.*;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class ServerGroup {
@@ -43,11 +47,27 @@ public class ServerGroup {
             status -> status.getUser().getName(), new UserStatusComparator(), StreamingListModel.SortDirection.DESCENDING);
 
     private List<ServerChannel> channels = null;
+    private GroupEventStream events = null;
     private User authorizedUser;
     private User user;
+    private volatile UserStatus status = null;
+    private boolean heartbeating = false;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ServerGroup.class);
 
+    /**
+     * Used until the server says how long its leases are
+     */
+    private static final long DEFAULT_HEARTBEAT_MS = 10000;
+    private static final long MIN_HEARTBEAT_MS = 1000;
+    private static final long ACTIVITY_RETRY_MS = 5000;
+
+    private static final ScheduledExecutorService TIMERS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "group-timers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public interface ChannelsReceivedListener {
         void channelsReceived(ServerGroup serverGroup, List<ServerChannel> channels);
     }
@@ -97,8 +117,11 @@ public class ServerGroup {
                                 .getGroupChannels(group, new StreamObserver<GroupChannelsResponse>() {
                                     @Override
                                     public void onNext(GroupChannelsResponse value) {
+                                        events = new GroupEventStream(pool.chatStubFor(server),
+                                                GroupUserStatusRequest.newBuilder().setGroup(group).setFor(user)
+                                                        .build(), eventListener);
                                         channels = value.getChannelsList().stream()
-                                                .map(channel -> new ServerChannel(pool, server, channel, authorizedUser))
+                                                .map(ServerGroup.this::newChannel)
                                                 .collect(Collectors.toList());
 
                                         model.clear();
@@ -112,29 +135,11 @@ public class ServerGroup {
 
                                     @Override
                                     public void onCompleted() {
+                                        // Statuses, activity and the messages of open channels all come over this
+                                        events.start();
                                         listener.channelsReceived(serverGroup, channels);
                                     }
                                 });
-
-                        pool.chatStubFor(server)
-                                .getGroupUserStatuses(GroupUserStatusRequest.newBuilder().setGroup(group)
-                                                .setFor(user).build(),
-                                        new StreamObserver<UserStatus>() {
-                                            @Override
-                                            public void onNext(UserStatus value) {
-                                                LOGGER.info("Got user status " + value.toString());
-                                                userModel.add(value);
-                                            }
-
-                                            @Override
-                                            public void onError(Throwable t) {
-                                                error.onError(t);
-                                            }
-
-                                            @Override
-                                            public void onCompleted() {
-                                            }
-                                        });
                     }
                 };
 
@@ -151,10 +156,126 @@ public class ServerGroup {
                 addUserObserver);
     }
 
+    private final GroupEventStream.Listener eventListener = new GroupEventStream.Listener() {
+        @Override
+        public void onStatus(UserStatus status) {
+            LOGGER.debug("Got user status " + status.toString());
+            userModel.add(status);
+        }
+
+        @Override
+        public void onActivity(ChannelActivity activity) {
+            channelActivity(activity);
+        }
+
+        @Override
+        public void onChannelCreated(Channel channel) {
+            SwingUtilities.invokeLater(() -> addChannel(channel));
+        }
+
+        @Override
+        public void onUnsupported() {
+            SwingUtilities.invokeLater(() -> {
+                events = null;
+                channels.forEach(ServerChannel::useOwnStream);
+            });
+            watchStatuses();
+            watchActivity();
+        }
+    };
+
+    private ServerChannel newChannel(Channel channel) {
+        ServerChannel serverChannel = new ServerChannel(pool, server, channel, authorizedUser);
+        if (events != null)
+            serverChannel.setEvents(events);
+        return serverChannel;
+    }
+
+    /**
+     * Add a channel unless it is already in the list, since channels this client creates are also announced
+     */
+    private void addChannel(Channel channel) {
+        for (ServerChannel existing : channels) {
+            if (existing.getChannel().getId().equals(channel.getId()))
+                return;
+        }
+
+        ServerChannel serverChannel = newChannel(channel);
+        channels.add(serverChannel);
+        model.addElement(serverChannel);
+    }
+
+    private void channelActivity(ChannelActivity activity) {
+        SwingUtilities.invokeLater(() -> {
+            for (int i = 0; i < model.size(); i++) {
+                ServerChannel channel = model.get(i);
+                if (channel.getChannel().getId().equals(activity.getChannelId())) {
+                    // Setting the same element repaints it with the new unread count
+                    if (channel.onActivity(activity))
+                        model.set(i, channel);
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Stream user statuses on their own, for servers without group events
+     */
+    private void watchStatuses() {
+        pool.chatStubFor(server)
+                .getGroupUserStatuses(GroupUserStatusRequest.newBuilder().setGroup(group)
+                                .setFor(user).build(),
+                        new StreamObserver<UserStatus>() {
+                            @Override
+                            public void onNext(UserStatus value) {
+                                eventListener.onStatus(value);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                error.onError(t);
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                            }
+                        });
+    }
+
+    /**
+     * Follow the newest message in each channel on its own stream, for servers without group events
+     */
+    private void watchActivity() {
+        pool.chatStubFor(server).getChannelActivity(group, new StreamObserver<ChannelActivity>() {
+            @Override
+            public void onNext(ChannelActivity value) {
+                channelActivity(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Status status = Status.fromThrowable(t);
+                if (status.getCode() == Status.Code.UNIMPLEMENTED) {
+                    LOGGER.info("Server does not report channel activity");
+                    return;
+                }
+
+                LOGGER.warn("Lost channel activity: " + t.getMessage());
+                TIMERS.schedule(ServerGroup.this::watchActivity, ACTIVITY_RETRY_MS, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
+
     public void setStatus(UserStatus status) {
         status = UserStatus.newBuilder(status)
                 .setUser(user)
                 .build();
+        this.status = status;
 
         LOGGER.info(String.format("Setting status: %s\n", status.toString()));
 
@@ -166,6 +287,7 @@ public class ServerGroup {
                         new StreamObserver<SetUserStatusResponse>() {
                             @Override
                             public void onNext(SetUserStatusResponse value) {
+                                startHeartbeats();
                             }
 
                             @Override
@@ -179,19 +301,61 @@ public class ServerGroup {
                         });
     }
 
+    /**
+     * Keep this user's status alive on the server. Heartbeats are sent at a third of the server's lease, so one can be
+     * lost without the user appearing offline.
+     */
+    private synchronized void startHeartbeats() {
+        if (heartbeating)
+            return;
+
+        heartbeating = true;
+        TIMERS.schedule(this::heartbeat, DEFAULT_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void heartbeat() {
+        pool.chatStubFor(server)
+                .heartbeat(HeartbeatRequest.newBuilder()
+                                .setGroup(group)
+                                .setUser(user)
+                                .build(),
+                        new StreamObserver<HeartbeatResponse>() {
+                            long nextMs = DEFAULT_HEARTBEAT_MS;
+
+                            @Override
+                            public void onNext(HeartbeatResponse value) {
+                                if (value.getLeaseMs() > 0)
+                                    nextMs = Math.max(MIN_HEARTBEAT_MS, value.getLeaseMs() / 3);
+
+                                UserStatus current = status;
+                                if (value.getExpired() && current != null) {
+                                    LOGGER.info("Presence lease expired, setting status again");
+                                    setStatus(current);
+                                }
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                LOGGER.warn("Heartbeat failed: " + t.getMessage());
+                                TIMERS.schedule(ServerGroup.this::heartbeat, nextMs, TimeUnit.MILLISECONDS);
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                TIMERS.schedule(ServerGroup.this::heartbeat, nextMs, TimeUnit.MILLISECONDS);
+                            }
+                        });
+    }
+
     public void createChannel(String name) {
         ChatGrpc.ChatStub stub = pool.chatStubFor(server);
 
-        ServerGroup g = this;
-
         stub.createChannel(CreateChannelRequest.newBuilder().setGroup(group)
                         .setChannelName(name).build(),
                 new StreamObserver<CreateChannelResponse>() {
                     @Override
                     public void onNext(CreateChannelResponse value) {
-                        ServerChannel channel = new ServerChannel(pool, server, value.getChannel(), authorizedUser);
-                        g.channels.add(channel);
-                        g.model.addElement(channel);
+                        SwingUtilities.invokeLater(() -> addChannel(value.getChannel()));
                     }
 
                     @Override
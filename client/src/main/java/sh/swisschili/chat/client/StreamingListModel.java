@@ -25,24 +25,28 @@ import java.util.*;
 
 /**
  * List model for use in streaming scenarios, ie: where items are transmitted over a network with possible delays.
- * This class incrementally sorts items as they are added and supports O(1) updates of already existing items. It
- * operates under the assumption that the criteria on which items are sorted will not change.
+ * This class incrementally sorts items as they are added and updates already existing items in O(log n).
  *
  * The key refers to a unique identifier for each item. If an item is added with a key that is already present in the
- * list, the index that held that key is updated to hold the new item. Otherwise, the key is inserted and sorted
- * according to the provided Comparator.
+ * list, the item with that key is replaced by the new one, and moved if it now sorts elsewhere. Otherwise, the key is
+ * inserted and sorted according to the provided Comparator. Items that compare equal stay in the order they were first
+ * added.
+ *
+ * Items are kept sorted in an array, so lookups by index are O(1) and an insert is a binary search plus a single array
+ * copy. Listeners are told exactly which index was added, changed or removed.
  *
  * @param <K> The unique key type of each item, returned by KeyGetter.getKey() and used internally in a hash table
  * @param <T> The type stored in the list
  */
 public class StreamingListModel<K, T> implements ListModel<T> {
-    private final List<ListDataListener> listeners = new LinkedList<>();
+    private final List<ListDataListener> listeners = new ArrayList<>();
     private final KeyGetter<K, T> keyGetter;
     private final Comparator<T> comparator;
-    private final SortDirection direction;
 
-    private final List<SharedContainer<T>> itemList = new LinkedList<>();
-    private final Map<K, SharedContainer<T>> itemMap = new Hashtable<>();
+    private Entry<K, T>[] entries = newArray(16);
+    private int size = 0;
+    private long nextOrder = 0;
+    private final Map<K, Entry<K, T>> entryMap = new HashMap<>();
 
     public enum SortDirection {
         ASCENDING,
@@ -59,18 +63,17 @@ public class StreamingListModel<K, T> implements ListModel<T> {
         K getKey(T value);
     }
 
-    private static class SharedContainer<T> {
+    private static class Entry<K, T> {
+        final K key;
+        /**
+         * When the key was first added, breaks ties between items that compare equal
+         */
+        final long order;
         T value;
 
-        public SharedContainer(T value) {
-            this.value = value;
-        }
-
-        public T getValue() {
-            return value;
-        }
-
-        public void setValue(T value) {
+        Entry(K key, long order, T value) {
+            this.key = key;
+            this.order = order;
             this.value = value;
         }
     }
@@ -82,16 +85,39 @@ public class StreamingListModel<K, T> implements ListModel<T> {
      */
     public StreamingListModel(KeyGetter<K, T> keyGetter, Comparator<T> comparator, SortDirection direction) {
         this.keyGetter = keyGetter;
-        this.comparator = comparator;
-        this.direction = direction;
+        this.comparator = direction == SortDirection.ASCENDING ? comparator : comparator.reversed();
     }
 
-    private boolean goesAfter(int index, T value) {
-        if (direction.equals(SortDirection.ASCENDING)) {
-            return comparator.compare(itemList.get(index).getValue(), value) < 1;
-        } else {
-            return comparator.compare(itemList.get(index).getValue(), value) > -1;
+    @SuppressWarnings("unchecked")
+    private static <K, T> Entry<K, T>[] newArray(int length) {
+        return (Entry<K, T>[]) new Entry[length];
+    }
+
+    private int compare(T value, long order, Entry<K, T> entry) {
+        int byValue = comparator.compare(value, entry.value);
+        return byValue != 0 ? byValue : Long.compare(order, entry.order);
+    }
+
+    /**
+     * @return The index of an entry with this value and order, or -(insertion point) - 1 if there is none
+     */
+    private int search(T value, long order) {
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(value, order, entries[mid]);
+            if (cmp > 0) {
+                low = mid + 1;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
         }
+
+        return -(low + 1);
     }
 
     /**
@@ -102,42 +128,96 @@ public class StreamingListModel<K, T> implements ListModel<T> {
      */
     public void add(T value) {
         K key = keyGetter.getKey(value);
-        if (itemMap.containsKey(key)) {
-            itemMap.get(key).setValue(value);
+        Entry<K, T> existing = entryMap.get(key);
 
-            for (ListDataListener listener : listeners) {
-                // FIXME: use the actual index instead of the whole list range
-                listener.contentsChanged(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, 0, itemList.size()));
-            }
+        if (existing != null) {
+            replace(existing, value);
+            return;
+        }
+
+        Entry<K, T> entry = new Entry<>(key, nextOrder++, value);
+        entryMap.put(key, entry);
+
+        int index = -search(value, entry.order) - 1;
+        insertAt(index, entry);
+        fire(ListDataEvent.INTERVAL_ADDED, index);
+    }
+
+    private void replace(Entry<K, T> entry, T value) {
+        int from = search(entry.value, entry.order);
 
+        if (comparator.compare(value, entry.value) == 0) {
+            entry.value = value;
+            fire(ListDataEvent.CONTENTS_CHANGED, from);
             return;
         }
 
-        SharedContainer<T> shared = new SharedContainer<>(value);
-        itemMap.put(key, shared);
+        removeAt(from);
+        entry.value = value;
+        int to = -search(value, entry.order) - 1;
+        insertAt(to, entry);
+
+        if (to == from) {
+            fire(ListDataEvent.CONTENTS_CHANGED, from);
+        } else {
+            fire(ListDataEvent.INTERVAL_REMOVED, from);
+            fire(ListDataEvent.INTERVAL_ADDED, to);
+        }
+    }
+
+    private void insertAt(int index, Entry<K, T> entry) {
+        if (size == entries.length)
+            entries = Arrays.copyOf(entries, size * 2);
 
-        for (int i = 0; i < itemList.size(); i++) {
-            if (!goesAfter(i, value)) {
-                itemList.add(i, shared);
+        System.arraycopy(entries, index, entries, index + 1, size - index);
+        entries[index] = entry;
+        size++;
+    }
 
-                for (ListDataListener listener : listeners) {
-                    listener.intervalAdded(new ListDataEvent(this, ListDataEvent.INTERVAL_ADDED, i, i));
-                }
+    private void removeAt(int index) {
+        System.arraycopy(entries, index + 1, entries, index, size - index - 1);
+        entries[--size] = null;
+    }
+
+    private void fire(int type, int index) {
+        if (listeners.isEmpty())
+            return;
 
-                return;
+        ListDataEvent event = new ListDataEvent(this, type, index, index);
+        for (ListDataListener listener : listeners) {
+            switch (type) {
+                case ListDataEvent.INTERVAL_ADDED:
+                    listener.intervalAdded(event);
+                    break;
+                case ListDataEvent.INTERVAL_REMOVED:
+                    listener.intervalRemoved(event);
+                    break;
+                default:
+                    listener.contentsChanged(event);
+                    break;
             }
         }
-        itemList.add(shared);
+    }
+
+    /**
+     * @param key The key of an item
+     * @return The index of the item with that key, or -1 if there is none
+     */
+    public int indexOf(K key) {
+        Entry<K, T> entry = entryMap.get(key);
+        return entry == null ? -1 : search(entry.value, entry.order);
     }
 
     @Override
     public int getSize() {
-        return itemList.size();
+        return size;
     }
 
     @Override
     public T getElementAt(int index) {
-        return itemList.get(index).getValue();
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return entries[index].value;
     }
 
     @Override
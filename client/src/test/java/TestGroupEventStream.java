@@ -0,0 +1,221 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Test;
+import sh.swisschili.chat.client.GroupEventStream;
+import sh.swisschili.chat.client.ServerChannel;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos.*;
+import sh.swisschili.chat.util.ServerPool;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TestGroupEventStream {
+    private static final Group GROUP = Group.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f70").setName("test").build();
+    private static final Channel GENERAL = Channel.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f72").setName("general")
+            .build();
+    private static final Channel RANDOM = Channel.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f73").setName("random")
+            .build();
+
+    private final ServerPool pool = new ServerPool();
+    private Server server;
+    private ManagedChannel channel;
+
+    /**
+     * Records the commands of each GroupEvents call, and lets the test send events down the latest one
+     */
+    private static class FakeChat extends ChatGrpc.ChatImplBase {
+        final BlockingQueue<GroupCommand> commands = new LinkedBlockingQueue<>();
+        final List<StreamObserver<GroupEvent>> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public StreamObserver<GroupCommand> groupEvents(StreamObserver<GroupEvent> responseObserver) {
+            calls.add(responseObserver);
+            return new StreamObserver<GroupCommand>() {
+                @Override
+                public void onNext(GroupCommand value) {
+                    commands.add(value);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            };
+        }
+
+        GroupCommand next() throws InterruptedException {
+            GroupCommand command = commands.poll(5, TimeUnit.SECONDS);
+            assert command != null;
+            return command;
+        }
+
+        void send(Channel channel, long seq, String body) {
+            calls.get(calls.size() - 1).onNext(GroupEvent.newBuilder()
+                    .setMessage(GroupMessage.newBuilder()
+                            .setChannelId(channel.getId())
+                            .setMessage(Message.newBuilder().setId("m" + seq).setSeq(seq).setBody(body)))
+                    .build());
+        }
+    }
+
+    /**
+     * Counts calls to onUnsupported and ignores everything else
+     */
+    private static class Listener implements GroupEventStream.Listener {
+        final CountDownLatch unsupported = new CountDownLatch(1);
+
+        @Override
+        public void onStatus(UserStatus status) {
+        }
+
+        @Override
+        public void onActivity(ChannelActivity activity) {
+        }
+
+        @Override
+        public void onChannelCreated(Channel channel) {
+        }
+
+        @Override
+        public void onUnsupported() {
+            unsupported.countDown();
+        }
+    }
+
+    private ChatGrpc.ChatStub start(ChatGrpc.ChatImplBase service) throws IOException {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(service).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        return ChatGrpc.newStub(channel);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (server != null) {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        pool.close();
+    }
+
+    private ServerChannel serverChannel(Channel channel, GroupEventStream events) {
+        ServerChannel serverChannel = new ServerChannel(pool, "localhost", channel, User.getDefaultInstance());
+        serverChannel.setEvents(events);
+        return serverChannel;
+    }
+
+    private static Message lastMessage(ServerChannel channel) throws Exception {
+        // Messages are added to the model on the event dispatch thread
+        Message[] last = new Message[1];
+        for (int i = 0; i < 100 && last[0] == null; i++) {
+            SwingUtilities.invokeAndWait(() -> {
+                int size = channel.getMessageModel().getSize();
+                if (size > 0)
+                    last[0] = channel.getMessageModel().getElementAt(size - 1);
+            });
+            if (last[0] == null)
+                Thread.sleep(10);
+        }
+        return last[0];
+    }
+
+    private static GroupUserStatusRequest join() {
+        return GroupUserStatusRequest.newBuilder().setGroup(GROUP).build();
+    }
+
+    @Test
+    public void testChannelsShareOneCallAndResumeAfterItDrops() throws Exception {
+        FakeChat chat = new FakeChat();
+        GroupEventStream events = new GroupEventStream(start(chat), join(), new Listener());
+        ServerChannel general = serverChannel(GENERAL, events);
+        ServerChannel random = serverChannel(RANDOM, events);
+
+        events.start();
+        general.open();
+        random.open();
+
+        assert chat.next().hasJoin();
+        assert chat.next().getSubscribe().getChannel().equals(GENERAL);
+        assert chat.next().getSubscribe().getChannel().equals(RANDOM);
+        assert chat.calls.size() == 1;
+
+        chat.send(GENERAL, 4, "hello");
+        chat.send(RANDOM, 7, "hi");
+        assert lastMessage(general).getBody().equals("hello");
+        assert lastMessage(random).getBody().equals("hi");
+
+        // Dropped calls are started again, with each channel resuming after its last message
+        chat.calls.get(0).onError(Status.UNAVAILABLE.asRuntimeException());
+        assert chat.next().hasJoin();
+        GroupCommand first = chat.next();
+        GroupCommand second = chat.next();
+        assert chat.calls.size() == 2;
+        for (GroupCommand command : new GroupCommand[]{first, second}) {
+            GetMessagesRequest request = command.getSubscribe();
+            assert request.getAfterSeq() == (request.getChannel().equals(GENERAL) ? 4 : 7);
+        }
+
+        events.close();
+    }
+
+    @Test
+    public void testOldServersAreReported() throws Exception {
+        Listener listener = new Listener();
+        GroupEventStream events = new GroupEventStream(start(new ChatGrpc.ChatImplBase() {
+        }), join(), listener);
+        ServerChannel general = serverChannel(GENERAL, events);
+
+        events.start();
+        assert listener.unsupported.await(5, TimeUnit.SECONDS);
+        assert !events.subscribe(general, 0);
+        assert events.getSubscriptionCount() == 0;
+    }
+
+    @Test
+    public void testCoalescedActivityCountsEveryMessage() {
+        ServerChannel general = new ServerChannel(pool, "localhost", GENERAL, User.getDefaultInstance());
+        ChannelActivity.Builder activity = ChannelActivity.newBuilder().setChannelId(GENERAL.getId());
+
+        // The state on joining, then one update standing in for the five messages sent since
+        assert !general.onActivity(activity.setLastSeq(10).setNewMessages(0).build());
+        assert general.onActivity(activity.setLastSeq(15).setNewMessages(1).build());
+        assert general.getUnread() == 5;
+
+        assert !general.onActivity(activity.setLastSeq(12).setNewMessages(1).build());
+        assert general.onActivity(activity.setLastSeq(16).setNewMessages(1).build());
+        assert general.getUnread() == 6;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+import sh.swisschili.chat.client.MessageCell;
+import sh.swisschili.chat.client.MessageWindowModel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.User;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Collections;
+
+public class TestMessageCell {
+    private static Message message(String id, String sender, String body) {
+        return Message.newBuilder()
+                .setId(id)
+                .setSender(User.newBuilder().setName(sender).setHost("localhost"))
+                .setBody(body)
+                .setUnixTime(1000)
+                .build();
+    }
+
+    private static JList<Message> list(int width, Message... messages) {
+        JList<Message> list = new JList<>(messages);
+        list.setSize(width, 1000);
+        return list;
+    }
+
+    @Test
+    public void testReusesComponentAndCachesSizes() {
+        MessageCell renderer = new MessageCell();
+        String longBody = String.join(" ", Collections.nCopies(200, "word"));
+        JList<Message> list = list(200, message("a", "joe", "hi"), message("b", "bob", longBody));
+
+        Component first = renderer.getListCellRendererComponent(list, list.getModel().getElementAt(0), 0,
+                false, false);
+        Dimension shortSize = first.getPreferredSize();
+        Component second = renderer.getListCellRendererComponent(list, list.getModel().getElementAt(1), 1,
+                false, false);
+        Dimension longSize = second.getPreferredSize();
+
+        assert first == second;
+        assert longSize.height > shortSize.height;
+        assert renderer.getCachedCount() == 2;
+
+        Component again = renderer.getListCellRendererComponent(list, list.getModel().getElementAt(0), 0,
+                false, false);
+        assert again.getPreferredSize().equals(shortSize);
+    }
+
+    @Test
+    public void testWidthChangeForgetsSizes() {
+        MessageCell renderer = new MessageCell();
+        String longBody = String.join(" ", Collections.nCopies(200, "word"));
+        Message message = message("a", "joe", longBody);
+
+        JList<Message> narrow = list(200, message);
+        int narrowHeight = renderer.getListCellRendererComponent(narrow, message, 0, false, false)
+                .getPreferredSize().height;
+
+        JList<Message> wide = list(2000, message);
+        int wideHeight = renderer.getListCellRendererComponent(wide, message, 0, false, false)
+                .getPreferredSize().height;
+
+        assert wideHeight < narrowHeight;
+    }
+
+    @Test
+    public void testPlaceholderKeepsMessageSize() {
+        MessageCell renderer = new MessageCell();
+        String longBody = String.join(" ", Collections.nCopies(200, "word"));
+        Message message = message("a", "joe", longBody);
+        Message placeholder = MessageWindowModel.placeholderFor(message);
+        JList<Message> list = list(200, message);
+
+        Dimension size = renderer.getListCellRendererComponent(list, message, 0, false, false).getPreferredSize();
+        Dimension placeholderSize = renderer.getListCellRendererComponent(list, placeholder, 0, false, false)
+                .getPreferredSize();
+        assert placeholderSize.equals(size);
+
+        // Nor does a placeholder measured on its own change what is remembered for the message
+        MessageCell fresh = new MessageCell();
+        Dimension loadingSize = fresh.getListCellRendererComponent(list, placeholder, 0, false, false)
+                .getPreferredSize();
+        assert loadingSize.height < size.height;
+        assert fresh.getListCellRendererComponent(list, message, 0, false, false).getPreferredSize().equals(size);
+        assert fresh.getCachedCount() == 1;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+import sh.swisschili.chat.client.MessageWindowModel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.MessageCursor;
+import sh.swisschili.chat.util.ChatProtos.MessageRangeResponse;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class TestMessageWindowModel {
+    /**
+     * A channel's saved messages, oldest first, served the way GetMessageRange pages them
+     */
+    private static class History implements MessageWindowModel.PageLoader {
+        final List<Message> messages = new ArrayList<>();
+        int loads = 0;
+
+        History(int count) {
+            for (int i = 0; i < count; i++) {
+                add(i);
+            }
+        }
+
+        Message add(int i) {
+            Message message = Message.newBuilder()
+                    .setId(String.format("%06d", i))
+                    .setUnixTime(i)
+                    .setBody("message " + i)
+                    .build();
+            messages.add(message);
+            return message;
+        }
+
+        @Override
+        public CompletableFuture<MessageRangeResponse> load(MessageCursor before, int count) {
+            loads++;
+            int end = messages.size();
+            if (before != null) {
+                end = 0;
+                while (end < messages.size() && messages.get(end).getUnixTime() < before.getUnixTime())
+                    end++;
+            }
+
+            MessageRangeResponse.Builder response = MessageRangeResponse.newBuilder();
+            int start = Math.max(end - count, 0);
+            for (int i = end - 1; i >= start; i--) {
+                response.addMessages(messages.get(i));
+            }
+            if (start > 0) {
+                response.setNext(MessageCursor.newBuilder()
+                        .setUnixTime(messages.get(start).getUnixTime())
+                        .setId(messages.get(start).getId()));
+            }
+            return CompletableFuture.completedFuture(response.build());
+        }
+    }
+
+    private static class Recorder implements ListDataListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void intervalAdded(ListDataEvent e) {
+            events.add(String.format("added %d-%d", e.getIndex0(), e.getIndex1()));
+        }
+
+        @Override
+        public void intervalRemoved(ListDataEvent e) {
+            events.add(String.format("removed %d-%d", e.getIndex0(), e.getIndex1()));
+        }
+
+        @Override
+        public void contentsChanged(ListDataEvent e) {
+            events.add(String.format("changed %d-%d", e.getIndex0(), e.getIndex1()));
+        }
+    }
+
+    @Test
+    public void testOlderPagesAreInsertedAsOneEvent() {
+        History history = new History(120);
+        MessageWindowModel model = new MessageWindowModel(history, Runnable::run, 50, 4);
+        Recorder recorder = new Recorder();
+        model.addListDataListener(recorder);
+
+        model.loadOlder(50).join();
+        model.loadOlder(50).join();
+        model.loadOlder(50).join();
+        model.loadOlder(50).join();
+
+        assert recorder.events.size() == 3;
+        assert recorder.events.get(0).equals("added 0-49");
+        assert recorder.events.get(2).equals("added 0-19");
+        assert model.isHistoryExhausted();
+        assert history.loads == 3;
+
+        assert model.getSize() == 120;
+        for (int i = 0; i < 120; i++) {
+            assert model.getElementAt(i).equals(history.messages.get(i));
+        }
+    }
+
+    @Test
+    public void testFarPagesAreEvictedAndRefetched() {
+        History history = new History(1000);
+        MessageWindowModel model = new MessageWindowModel(history, Runnable::run, 50, 4);
+
+        while (!model.isHistoryExhausted()) {
+            model.loadOlder(50).join();
+            // The user is reading the oldest messages as they arrive
+            model.setVisibleRange(0, 10);
+        }
+
+        assert model.getSize() == 1000;
+        assert model.getLoadedPageCount() == 4;
+        assert model.getElementAt(0).equals(history.messages.get(0));
+        assert model.getElementAt(500).equals(MessageWindowModel.placeholderFor(history.messages.get(500)));
+        // The newest page stays for live messages
+        assert model.getElementAt(999).equals(history.messages.get(999));
+
+        Recorder recorder = new Recorder();
+        model.addListDataListener(recorder);
+        model.setVisibleRange(510, 520);
+
+        assert model.getLoadedPageCount() == 4;
+        assert recorder.events.contains("changed 500-549");
+        for (int i = 450; i < 600; i++) {
+            assert model.getElementAt(i).equals(history.messages.get(i));
+        }
+        assert model.getElementAt(0).equals(MessageWindowModel.placeholderFor(history.messages.get(0)));
+    }
+
+    @Test
+    public void testLiveMessagesFillNewPages() {
+        History history = new History(0);
+        MessageWindowModel model = new MessageWindowModel(history, Runnable::run, 10, 3);
+        Recorder recorder = new Recorder();
+        model.addListDataListener(recorder);
+
+        for (int i = 0; i < 100; i++) {
+            model.addMessage(history.add(i));
+        }
+
+        assert model.getSize() == 100;
+        assert model.getPageCount() == 10;
+        assert model.getLoadedPageCount() == 3;
+        assert recorder.events.stream().filter(e -> e.startsWith("added")).count() == 100;
+        assert recorder.events.contains("added 99-99");
+        assert model.getElementAt(99).equals(history.messages.get(99));
+        assert model.getElementAt(0).equals(MessageWindowModel.placeholderFor(history.messages.get(0)));
+
+        model.setVisibleRange(0, 5);
+        assert model.getElementAt(0).equals(history.messages.get(0));
+        assert model.getElementAt(15).equals(history.messages.get(15));
+    }
+
+    @Test
+    public void testLiveMessagesDuringFirstLoadAreNotDuplicated() {
+        History history = new History(20);
+        CompletableFuture<MessageRangeResponse> newest = new CompletableFuture<>();
+        MessageWindowModel model = new MessageWindowModel((before, count) -> newest, Runnable::run, 50, 4);
+
+        CompletableFuture<Void> loaded = model.loadOlder(50);
+        model.addMessage(history.add(20));
+        model.addMessage(history.add(21));
+        // Saved before the newest page was read, so it holds the live messages too
+        newest.complete(history.load(null, 50).join());
+        loaded.join();
+
+        assert model.getSize() == 22;
+        for (int i = 0; i < 22; i++) {
+            assert model.getElementAt(i).equals(history.messages.get(i));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+import sh.swisschili.chat.client.StreamingListModel;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public class TestStreamingListModel {
+    /**
+     * An item with a name as its key and a rank to sort by
+     */
+    private static class Item {
+        final String name;
+        final int rank;
+
+        Item(String name, int rank) {
+            this.name = name;
+            this.rank = rank;
+        }
+    }
+
+    private static class Recorder implements ListDataListener {
+        final List<String> events = new ArrayList<>();
+
+        private void record(String type, ListDataEvent e) {
+            events.add(String.format("%s %d-%d", type, e.getIndex0(), e.getIndex1()));
+        }
+
+        @Override
+        public void intervalAdded(ListDataEvent e) {
+            record("added", e);
+        }
+
+        @Override
+        public void intervalRemoved(ListDataEvent e) {
+            record("removed", e);
+        }
+
+        @Override
+        public void contentsChanged(ListDataEvent e) {
+            record("changed", e);
+        }
+    }
+
+    private static StreamingListModel<String, Item> model(StreamingListModel.SortDirection direction) {
+        return new StreamingListModel<>(item -> item.name, Comparator.comparingInt(item -> item.rank), direction);
+    }
+
+    private static String names(StreamingListModel<String, Item> model) {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < model.getSize(); i++) {
+            names.append(model.getElementAt(i).name);
+        }
+        return names.toString();
+    }
+
+    @Test
+    public void testSortsAndFiresExactEvents() {
+        StreamingListModel<String, Item> model = model(StreamingListModel.SortDirection.ASCENDING);
+        Recorder recorder = new Recorder();
+        model.addListDataListener(recorder);
+
+        model.add(new Item("b", 2));
+        model.add(new Item("d", 4));
+        model.add(new Item("a", 1));
+        model.add(new Item("c", 3));
+        // Ties keep the order they arrived in
+        model.add(new Item("e", 2));
+
+        assert names(model).equals("abecd");
+        assert recorder.events.get(1).equals("added 1-1");
+        assert recorder.events.get(2).equals("added 0-0");
+        assert recorder.events.get(4).equals("added 2-2");
+        assert model.indexOf("c") == 3;
+        assert model.indexOf("z") == -1;
+    }
+
+    @Test
+    public void testReplacingMovesOnlyWhenOrderChanges() {
+        StreamingListModel<String, Item> model = model(StreamingListModel.SortDirection.DESCENDING);
+        for (int i = 0; i < 5; i++) {
+            model.add(new Item(Character.toString((char) ('a' + i)), i));
+        }
+        assert names(model).equals("edcba");
+
+        Recorder recorder = new Recorder();
+        model.addListDataListener(recorder);
+
+        model.add(new Item("c", 2));
+        model.add(new Item("a", 10));
+
+        assert names(model).equals("aedcb");
+        assert model.getSize() == 5;
+        assert recorder.events.get(0).equals("changed 2-2");
+        assert recorder.events.get(1).equals("removed 4-4");
+        assert recorder.events.get(2).equals("added 0-0");
+    }
+
+    @Test
+    public void testLargeShuffledLoad() {
+        StreamingListModel<String, Item> model = model(StreamingListModel.SortDirection.ASCENDING);
+        int size = 10_000;
+        for (int i = 0; i < size; i++) {
+            // Visits every rank once, out of order
+            int rank = (int) ((i * 7919L) % size);
+            model.add(new Item("user" + rank, rank));
+        }
+
+        assert model.getSize() == size;
+        for (int i = 0; i < size; i++) {
+            assert model.getElementAt(i).rank == i;
+        }
+        assert model.indexOf("user1234") == 1234;
+    }
+}
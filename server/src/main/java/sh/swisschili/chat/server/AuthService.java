@@ -28,10 +28,10 @@ import sh.swisschili.chat.util.Errors;
 
 public class AuthService extends AuthGrpc.AuthImplBase {
     private final Logger LOGGER = LoggerFactory.getLogger(AuthService.class);
-    private final ServerDatabase database;
+    private final MetadataStore database;
     private final String host;
 
-    public AuthService(ServerDatabase database, String host) {
+    public AuthService(MetadataStore database, String host) {
         this.database = database;
         this.host = host;
     }
@@ -0,0 +1,279 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of long-lived RabbitMQ channels used for publishing.
+ *
+ * Channels are borrowed for the duration of a single task and returned afterwards, so a publish costs no broker
+ * round-trips once the pool is warm. Exchanges are only declared the first time they are seen. A channel that throws
+ * during a task is closed and replaced lazily, since AMQP closes channels on most protocol errors.
+ */
+public class ChannelPool implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelPool.class);
+
+    public static final int DEFAULT_MAX_CHANNELS = 16;
+    public static final long DEFAULT_BORROW_TIMEOUT_MS = 5000;
+
+    private final Connection conn;
+    private final int maxChannels;
+    private final long borrowTimeoutMs;
+
+    private final BlockingQueue<Channel> idle;
+    private final Set<String> declaredExchanges = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger open = new AtomicInteger(0);
+
+    private final AtomicLong borrowed = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong discarded = new AtomicLong(0);
+
+    public interface ChannelTask<T> {
+        T run(Channel channel) throws IOException;
+    }
+
+    public ChannelPool(Connection conn) {
+        this(conn, DEFAULT_MAX_CHANNELS, DEFAULT_BORROW_TIMEOUT_MS);
+    }
+
+    /**
+     * @param conn            The connection channels are opened on
+     * @param maxChannels     Maximum number of channels open at once
+     * @param borrowTimeoutMs How long to wait for a free channel before failing
+     */
+    public ChannelPool(Connection conn, int maxChannels, long borrowTimeoutMs) {
+        if (maxChannels < 1)
+            throw new IllegalArgumentException("maxChannels: " + maxChannels);
+
+        this.conn = conn;
+        this.maxChannels = maxChannels;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.idle = new ArrayBlockingQueue<>(maxChannels);
+    }
+
+    /**
+     * Run a task with a pooled channel, returning the channel to the pool afterwards.
+     *
+     * @param task The task to run
+     * @return The value returned by the task
+     * @throws IOException If no channel could be acquired or the task failed
+     */
+    public <T> T withChannel(ChannelTask<T> task) throws IOException {
+        Channel channel = borrow();
+        boolean healthy = false;
+        try {
+            T result = task.run(channel);
+            healthy = true;
+            return result;
+        } finally {
+            release(channel, healthy);
+        }
+    }
+
+    /**
+     * Declare a fanout exchange unless it has already been declared through this pool.
+     *
+     * @param channel  The channel to declare on
+     * @param exchange The exchange name
+     */
+    public void declareExchange(Channel channel, String exchange) throws IOException {
+        if (declaredExchanges.contains(exchange))
+            return;
+
+        channel.exchangeDeclare(exchange, "fanout");
+        declaredExchanges.add(exchange);
+    }
+
+    /**
+     * Publish to a fanout exchange, declaring it first if needed.
+     *
+     * @param exchange The exchange to publish to
+     * @param body     The message body
+     */
+    public void publish(String exchange, byte[] body) throws IOException {
+        withChannel(channel -> {
+            declareExchange(channel, exchange);
+            channel.basicPublish(exchange, "", null, body);
+            return null;
+        });
+    }
+
+    /**
+     * Publish several messages to a fanout exchange on one channel, declaring it first if needed.
+     *
+     * @param exchange The exchange to publish to
+     * @param bodies   The message bodies, in order
+     */
+    public void publishAll(String exchange, List<byte[]> bodies) throws IOException {
+        withChannel(channel -> {
+            declareExchange(channel, exchange);
+            for (byte[] body : bodies) {
+                channel.basicPublish(exchange, "", null, body);
+            }
+            return null;
+        });
+    }
+
+    private Channel borrow() throws IOException {
+        long start = System.nanoTime();
+        try {
+            Channel channel = idle.poll();
+            while (channel == null || !channel.isOpen()) {
+                if (channel != null)
+                    discard(channel);
+
+                channel = tryCreate();
+                if (channel != null)
+                    break;
+
+                long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (waited >= borrowTimeoutMs)
+                    throw new IOException("Timed out waiting for a RabbitMQ channel");
+
+                channel = idle.poll(borrowTimeoutMs - waited, TimeUnit.MILLISECONDS);
+            }
+            return channel;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a RabbitMQ channel", e);
+        } finally {
+            borrowed.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private Channel tryCreate() throws IOException {
+        while (true) {
+            int current = open.get();
+            if (current >= maxChannels)
+                return null;
+            if (open.compareAndSet(current, current + 1))
+                break;
+        }
+
+        try {
+            Channel channel = conn.createChannel();
+            if (channel == null)
+                throw new IOException("RabbitMQ channel limit reached");
+
+            created.incrementAndGet();
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            open.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void release(Channel channel, boolean healthy) {
+        if (healthy && channel.isOpen() && idle.offer(channel))
+            return;
+
+        discard(channel);
+    }
+
+    private void discard(Channel channel) {
+        open.decrementAndGet();
+        discarded.incrementAndGet();
+
+        // A failed channel may have lost exchanges declared on it, so re-declare them on demand
+        declaredExchanges.clear();
+
+        try {
+            if (channel.isOpen())
+                channel.close();
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            LOGGER.warn("Could not close discarded RabbitMQ channel", e);
+        }
+    }
+
+    /**
+     * @return Number of channels currently open, idle or borrowed
+     */
+    public int getOpenChannels() {
+        return open.get();
+    }
+
+    /**
+     * @return Number of channels sitting idle in the pool
+     */
+    public int getIdleChannels() {
+        return idle.size();
+    }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    /**
+     * @return Total number of borrows since the pool was created
+     */
+    public long getBorrowCount() {
+        return borrowed.get();
+    }
+
+    /**
+     * @return Total time spent waiting to borrow a channel, in nanoseconds
+     */
+    public long getBorrowWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /**
+     * @return Total channels opened since the pool was created
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return Total channels closed because they failed or could not be returned
+     */
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    @Override
+    public void close() {
+        Channel channel;
+        while ((channel = idle.poll()) != null) {
+            discard(channel);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long count = borrowed.get();
+        return String.format("ChannelPool[open=%d, idle=%d, max=%d, borrows=%d, avgWaitUs=%d, created=%d, discarded=%d]",
+                open.get(), idle.size(), maxChannels, count,
+                count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos.get()) / count,
+                created.get(), discarded.get());
+    }
+}
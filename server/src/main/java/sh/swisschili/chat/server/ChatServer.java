@@ -21,28 +21,92 @@ package sh.swisschili.chat.server;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sh.swisschili.chat.util.Constants;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class ChatServer {
     private final int port;
+    private final long retentionIntervalMs;
     private final Server server;
+    private final ChatService chatService;
+    private final MessageStore messageStore;
+    private final ServerExecutors executors;
+    private final RetentionEngine retention;
+    private final int metricsPort;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsServer metricsServer = null;
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatServer.class.getName());
 
     public ChatServer(ServerDatabase db, Args args) throws IOException, TimeoutException {
         this.port = args.port;
-        ChatService chatService = new ChatService(args.mqHost, args.mqPort, db);
+        this.retentionIntervalMs = args.retentionIntervalMs;
+        this.metricsPort = args.metricsPort;
+
+        if (args.messageStore == MessageStoreType.LOG) {
+            Path directory = Paths.get(args.dataDir, "messages");
+            LOGGER.info("Storing messages in " + directory.toAbsolutePath());
+            messageStore = new LogMessageStore(directory);
+        } else {
+            messageStore = db;
+        }
+
+        MessageBus bus;
+        if (args.bus == BusType.IN_PROCESS) {
+            LOGGER.info("Using in-process message bus, only clients of this instance will receive messages");
+            bus = new InProcessMessageBus();
+        } else {
+            bus = new RabbitMessageBus(args.mqHost, args.mqPort, args.mqChannels);
+        }
+
+        chatService = new ChatService(bus, db, messageStore,
+                new MessageWriter(messageStore, args.writeBatch, args.writeLingerMs, args.writeQueue),
+                new SignatureVerifier(args.cryptoThreads, args.cryptoQueue));
         chatService.setAllowUnsignedMessages(args.unsafe);
-        ServerBuilder<?> builder = ServerBuilder
+        chatService.setAckMode(args.ackMode);
+        chatService.setStreamBufferSize(args.streamBuffer);
+        chatService.setOverflowPolicy(args.overflowPolicy);
+        chatService.setMaxReplay(args.maxReplay);
+        chatService.configurePresence(args.presenceFlushMs, args.presenceLeaseMs);
+        if (args.tailCache > 0)
+            chatService.enableTailCache(args.tailCache, args.tailCacheMb * 1024L * 1024L);
+        // Deletes go through the tail cache, if there is one, so it never serves pruned messages
+        retention = createRetentionEngine(db, chatService.getHistoryStore(), args);
+
+        executors = new ServerExecutors(args.bossThreads, args.workerThreads, args.appThreads, args.appQueue,
+                args.virtualThreads);
+        NettyServerBuilder builder = NettyServerBuilder
                 .forPort(port)
-                .addService(chatService)
-                .addService(new AuthService(db, args.host));
+                .bossEventLoopGroup(executors.getBossGroup())
+                .workerEventLoopGroup(executors.getWorkerGroup())
+                .channelType(NioServerSocketChannel.class)
+                .executor(executors.getAppExecutor());
+
+        AuthService authService = new AuthService(db, args.host);
+        if (metricsPort > 0) {
+            MetricsInterceptor interceptor = new MetricsInterceptor();
+            metrics.register(interceptor);
+            builder.addService(ServerInterceptors.intercept(chatService, interceptor))
+                    .addService(ServerInterceptors.intercept(authService, interceptor));
+            registerMetrics(db, bus);
+        } else {
+            builder.addService(chatService)
+                    .addService(authService);
+        }
 
         if (args.ssl) {
             builder = builder.useTransportSecurity(new File(args.certificate), new File(args.privateKey));
@@ -54,18 +118,157 @@ public class ChatServer {
     public void start() throws IOException {
         LOGGER.info("Starting server on port " + port);
         server.start();
+        if (retention != null)
+            retention.start(retentionIntervalMs);
+        if (metricsPort > 0)
+            metricsServer = new MetricsServer(metrics, metricsPort);
+    }
+
+    /**
+     * Wait until the server has shut down. Every other thread the server starts is a daemon, so this is what keeps
+     * the JVM running.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void blockUntilShutdown() throws InterruptedException {
+        server.awaitTermination();
+    }
+
+    private void registerMetrics(ServerDatabase db, MessageBus bus) {
+        chatService.registerMetrics(metrics);
+
+        metrics.gauge("chat_app_queue_depth", "Requests waiting for a handler thread", executors::getQueueDepth);
+        metrics.gauge("chat_app_active_threads", "Threads running request handlers", executors::getActiveThreads);
+        metrics.gauge("chat_app_pool_size", "Request handler threads", executors::getPoolSize);
+        metrics.counter("chat_app_completed_total", "Request handler tasks run", executors::getCompletedCount);
+        metrics.counter("chat_app_rejected_total", "Request handler tasks rejected because the queue was full",
+                executors::getRejectedCount);
+
+        if (bus instanceof RabbitMessageBus) {
+            ChannelPool pool = ((RabbitMessageBus) bus).getChannelPool();
+            metrics.gauge("chat_rabbitmq_channels_open", "Pooled RabbitMQ channels, idle or borrowed",
+                    pool::getOpenChannels);
+            metrics.gauge("chat_rabbitmq_channels_idle", "RabbitMQ channels idle in the pool", pool::getIdleChannels);
+            metrics.gauge("chat_rabbitmq_channels_max", "Most pooled RabbitMQ channels", pool::getMaxChannels);
+            metrics.counter("chat_rabbitmq_borrows_total", "RabbitMQ channels borrowed", pool::getBorrowCount);
+            metrics.counter("chat_rabbitmq_borrow_wait_seconds_total", "Time spent waiting for a RabbitMQ channel",
+                    () -> pool.getBorrowWaitNanos() / 1e9);
+            metrics.counter("chat_rabbitmq_channels_discarded_total", "RabbitMQ channels closed after failing",
+                    pool::getDiscardedCount);
+        } else if (bus instanceof InProcessMessageBus) {
+            InProcessMessageBus inProcess = (InProcessMessageBus) bus;
+            metrics.counter("chat_bus_published_total", "Messages published", inProcess::getPublishedCount);
+            metrics.counter("chat_bus_delivered_total", "Messages delivered to subscribers",
+                    inProcess::getDeliveredCount);
+        }
+
+        metrics.gauge("chat_mongo_connections", "Connections open to MongoDB", db::getPoolConnections);
+        metrics.gauge("chat_mongo_connections_checked_out", "MongoDB connections in use", db::getPoolCheckedOut);
+
+        if (messageStore instanceof LogMessageStore) {
+            metrics.gauge("chat_log_store_open_channels", "Channels whose message logs are open",
+                    ((LogMessageStore) messageStore)::getOpenChannels);
+        }
+
+        if (retention != null) {
+            metrics.counter("chat_retention_deleted_total", "Messages pruned", retention::getDeletedCount);
+            metrics.counter("chat_retention_archived_total", "Messages archived before being pruned",
+                    retention::getArchivedCount);
+            metrics.counter("chat_retention_failures_total", "Channels that could not be pruned",
+                    retention::getFailureCount);
+            metrics.counter("chat_retention_passes_total", "Retention passes finished", retention::getPassCount);
+            metrics.gauge("chat_retention_backlog", "Messages past their retention left for a later pass",
+                    retention::getBacklog);
+            metrics.gauge("chat_retention_last_pass_seconds", "How long the last retention pass took",
+                    () -> retention.getLastPassMs() / 1e3);
+            metrics.gauge("chat_retention_lag_seconds", "Time since the last retention pass finished",
+                    () -> retention.getLagMs() / 1e3);
+        }
+    }
+
+    /**
+     * Stop accepting calls, give calls in flight a few seconds to finish, then release broker and database resources.
+     */
+    public void stop() {
+        LOGGER.info("Stopping server");
+        server.shutdown();
+        try {
+            if (!server.awaitTermination(5, TimeUnit.SECONDS))
+                server.shutdownNow();
+        } catch (InterruptedException e) {
+            server.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (metricsServer != null)
+            metricsServer.close();
+        chatService.close();
+        if (retention != null)
+            retention.close();
+        messageStore.close();
+        LOGGER.info(executors.toString());
+        executors.close();
+    }
+
+    /**
+     * @return An engine pruning messages by the configured policies, or null if every channel keeps everything
+     */
+    private static RetentionEngine createRetentionEngine(ServerDatabase db, MessageStore messageStore, Args args)
+            throws IOException {
+        RetentionPolicy defaultPolicy = RetentionPolicy.parse(args.retention);
+        if (defaultPolicy.isUnlimited() && args.retentionPolicies == null)
+            return null;
+
+        MessageArchive archive = null;
+        if (args.archiveDir != null) {
+            LOGGER.info("Archiving pruned messages in " + Paths.get(args.archiveDir).toAbsolutePath());
+            archive = new MessageArchive(Paths.get(args.archiveDir));
+        }
+
+        RetentionEngine engine = new RetentionEngine(messageStore, db, defaultPolicy, archive, args.retentionRate);
+        if (args.retentionPolicies != null) {
+            Properties policies = new Properties();
+            try (Reader reader = Files.newBufferedReader(Paths.get(args.retentionPolicies))) {
+                policies.load(reader);
+            }
+            engine.setPolicies(policies);
+        }
+
+        return engine;
     }
 
     private static class Args {
         @Parameter(names = {"--port", "-p"}, description = "Port to run server on")
         private Integer port = Constants.DEFAULT_SERVER_PORT;
 
+        @Parameter(names = "--boss-threads", description = "Netty threads accepting connections")
+        private Integer bossThreads = ServerExecutors.DEFAULT_BOSS_THREADS;
+
+        @Parameter(names = "--worker-threads", description = "Netty threads doing network I/O (0: twice the cores)")
+        private Integer workerThreads = ServerExecutors.DEFAULT_WORKER_THREADS;
+
+        @Parameter(names = "--app-threads", description = "Maximum threads running request handlers")
+        private Integer appThreads = ServerExecutors.DEFAULT_APP_THREADS;
+
+        @Parameter(names = "--app-queue", description = "Maximum requests waiting for a handler thread")
+        private Integer appQueue = ServerExecutors.DEFAULT_APP_QUEUE;
+
+        @Parameter(names = "--virtual-threads",
+                description = "Run each request handler on a virtual thread when the Java runtime supports them")
+        private Boolean virtualThreads = false;
+
+        @Parameter(names = "--bus",
+                description = "How messages reach subscribers: RABBITMQ, or IN_PROCESS for a single server")
+        private BusType bus = BusType.RABBITMQ;
+
         @Parameter(names = "--mq-host", description = "RabbitMQ host")
         private String mqHost = "localhost";
 
         @Parameter(names = "--mq-port", description = "RabbitMQ port")
         private Integer mqPort = 5672;
 
+        @Parameter(names = "--mq-channels", description = "Maximum pooled RabbitMQ publisher channels")
+        private Integer mqChannels = ChannelPool.DEFAULT_MAX_CHANNELS;
+
         @Parameter(names = { "--db-url", "-d" }, description = "MongoDB connection url", required = true)
         private String mongoUrl;
 
@@ -75,6 +278,84 @@ public class ChatServer {
         @Parameter(names = { "--unsafe", "-u" }, description = "Forego signature validation (DO NOT use in production)")
         private Boolean unsafe = false;
 
+        @Parameter(names = "--write-batch", description = "Maximum messages saved to the database at once")
+        private Integer writeBatch = MessageWriter.DEFAULT_MAX_BATCH;
+
+        @Parameter(names = "--write-linger-ms", description = "Maximum time a message waits for its batch to fill")
+        private Long writeLingerMs = MessageWriter.DEFAULT_LINGER_MS;
+
+        @Parameter(names = "--write-queue", description = "Maximum messages waiting to be saved")
+        private Integer writeQueue = MessageWriter.DEFAULT_MAX_PENDING;
+
+        @Parameter(names = "--ack", description = "Acknowledge and publish messages once PERSISTED, or once ENQUEUED "
+                + "and given a sequence number but not yet saved")
+        private MessageWriter.AckMode ackMode = MessageWriter.AckMode.PERSISTED;
+
+        @Parameter(names = "--crypto-threads", description = "Threads used to verify message signatures")
+        private Integer cryptoThreads = SignatureVerifier.DEFAULT_THREADS;
+
+        @Parameter(names = "--crypto-queue", description = "Maximum signatures waiting to be verified")
+        private Integer cryptoQueue = SignatureVerifier.DEFAULT_QUEUE_SIZE;
+
+        @Parameter(names = "--stream-buffer", description = "Items buffered per stream for slow clients")
+        private Integer streamBuffer = StreamBuffer.DEFAULT_CAPACITY;
+
+        @Parameter(names = "--overflow-policy",
+                description = "What to do when a slow client's status buffer fills: DROP_OLDEST, COALESCE or "
+                        + "DISCONNECT. Streams carrying messages always disconnect")
+        private StreamBuffer.OverflowPolicy overflowPolicy = StreamBuffer.OverflowPolicy.COALESCE;
+
+        @Parameter(names = "--max-replay",
+                description = "Most missed messages replayed to a reconnecting client before it must reload instead")
+        private Integer maxReplay = SequenceReplay.DEFAULT_MAX_MESSAGES;
+
+        @Parameter(names = "--message-store",
+                description = "Where to store messages: MONGO, or LOG for an embedded log in --data-dir")
+        private MessageStoreType messageStore = MessageStoreType.MONGO;
+
+        @Parameter(names = "--data-dir", description = "Directory for embedded storage")
+        private String dataDir = "data";
+
+        @Parameter(names = "--tail-cache",
+                description = "Recent messages kept in memory for each channel being read (0 to disable)")
+        private Integer tailCache = TailCache.DEFAULT_MESSAGES_PER_CHANNEL;
+
+        @Parameter(names = "--tail-cache-mb", description = "Memory cap for the tail cache across all channels")
+        private Long tailCacheMb = TailCache.DEFAULT_MAX_BYTES / (1024 * 1024);
+
+        @Parameter(names = "--presence-flush-ms",
+                description = "How often user statuses are saved, only the latest of each is written (0: every change)")
+        private Long presenceFlushMs = PresenceTable.DEFAULT_FLUSH_MS;
+
+        @Parameter(names = "--presence-lease-ms",
+                description = "How long a user stays online without a heartbeat (0: until they disconnect)")
+        private Long presenceLeaseMs = PresenceTable.DEFAULT_LEASE_MS;
+
+        @Parameter(names = "--retention",
+                description = "Default limits on channel history, e.g. age=30d,count=100000,size=512m (default: none)")
+        private String retention = "";
+
+        @Parameter(names = "--retention-policies",
+                description = "Properties file of group.<name> and channel.<id> policies overriding --retention")
+        private String retentionPolicies = null;
+
+        @Parameter(names = "--retention-interval-ms", description = "Time between passes pruning old messages")
+        private Long retentionIntervalMs = RetentionEngine.DEFAULT_INTERVAL_MS;
+
+        @Parameter(names = "--retention-rate", description = "Most old messages deleted per second")
+        private Integer retentionRate = RetentionEngine.DEFAULT_DELETES_PER_SECOND;
+
+        @Parameter(names = "--archive-dir", description = "Directory to archive pruned messages in (default: none)")
+        private String archiveDir = null;
+
+        @Parameter(names = "--metrics-port",
+                description = "Port to serve Prometheus metrics on at /metrics (0: no metrics)")
+        private Integer metricsPort = 0;
+
+        @Parameter(names = "--check-indexes",
+                description = "Explain database queries at startup and WARN or FAIL if any scan a whole collection")
+        private IndexCheck checkIndexes = IndexCheck.WARN;
+
         @Parameter(names = { "--ssl", "-s" }, description = "Use SSL")
         private Boolean ssl = false;
 
@@ -85,7 +366,39 @@ public class ChatServer {
         private String privateKey = null;
     }
 
-    public static void main(String[] argv) throws IOException, TimeoutException {
+    private enum BusType {
+        RABBITMQ,
+        IN_PROCESS
+    }
+
+    private enum MessageStoreType {
+        MONGO,
+        LOG
+    }
+
+    private enum IndexCheck {
+        OFF,
+        WARN,
+        FAIL
+    }
+
+    private static void checkQueryPlans(ServerDatabase db, IndexCheck check) {
+        if (check == IndexCheck.OFF)
+            return;
+
+        List<String> problems = db.checkQueryPlans();
+        if (problems.isEmpty()) {
+            LOGGER.info("All database queries use an index");
+            return;
+        }
+
+        problems.forEach(problem -> LOGGER.warn("Query plan check: " + problem));
+
+        if (check == IndexCheck.FAIL)
+            throw new IllegalStateException(String.format("%d database queries do not use an index", problems.size()));
+    }
+
+    public static void main(String[] argv) throws IOException, TimeoutException, InterruptedException {
         Args args = new Args();
         JCommander.newBuilder()
                 .addObject(args)
@@ -97,7 +410,11 @@ public class ChatServer {
         LOGGER.info("Launching server");
 
         ServerDatabase db = new ServerDatabase(args.mongoUrl);
+        db.ensureIndexes();
+        checkQueryPlans(db, args.checkIndexes);
         ChatServer server = new ChatServer(db, args);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown"));
         server.start();
+        server.blockUntilShutdown();
     }
 }
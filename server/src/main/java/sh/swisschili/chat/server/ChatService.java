@@ -18,11 +18,10 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 
 package sh.swisschili.chat.server;
 
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.DeliverCallback;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.bson.types.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,173 +32,330 @@ import sh.swisschili.chat.util.ChatProtos;
 import java.io.IOException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class ChatService extends ChatGrpc.ChatImplBase {
+public class ChatService extends ChatGrpc.ChatImplBase implements AutoCloseable {
     private final Logger LOGGER = LoggerFactory.getLogger(ChatService.class.getName());
-    private final Connection conn;
-    private final ServerDatabase db;
+    private final MessageBus bus;
+    private final SubscriptionHub<ChatProtos.Message> messageHub;
+    private final SubscriptionHub<ChatProtos.UserStatus> statusHub;
+    private final SubscriptionHub<ChatProtos.Channel> channelHub;
+    private final Set<GroupEventDispatcher> groupStreams = ConcurrentHashMap.newKeySet();
+    private PresenceTable presence;
+    private final MetadataStore db;
+    private final MessageStore messageStore;
+    private MessageStore historyStore;
+    private TailCache tailCache;
+    private final MessageWriter messageWriter;
+    private final ExecutorService publishExecutor;
+    private final MessagePublisher publisher;
     private final ServerPool pool = new ServerPool();
-    private final Map<ChatProtos.User, PublicKey> keys = new HashMap<>();
-    private final ReadWriteLock keysLock = new ReentrantReadWriteLock();
+    private final PublicKeyCache keyCache;
+    private final SignatureVerifier verifier;
+
+    /**
+     * Most messages accepted by one sendMessages call
+     */
+    public static final int MAX_SEND_BATCH = 1024;
 
     private boolean allowUnsignedMessages = false;
+    private int maxReplay = SequenceReplay.DEFAULT_MAX_MESSAGES;
+    private MessageWriter.AckMode ackMode = MessageWriter.AckMode.PERSISTED;
+    private int streamBufferSize = StreamBuffer.DEFAULT_CAPACITY;
+    private StreamBuffer.OverflowPolicy overflowPolicy = StreamBuffer.OverflowPolicy.COALESCE;
 
     public ChatService(@NotNull String mqHost, int port, ServerDatabase db) throws IOException, TimeoutException {
+        this(new RabbitMessageBus(mqHost, port, ChannelPool.DEFAULT_MAX_CHANNELS), db, db, new MessageWriter(db),
+                new SignatureVerifier());
+    }
+
+    /**
+     * @param bus          Carries messages and statuses between servers, closed along with this service
+     * @param messageStore Where history is read from, messageWriter must write to the same store
+     */
+    public ChatService(MessageBus bus, MetadataStore db, MessageStore messageStore, MessageWriter messageWriter,
+                       SignatureVerifier verifier) {
         super();
-        ConnectionFactory connectionFactory = new ConnectionFactory();
-        connectionFactory.setHost(mqHost);
-        connectionFactory.setPort(port);
-        conn = connectionFactory.newConnection();
+        this.bus = bus;
+        messageHub = new SubscriptionHub<>(bus, ChatProtos.Message.parser());
+        statusHub = new SubscriptionHub<>(bus, ChatProtos.UserStatus.parser());
+        channelHub = new SubscriptionHub<>(bus, ChatProtos.Channel.parser());
         this.db = db;
+        presence = new PresenceTable(bus, statusHub, db, PresenceTable.DEFAULT_FLUSH_MS,
+                PresenceTable.DEFAULT_LEASE_MS);
+        this.messageStore = messageStore;
+        this.historyStore = messageStore;
+        this.messageWriter = messageWriter;
+        this.verifier = verifier;
+        publishExecutor = ServerExecutors.newPublishExecutor(ServerExecutors.DEFAULT_PUBLISH_THREADS);
+        publisher = new MessagePublisher(bus, publishExecutor);
+        messageWriter.setPublisher(publisher, ackMode);
+        keyCache = new PublicKeyCache(this::fetchUserPublicKey);
     }
 
-    private CompletableFuture<PublicKey> getUserPublicKey(ChatProtos.User user) {
+    /**
+     * Ask a user's authentication server for their public key. Only called by the key cache.
+     */
+    private CompletableFuture<PublicKey> fetchUserPublicKey(ChatProtos.User user) {
         CompletableFuture<PublicKey> future = new CompletableFuture<>();
 
-        LOGGER.info("Getting public key for " + user);
+        LOGGER.debug("Public key not cached, querying server for details");
 
-        Lock lock = keysLock.readLock();
-        lock.lock();
-        boolean containsKey = keys.containsKey(user);
-
-        if (containsKey) {
-            LOGGER.info("Public key cached");
-            future.complete(keys.get(user));
-            lock.unlock();
-        } else {
-            lock.unlock();
-            LOGGER.info("Public key not cached, querying server for details");
-
-            StreamObserver<ChatProtos.UserPublicKey> listener = new StreamObserver<ChatProtos.UserPublicKey>() {
-                @Override
-                public void onNext(ChatProtos.UserPublicKey value) {
-                    try {
-                        LOGGER.info("Got public key from server");
-                        PublicKey publicKey = SignedAuth.pubKeyFromBytes(value.getPublicKey().toByteArray());
-
-                        Lock writeLock = keysLock.writeLock();
-                        writeLock.lock();
-                        keys.put(user, publicKey);
-                        writeLock.unlock();
-
-                        future.complete(publicKey);
-                    } catch (InvalidKeySpecException e) {
-                        LOGGER.warn(String.format("Could not decode public key for %s", user.getName()));
-                        onError(e);
-                    }
+        StreamObserver<ChatProtos.UserPublicKey> listener = new StreamObserver<ChatProtos.UserPublicKey>() {
+            @Override
+            public void onNext(ChatProtos.UserPublicKey value) {
+                try {
+                    LOGGER.debug("Got public key from server");
+                    future.complete(SignedAuth.pubKeyFromBytes(value.getPublicKey().toByteArray()));
+                } catch (InvalidKeySpecException e) {
+                    LOGGER.warn(String.format("Could not decode public key for %s", user.getName()));
+                    onError(e);
                 }
+            }
 
-                @Override
-                public void onError(Throwable t) {
-                    future.completeExceptionally(t);
-                }
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
 
-                @Override
-                public void onCompleted() {
-                    LOGGER.info("Completed public key request");
-                }
-            };
+            @Override
+            public void onCompleted() {
+                LOGGER.debug("Completed public key request");
+            }
+        };
 
-            pool.authStubFor(user.getHost())
-                    .getUserPublicKey(ChatProtos.PublicKeyRequest.newBuilder()
-                                    .setUser(user).build(),
-                            listener);
-        }
+        pool.authStubFor(user.getHost())
+                .getUserPublicKey(ChatProtos.PublicKeyRequest.newBuilder()
+                                .setUser(user).build(),
+                        listener);
 
         return future;
     }
 
-    private Channel getChannel(String name) throws IOException {
-        Channel channel = conn.createChannel();
-        channel.exchangeDeclare(name, "fanout");
-        return channel;
-    }
-
-    private String getQueue(Channel channel, String exchangeName) throws IOException {
-        String queueName = channel.queueDeclare().getQueue();
-        channel.queueBind(queueName, exchangeName, "");
-        return queueName;
-    }
-
     @Override
-    public void getMessages(ChatProtos.Channel request, StreamObserver<ChatProtos.Message> responseObserver) {
+    public void getMessages(ChatProtos.GetMessagesRequest request,
+                            StreamObserver<ChatProtos.Message> responseObserver) {
         try {
-            String exchangeName = ServerConstants.getChannelExchange(request.getId());
-            Channel channel = getChannel(exchangeName);
-            String queueName = getQueue(channel, exchangeName);
-
-            LOGGER.info("Connected to RabbitMQ channel");
-
-            DeliverCallback deliverCallback = (consumerTag, message) -> {
-                ChatProtos.Message m = ChatProtos.Message.parseFrom(message.getBody());
-                LOGGER.info("Message received from " + m.getSender().getName());
+            String exchangeName = ServerConstants.getChannelExchange(request.getChannel().getId());
+            boolean resuming = request.getAfterSeq() > 0;
+
+            // responseObserver never finishes, the subscription is closed once the client disconnects. A dropped message
+            // would go unnoticed, so a client that falls behind is disconnected and replays what it missed instead.
+            StreamBuffer<ChatProtos.Message> buffer = new StreamBuffer<>(
+                    (ServerCallStreamObserver<ChatProtos.Message>) responseObserver,
+                    streamBufferSize, StreamBuffer.OverflowPolicy.DISCONNECT, null);
+            if (resuming)
+                buffer.hold();
+
+            SubscriptionHub<ChatProtos.Message>.Subscription subscription = messageHub.subscribe(exchangeName, buffer);
+            buffer.whenClosed(() -> {
+                LOGGER.debug("Client disconnected");
+                subscription.close();
+            });
 
-                // responseObserver never finishes
-                try {
-                    responseObserver.onNext(m);
-                } catch (Exception e) {
-                    LOGGER.info("Client disconnected");
-                    // If the stream fails, unsubscribe from the message queue
-                    channel.basicCancel(consumerTag);
-                }
-            };
+            if (resuming) {
+                // Read only once subscribed, so a message saved after the last page is read still arrives live
+                SequenceReplay replay = new SequenceReplay(historyStore, request.getChannel(), request.getAfterSeq(),
+                        maxReplay);
+                buffer.replay(replay, message -> replay.contains(message.getSeq()));
+            }
 
-            channel.basicConsume(queueName, true, deliverCallback, consumerTag -> {
-            });
+            LOGGER.debug("Subscribed to channel");
         } catch (IOException e) {
-            LOGGER.error("Could not create RabbitMQ channel in getMessages");
+            LOGGER.error("Could not subscribe to channel in getMessages");
             responseObserver.onError(e);
         }
     }
 
     @Override
     public void sendMessage(ChatProtos.OutgoingMessage request, StreamObserver<ChatProtos.MessageResponse> responseObserver) {
-        CompletableFuture<PublicKey> publicKeyFuture = getUserPublicKey(request.getMessage().getSender());
-
-        publicKeyFuture.thenAccept(publicKey -> {
-            if (!allowUnsignedMessages) {
-                if (!SignedAuth.verify(publicKey, request.getSignature().toByteArray(), request.getMessage().toByteArray(),
-                        request.getChannel().toByteArray())
-                ) {
-                    LOGGER.info("Signature invalid, throwing SignedAuthenticationError");
-                    responseObserver.onError(new SignedAuthenticationError());
-                    return;
-                }
+        CompletableFuture<PublicKey> publicKeyFuture = keyCache.get(request.getMessage().getSender());
+
+        // Verification runs on the crypto threads so it never blocks gRPC or network threads
+        publicKeyFuture.thenCompose(publicKey -> allowUnsignedMessages
+                ? CompletableFuture.completedFuture(true)
+                : verifier.verify(new SignatureVerifier.Request(publicKey, request.getSignature().toByteArray(),
+                        request.getMessage().toByteArray(), request.getChannel().toByteArray()))
+        ).thenAccept(valid -> {
+            if (!valid) {
+                // The cached key is kept, a new key is picked up when it is refreshed rather than refetched for
+                // every bad signature
+                LOGGER.info("Signature invalid, throwing SignedAuthenticationError");
+                responseObserver.onError(new SignedAuthenticationError());
+                return;
             }
 
-            try {
-                String exchangeName = ServerConstants.getChannelExchange(request.getChannel().getId());
-                Channel channel = getChannel(exchangeName);
+            ChatProtos.Message message = ChatProtos.Message.newBuilder(request.getMessage())
+                    .setId(new ObjectId().toString())
+                    .build();
+            MessageWriter.Pending pending = messageWriter.write(request.getChannel(), message);
+
+            if (ackMode == MessageWriter.AckMode.ENQUEUED) {
+                pending.getPersisted().exceptionally(t -> {
+                    LOGGER.error("Acknowledged message could not be saved", t);
+                    return null;
+                });
+            }
+
+            // The writer publishes messages in sequence order, once saved or, when acknowledging early, once sequenced
+            pending.getPublished().thenAccept(sequenced -> {
+                responseObserver.onNext(ChatProtos.MessageResponse.newBuilder()
+                        .setId(sequenced.getId())
+                        .setSeq(sequenced.getSeq())
+                        .build());
+                responseObserver.onCompleted();
+            }).exceptionally(t -> {
+                LOGGER.error("Could not save or publish message in sendMessage");
+                responseObserver.onError(t instanceof CompletionException ? t.getCause() : t);
+                return null;
+            });
+        }).exceptionally(t -> {
+            LOGGER.warn("Could not get public key or verify signature in sendMessage");
+            responseObserver.onError(t instanceof CompletionException ? t.getCause() : t);
+
+            return null;
+        });
+    }
+
+    /**
+     * Send a batch of messages. Each sender's key is looked up once, all signatures are verified together on the crypto
+     * threads, the messages are saved through the writer's batches, and each channel's messages are published together
+     * where they can be. Every message gets its own result, one bad signature does not fail the rest of the batch.
+     */
+    @Override
+    public void sendMessages(ChatProtos.SendMessagesRequest request,
+                             StreamObserver<ChatProtos.SendMessagesResponse> responseObserver) {
+        List<ChatProtos.OutgoingMessage> outgoing = request.getMessagesList();
+        if (outgoing.size() > MAX_SEND_BATCH) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription(String.format("At most %d messages can be sent at once", MAX_SEND_BATCH))
+                    .asRuntimeException());
+            return;
+        }
+
+        verifyAll(outgoing).thenAccept(valid -> {
+            ChatProtos.Message[] messages = new ChatProtos.Message[outgoing.size()];
+            ChatProtos.Status[] statuses = new ChatProtos.Status[outgoing.size()];
+            List<CompletableFuture<?>> ready = new ArrayList<>(outgoing.size());
+
+            for (int i = 0; i < outgoing.size(); i++) {
+                ChatProtos.OutgoingMessage message = outgoing.get(i);
+                if (!valid[i]) {
+                    statuses[i] = ChatProtos.Status.PERMISSION_DENIED;
+                    continue;
+                }
 
-                ChatProtos.Message message = ChatProtos.Message.newBuilder(request.getMessage())
-                        .setId(db.saveMessage(request.getChannel(), request.getMessage()).toString())
+                messages[i] = ChatProtos.Message.newBuilder(message.getMessage())
+                        .setId(new ObjectId().toString())
                         .build();
+                statuses[i] = ChatProtos.Status.OK;
+
+                MessageWriter.Pending pending = messageWriter.write(message.getChannel(), messages[i]);
+                if (ackMode == MessageWriter.AckMode.ENQUEUED) {
+                    pending.getPersisted().exceptionally(t -> {
+                        LOGGER.error("Acknowledged message could not be saved", t);
+                        return null;
+                    });
+                }
 
-                LOGGER.info("Sending message: " + message.getBody());
-                channel.basicPublish(exchangeName, "", null, message.toByteArray());
-            } catch (IOException e) {
-                LOGGER.error("Could not create RabbitMQ channel in sendMessage");
-                responseObserver.onError(e);
+                int index = i;
+                ready.add(pending.getPublished().handle((published, t) -> {
+                    if (t == null) {
+                        messages[index] = published;
+                    } else {
+                        LOGGER.error("Could not save or publish message in sendMessages", t);
+                        statuses[index] = ChatProtos.Status.UNAVAILABLE;
+                    }
+                    return null;
+                }));
             }
 
-            responseObserver.onNext(ChatProtos.MessageResponse.newBuilder().build());
-            responseObserver.onCompleted();
+            CompletableFuture.allOf(ready.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                ChatProtos.SendMessagesResponse.Builder response = ChatProtos.SendMessagesResponse.newBuilder();
+                for (int i = 0; i < outgoing.size(); i++) {
+                    ChatProtos.MessageResult.Builder result = ChatProtos.MessageResult.newBuilder()
+                            .setStatus(statuses[i]);
+                    if (statuses[i] == ChatProtos.Status.OK)
+                        result.setId(messages[i].getId()).setSeq(messages[i].getSeq());
+                    response.addResults(result);
+                }
+
+                responseObserver.onNext(response.build());
+                responseObserver.onCompleted();
+            }).exceptionally(t -> {
+                LOGGER.error("Could not respond to sendMessages", t);
+                responseObserver.onError(t instanceof CompletionException ? t.getCause() : t);
+                return null;
+            });
         }).exceptionally(t -> {
-            LOGGER.warn("getUserPubicKey returned a failure");
-            responseObserver.onError(t);
+            LOGGER.warn("Could not verify signatures in sendMessages");
+            responseObserver.onError(t instanceof CompletionException ? t.getCause() : t);
 
             return null;
         });
     }
 
+    /**
+     * Check the signature of every message, looking up each sender's key only once. A sender whose key can't be found
+     * has all of their messages rejected.
+     *
+     * @return A future for whether each message's signature is valid, in order
+     */
+    private CompletableFuture<boolean[]> verifyAll(List<ChatProtos.OutgoingMessage> outgoing) {
+        if (allowUnsignedMessages) {
+            boolean[] valid = new boolean[outgoing.size()];
+            Arrays.fill(valid, true);
+            return CompletableFuture.completedFuture(valid);
+        }
+
+        Map<String, CompletableFuture<PublicKey>> keys = new HashMap<>();
+        for (ChatProtos.OutgoingMessage message : outgoing) {
+            ChatProtos.User sender = message.getMessage().getSender();
+            keys.computeIfAbsent(sender.getName() + "@" + sender.getHost(),
+                    name -> keyCache.get(sender).handle((key, t) -> {
+                        if (t != null)
+                            LOGGER.warn(String.format("Could not get public key for %s", sender.getName()));
+                        return key;
+                    }));
+        }
+
+        return CompletableFuture.allOf(keys.values().toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+            List<SignatureVerifier.Request> requests = new ArrayList<>(outgoing.size());
+            int[] indexes = new int[outgoing.size()];
+
+            for (int i = 0; i < outgoing.size(); i++) {
+                ChatProtos.OutgoingMessage message = outgoing.get(i);
+                ChatProtos.User sender = message.getMessage().getSender();
+                PublicKey key = keys.get(sender.getName() + "@" + sender.getHost()).join();
+                if (key == null)
+                    continue;
+
+                indexes[requests.size()] = i;
+                requests.add(new SignatureVerifier.Request(key, message.getSignature().toByteArray(),
+                        message.getMessage().toByteArray(), message.getChannel().toByteArray()));
+            }
+
+            return verifier.verifyAll(requests).thenApply(verified -> {
+                boolean[] valid = new boolean[outgoing.size()];
+                for (int i = 0; i < verified.length; i++) {
+                    valid[indexes[i]] = verified[i];
+                }
+                return valid;
+            });
+        });
+    }
+
     @Override
     public void createGroup(ChatProtos.CreateGroupRequest request, StreamObserver<ChatProtos.CreateGroupResponse> responseObserver) {
         ChatProtos.Group group = db.createGroup(request.getGroupName());
@@ -220,6 +376,13 @@ public class ChatService extends ChatGrpc.ChatImplBase {
 
         LOGGER.info("Added channel " + channel);
 
+        try {
+            bus.publish(ServerConstants.getGroupChannelsExchange(request.getGroup().getId()), channel);
+        } catch (IOException e) {
+            // The channel exists either way, clients following the group only see it once they rejoin
+            LOGGER.warn("Could not publish new channel " + channel.getName(), e);
+        }
+
         ChatProtos.CreateChannelResponse response = ChatProtos.CreateChannelResponse.newBuilder()
                 .setStatus(ChatProtos.Status.OK)
                 .setChannel(channel)
@@ -269,13 +432,9 @@ public class ChatService extends ChatGrpc.ChatImplBase {
     @Override
     public void setUserStatus(ChatProtos.SetUserStatusRequest request, StreamObserver<ChatProtos.SetUserStatusResponse> responseObserver) {
         try {
-            String exchangeName = ServerConstants.getGroupUserStatusExchange(request.getGroup().getId());
-            Channel channel = getChannel(exchangeName);
-            channel.basicPublish(exchangeName, "", null, request.getStatus().toByteArray());
-
-            db.setUserStatus(request.getStatus(), request.getGroup());
+            presence.setStatus(request.getGroup(), request.getStatus());
 
-            LOGGER.info(String.format("Set user status %s", request.toString()));
+            LOGGER.debug(String.format("Set user status %s", request.toString()));
 
             responseObserver.onNext(ChatProtos.SetUserStatusResponse.newBuilder().build());
             responseObserver.onCompleted();
@@ -284,52 +443,349 @@ public class ChatService extends ChatGrpc.ChatImplBase {
         }
     }
 
+    @Override
+    public void heartbeat(ChatProtos.HeartbeatRequest request, StreamObserver<ChatProtos.HeartbeatResponse> responseObserver) {
+        boolean renewed = presence.heartbeat(request.getGroup(), request.getUser());
+
+        responseObserver.onNext(ChatProtos.HeartbeatResponse.newBuilder()
+                .setLeaseMs(presence.getLeaseMs())
+                .setExpired(!renewed)
+                .build());
+        responseObserver.onCompleted();
+    }
+
     @Override
     public void getGroupUserStatuses(ChatProtos.GroupUserStatusRequest request, StreamObserver<ChatProtos.UserStatus> responseObserver) {
         try {
-            String exchangeName = ServerConstants.getGroupUserStatusExchange(request.getGroup().getId());
-            Channel channel = getChannel(exchangeName);
-            String queueName = getQueue(channel, exchangeName);
+            StreamBuffer<ChatProtos.UserStatus> buffer = new StreamBuffer<>(
+                    (ServerCallStreamObserver<ChatProtos.UserStatus>) responseObserver,
+                    streamBufferSize, overflowPolicy, ChatService::statusKey);
+
+            // The latest status of every user in the group is sent first as a backlog, so the overflow policy never
+            // drops any of it, then each change
+            buffer.hold();
+            PresenceTable.Watch watch = presence.watch(request.getGroup(), buffer);
+            buffer.whenClosed(() -> {
+                LOGGER.debug("Client disconnected");
+                watch.close();
+                setUserOffline(request.getFor(), request.getGroup());
+            });
+            buffer.replay(watch.getSnapshot().iterator(), status -> false);
+        } catch (IOException e) {
+            responseObserver.onError(e);
+        }
+    }
 
-            for (ChatProtos.UserStatus status : db.getUserStatuses(request.getGroup())) {
-                responseObserver.onNext(status);
-            }
+    private static Object statusKey(ChatProtos.UserStatus status) {
+        return status.getUser().getName() + "@" + status.getUser().getHost();
+    }
 
-            DeliverCallback callback = (consumerTag, message) -> {
-                ChatProtos.UserStatus status = ChatProtos.UserStatus.parseFrom(message.getBody());
+    @Override
+    public void getMessageRange(ChatProtos.MessageRangeRequest request, StreamObserver<ChatProtos.MessageRangeResponse> responseObserver) {
+        List<ChatProtos.Message> messages;
+        if (request.hasBefore() || request.getFrom() == 0) {
+            messages = historyStore.getMessagesBefore(request.getChannel(),
+                    request.hasBefore() ? request.getBefore() : null, request.getCount());
+        } else {
+            messages = historyStore.getMessageRange(request.getChannel(), request.getFrom(), request.getCount());
+        }
 
-                try {
-                    responseObserver.onNext(status);
-                } catch (Exception e) {
-                    LOGGER.info("Client disconnected");
-                    channel.basicCancel(consumerTag);
+        ChatProtos.MessageRangeResponse.Builder response = ChatProtos.MessageRangeResponse.newBuilder()
+                .addAllMessages(messages);
 
-                    setUserOffline(request.getFor(), request.getGroup());
-                }
-            };
-            channel.basicConsume(queueName, true, callback, consumerTag -> {
-            });
+        if (!messages.isEmpty() && messages.size() >= request.getCount()) {
+            ChatProtos.Message oldest = messages.get(messages.size() - 1);
+            response.setNext(ChatProtos.MessageCursor.newBuilder()
+                    .setUnixTime(oldest.getUnixTime())
+                    .setId(oldest.getId()));
+        }
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getChannelActivity(ChatProtos.Group request,
+                                   StreamObserver<ChatProtos.ChannelActivity> responseObserver) {
+        List<ChatProtos.Channel> channels = db.getGroupChannels(request);
+        // Only the newest activity per channel matters, so a slow client gets merged updates rather than a backlog
+        StreamBuffer<ChatProtos.ChannelActivity> buffer = new StreamBuffer<>(
+                (ServerCallStreamObserver<ChatProtos.ChannelActivity>) responseObserver,
+                streamBufferSize, StreamBuffer.OverflowPolicy.COALESCE, ChatProtos.ChannelActivity::getChannelId);
+        List<SubscriptionHub<ChatProtos.Message>.Subscription> subscriptions = new ArrayList<>(channels.size());
+
+        try {
+            for (ChatProtos.Channel channel : channels) {
+                // Read before subscribing so the snapshot can never replace a newer update in the buffer
+                List<ChatProtos.Message> newest = historyStore.getMessagesBefore(channel, null, 1);
+                if (!newest.isEmpty())
+                    buffer.offer(channelActivity(channel, newest.get(0), 0));
+
+                subscriptions.add(messageHub.subscribe(ServerConstants.getChannelExchange(channel.getId()),
+                        message -> buffer.offer(channelActivity(channel, message, 1))));
+            }
         } catch (IOException e) {
+            LOGGER.error("Could not subscribe to channels in getChannelActivity");
+            subscriptions.forEach(SubscriptionHub.Subscription::close);
             responseObserver.onError(e);
+            return;
         }
+
+        buffer.whenClosed(() -> subscriptions.forEach(SubscriptionHub.Subscription::close));
     }
 
     @Override
-    public void getMessageRange(ChatProtos.MessageRangeRequest request, StreamObserver<ChatProtos.MessageRangeResponse> responseObserver) {
-        List<ChatProtos.Message> messages = db.getMessageRange(request.getChannel(), request.getFrom(), request.getCount());
-        responseObserver.onNext(ChatProtos.MessageRangeResponse.newBuilder()
-                .addAllMessages(messages).build());
-        responseObserver.onCompleted();
+    public StreamObserver<ChatProtos.GroupCommand> groupEvents(StreamObserver<ChatProtos.GroupEvent> responseObserver) {
+        // Statuses and activity still coalesce, but as with getMessages, messages are never dropped
+        StreamBuffer<ChatProtos.GroupEvent> buffer = new StreamBuffer<>(
+                (ServerCallStreamObserver<ChatProtos.GroupEvent>) responseObserver,
+                streamBufferSize, StreamBuffer.OverflowPolicy.DISCONNECT, GroupEventDispatcher::eventKey);
+        return new GroupEventDispatcher(this, buffer);
+    }
+
+    void streamStarted(GroupEventDispatcher dispatcher) {
+        groupStreams.add(dispatcher);
+    }
+
+    void streamEnded(GroupEventDispatcher dispatcher) {
+        groupStreams.remove(dispatcher);
+    }
+
+    static ChatProtos.ChannelActivity channelActivity(ChatProtos.Channel channel, ChatProtos.Message message,
+                                                              int newMessages) {
+        return ChatProtos.ChannelActivity.newBuilder()
+                .setChannelId(channel.getId())
+                .setLastSeq(message.getSeq())
+                .setLastMessageId(message.getId())
+                .setUnixTime(message.getUnixTime())
+                .setNewMessages(newMessages)
+                .build();
+    }
+
+    /**
+     * Serve recent history of channels that are being read from memory instead of the message store.
+     *
+     * @param messagesPerChannel Maximum messages cached for each channel
+     * @param maxBytes           Approximate memory cap across all channels
+     */
+    public void enableTailCache(int messagesPerChannel, long maxBytes) {
+        tailCache = new TailCache(messageStore, messageHub, messagesPerChannel, maxBytes);
+        historyStore = tailCache;
+    }
+
+    /**
+     * @param maxReplay Most missed messages replayed to a client resuming its stream of a channel
+     */
+    public void setMaxReplay(int maxReplay) {
+        this.maxReplay = maxReplay;
     }
 
     public void setAllowUnsignedMessages(boolean allowUnsignedMessages) {
         this.allowUnsignedMessages = allowUnsignedMessages;
     }
 
-    private void setUserOffline(ChatProtos.User user, ChatProtos.Group group) {
-        db.setUserStatus(ChatProtos.UserStatus.newBuilder().setUser(user)
-                        .setPresence(ChatProtos.Presence.OFFLINE)
-                        .build(),
-                group);
+    /**
+     * @param streamBufferSize Number of items buffered per stream while the client is not ready for more
+     */
+    public void setStreamBufferSize(int streamBufferSize) {
+        this.streamBufferSize = streamBufferSize;
+    }
+
+    /**
+     * @param overflowPolicy What to do with a status stream whose buffer is full. Streams carrying messages always
+     *                       disconnect, since a dropped message would never be noticed by the client, and reconnecting
+     *                       replays what it missed.
+     */
+    public void setOverflowPolicy(StreamBuffer.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param ackMode Whether sendMessage waits for messages to be saved before acknowledging and publishing them
+     */
+    public void setAckMode(MessageWriter.AckMode ackMode) {
+        this.ackMode = ackMode;
+        messageWriter.setPublisher(publisher, ackMode);
+    }
+
+    public PublicKeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    public SignatureVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * @return The tail cache, or null if it is not enabled
+     */
+    public TailCache getTailCache() {
+        return tailCache;
+    }
+
+    public MessageBus getBus() {
+        return bus;
+    }
+
+    public SubscriptionHub<ChatProtos.Message> getMessageHub() {
+        return messageHub;
+    }
+
+    public SubscriptionHub<ChatProtos.Channel> getChannelHub() {
+        return channelHub;
+    }
+
+    public SubscriptionHub<ChatProtos.UserStatus> getStatusHub() {
+        return statusHub;
+    }
+
+    /**
+     * @param flushMs How often statuses are saved, or 0 to save each one as it is set
+     * @param leaseMs How long a status lasts without a heartbeat, or 0 to never expire statuses
+     */
+    public void configurePresence(long flushMs, long leaseMs) {
+        if (flushMs == presence.getFlushMs() && leaseMs == presence.getLeaseMs())
+            return;
+
+        presence.close();
+        presence = new PresenceTable(bus, statusHub, db, flushMs, leaseMs);
+    }
+
+    public PresenceTable getPresence() {
+        return presence;
+    }
+
+    public MessageWriter getMessageWriter() {
+        return messageWriter;
+    }
+
+    MetadataStore getMetadataStore() {
+        return db;
+    }
+
+    /**
+     * @return Where history is read from, the tail cache if it is enabled
+     */
+    MessageStore getHistoryStore() {
+        return historyStore;
+    }
+
+    int getMaxReplay() {
+        return maxReplay;
+    }
+
+    /**
+     * @return Number of open GroupEvents calls
+     */
+    public int getGroupStreamCount() {
+        return groupStreams.size();
+    }
+
+    /**
+     * Register gauges and counters for the caches, queues and hubs behind this service.
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("chat_writer_pending", "Messages waiting to be saved", messageWriter::getPending);
+        registry.counter("chat_writer_written_total", "Messages saved", messageWriter::getWrittenCount);
+        registry.counter("chat_writer_failed_total", "Messages that could not be saved",
+                messageWriter::getFailedCount);
+        registry.counter("chat_writer_batches_total", "Batches of messages saved", messageWriter::getBatchCount);
+
+        registry.gauge("chat_crypto_queue_depth", "Signatures waiting to be verified", verifier::getQueueDepth);
+        registry.gauge("chat_crypto_active_threads", "Threads verifying signatures", verifier::getActiveThreads);
+        registry.counter("chat_crypto_verified_total", "Signatures checked", verifier::getVerifiedCount);
+        registry.counter("chat_crypto_invalid_total", "Signatures that did not match", verifier::getInvalidCount);
+        registry.counter("chat_crypto_rejected_total", "Verifications rejected because the queue was full",
+                verifier::getRejectedCount);
+
+        registry.gauge("chat_key_cache_size", "Public keys cached", keyCache::size);
+        registry.counter("chat_key_cache_hits_total", "Public key lookups served from the cache",
+                keyCache::getHitCount);
+        registry.counter("chat_key_cache_misses_total", "Public key lookups that had to load the key",
+                keyCache::getMissCount);
+        registry.counter("chat_key_cache_loads_total", "Public keys fetched, including background refreshes",
+                keyCache::getLoadCount);
+        registry.counter("chat_key_cache_load_seconds_total", "Time spent fetching public keys",
+                () -> keyCache.getTotalLoadNanos() / 1e9);
+        registry.counter("chat_key_cache_load_failures_total", "Public keys that could not be loaded",
+                keyCache::getLoadFailureCount);
+        registry.counter("chat_key_cache_evictions_total", "Public keys evicted from the cache",
+                keyCache::getEvictionCount);
+
+        registry.gauge("chat_hub_topics", "Topics consumed from the message bus", messageHub::getTopicCount,
+                "hub", "messages");
+        registry.gauge("chat_hub_topics", "Topics consumed from the message bus", statusHub::getTopicCount,
+                "hub", "statuses");
+        registry.gauge("chat_hub_subscriptions", "Local subscriptions to bus topics", messageHub::getSubscriptionCount,
+                "hub", "messages");
+        registry.gauge("chat_hub_subscriptions", "Local subscriptions to bus topics", statusHub::getSubscriptionCount,
+                "hub", "statuses");
+        registry.gauge("chat_hub_topics", "Topics consumed from the message bus", channelHub::getTopicCount,
+                "hub", "channels");
+        registry.gauge("chat_hub_subscriptions", "Local subscriptions to bus topics", channelHub::getSubscriptionCount,
+                "hub", "channels");
+        registry.gauge("chat_group_event_streams", "Open GroupEvents calls", this::getGroupStreamCount);
+
+        if (tailCache != null) {
+            registry.gauge("chat_tail_cache_channels", "Channels with recent messages cached",
+                    tailCache::getChannelCount);
+            registry.gauge("chat_tail_cache_bytes", "Approximate memory used by cached messages", tailCache::getBytes);
+            registry.counter("chat_tail_cache_hits_total", "History reads served from memory", tailCache::getHitCount);
+            registry.counter("chat_tail_cache_misses_total", "History reads that went to the store",
+                    tailCache::getMissCount);
+            registry.counter("chat_tail_cache_evictions_total", "Channels evicted from the cache",
+                    tailCache::getEvictionCount);
+        }
+
+        // The table is replaced by configurePresence, so always read the current one
+        registry.gauge("chat_presence_statuses", "User statuses held in memory", () -> presence.getStatusCount());
+        registry.gauge("chat_presence_unsaved", "Status changes waiting to be saved", () -> presence.getUnsavedCount());
+        registry.counter("chat_presence_updates_total", "Status changes", () -> presence.getUpdateCount());
+        registry.counter("chat_presence_coalesced_total", "Status changes replaced before they were saved",
+                () -> presence.getCoalescedCount());
+        registry.counter("chat_presence_save_failures_total", "Statuses that could not be saved",
+                () -> presence.getSaveFailureCount());
+        registry.gauge("chat_presence_leases", "Users kept online by heartbeats", () -> presence.getLeaseCount());
+        registry.counter("chat_presence_expired_total", "Users set offline for missing heartbeats",
+                () -> presence.getExpiredCount());
+    }
+
+    void setUserOffline(ChatProtos.User user, ChatProtos.Group group) {
+        if (user.getName().isEmpty())
+            return;
+
+        try {
+            presence.setStatus(group, ChatProtos.UserStatus.newBuilder().setUser(user)
+                    .setPresence(ChatProtos.Presence.OFFLINE)
+                    .build());
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not set %s offline", user.getName()), e);
+        }
+    }
+
+    /**
+     * Release broker, database writer and federation connections. Messages still queued for the database are written
+     * first.
+     */
+    @Override
+    public void close() {
+        if (tailCache != null)
+            tailCache.close();
+        presence.close();
+        messageHub.close();
+        statusHub.close();
+        channelHub.close();
+        messageWriter.close();
+        // Let messages the writer handed over reach the bus before it closes
+        publishExecutor.shutdown();
+        try {
+            if (!publishExecutor.awaitTermination(5, TimeUnit.SECONDS))
+                LOGGER.warn("Gave up waiting for messages to be published");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        verifier.close();
+        bus.close();
+        pool.close();
     }
 }
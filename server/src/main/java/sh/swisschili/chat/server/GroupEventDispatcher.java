@@ -0,0 +1,316 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatProtos.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves one GroupEvents call, multiplexing everything a client follows in a group onto a single stream.
+ *
+ * Each channel of the group has one hub subscription, which always sends the channel's activity and also sends its
+ * messages while the client is subscribed to it. Statuses come from the presence table and new channels from the
+ * group's channels exchange. All of it goes through one StreamBuffer, so a slow client is handled once for the whole
+ * group. Replays for resuming subscriptions are queued in the same buffer, and a replay that can't be completed ends
+ * only that subscription.
+ */
+public class GroupEventDispatcher implements StreamObserver<GroupCommand> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupEventDispatcher.class);
+
+    private final ChatService service;
+    private final StreamBuffer<GroupEvent> buffer;
+
+    private final Map<String, ChannelState> channels = new ConcurrentHashMap<>();
+    private Group group = null;
+    private User user = null;
+    private PresenceTable.Watch watch = null;
+    private SubscriptionHub<Channel>.Subscription created = null;
+    private boolean closed = false;
+
+    private class ChannelState {
+        final Channel channel;
+        SubscriptionHub<Message>.Subscription subscription;
+        volatile boolean subscribed = false;
+        volatile SequenceReplay replay = null;
+
+        ChannelState(Channel channel) {
+            this.channel = channel;
+        }
+
+        void onMessage(Message message) {
+            buffer.offer(GroupEvent.newBuilder()
+                    .setActivity(ChatService.channelActivity(channel, message, 1))
+                    .build());
+
+            if (subscribed)
+                buffer.offer(messageEvent(channel, message));
+        }
+    }
+
+    /**
+     * @param service The service whose hubs, presence and history the events come from
+     * @param buffer  The call's response stream
+     */
+    GroupEventDispatcher(ChatService service, StreamBuffer<GroupEvent> buffer) {
+        this.service = service;
+        this.buffer = buffer;
+
+        service.streamStarted(this);
+        buffer.whenClosed(this::close);
+    }
+
+    /**
+     * Used to coalesce events, statuses by user and activity by channel. Messages are never coalesced.
+     */
+    static Object eventKey(GroupEvent event) {
+        switch (event.getEventCase()) {
+            case STATUS:
+                User user = event.getStatus().getUser();
+                return "status:" + user.getName() + "@" + user.getHost();
+            case ACTIVITY:
+                return "activity:" + event.getActivity().getChannelId();
+            default:
+                return null;
+        }
+    }
+
+    private static GroupEvent messageEvent(Channel channel, Message message) {
+        return GroupEvent.newBuilder()
+                .setMessage(GroupMessage.newBuilder()
+                        .setChannelId(channel.getId())
+                        .setMessage(message))
+                .build();
+    }
+
+    @Override
+    public void onNext(GroupCommand command) {
+        Runnable replay = null;
+
+        synchronized (this) {
+            if (closed)
+                return;
+
+            try {
+                if (command.hasJoin()) {
+                    replay = join(command.getJoin());
+                } else if (group == null) {
+                    fail(Status.FAILED_PRECONDITION.withDescription("Join a group first"));
+                } else if (command.hasSubscribe()) {
+                    replay = subscribe(command.getSubscribe());
+                } else if (command.hasUnsubscribe()) {
+                    ChannelState state = channels.get(command.getUnsubscribe().getId());
+                    if (state != null) {
+                        state.subscribed = false;
+                        state.replay = null;
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Could not subscribe in groupEvents", e);
+                fail(Status.UNAVAILABLE.withDescription("Could not subscribe").withCause(e));
+            }
+        }
+
+        // Queuing a replay starts reading it, which the hubs' threads mustn't wait on to get the lock
+        if (replay != null)
+            replay.run();
+    }
+
+    /**
+     * @return Queues the group's statuses when run, or null if the group could not be joined
+     */
+    private Runnable join(GroupUserStatusRequest request) throws IOException {
+        if (group != null) {
+            fail(Status.FAILED_PRECONDITION.withDescription("Already joined " + group.getName()));
+            return null;
+        }
+
+        group = request.getGroup();
+        user = request.getFor();
+
+        // Subscribe before listing channels so a channel created in between is still followed
+        created = service.getChannelHub().subscribe(ServerConstants.getGroupChannelsExchange(group.getId()),
+                channel -> {
+                    buffer.offer(GroupEvent.newBuilder().setChannelCreated(channel).build());
+                    synchronized (this) {
+                        if (closed)
+                            return;
+                        try {
+                            follow(channel);
+                        } catch (IOException e) {
+                            LOGGER.warn("Could not follow new channel " + channel.getName(), e);
+                        }
+                    }
+                });
+
+        for (Channel channel : service.getMetadataStore().getGroupChannels(group)) {
+            // Read before subscribing so the snapshot can never replace a newer update in the buffer
+            List<Message> newest = service.getHistoryStore().getMessagesBefore(channel, null, 1);
+            if (!newest.isEmpty()) {
+                buffer.offer(GroupEvent.newBuilder()
+                        .setActivity(ChatService.channelActivity(channel, newest.get(0), 0))
+                        .build());
+            }
+
+            follow(channel);
+        }
+
+        // Statuses are a backlog, as in getGroupUserStatuses, so a large group's snapshot never overflows the buffer
+        buffer.hold();
+        watch = service.getPresence().watch(group, status -> buffer.offer(statusEvent(status)));
+        Iterator<GroupEvent> statuses = watch.getSnapshot().stream()
+                .map(GroupEventDispatcher::statusEvent)
+                .iterator();
+        return () -> buffer.replay(statuses, this::alreadyReplayed);
+    }
+
+    private static GroupEvent statusEvent(UserStatus status) {
+        return GroupEvent.newBuilder().setStatus(status).build();
+    }
+
+    private ChannelState follow(Channel channel) throws IOException {
+        ChannelState state = channels.get(channel.getId());
+        if (state != null)
+            return state;
+
+        state = new ChannelState(channel);
+        state.subscription = service.getMessageHub().subscribe(ServerConstants.getChannelExchange(channel.getId()),
+                state::onMessage);
+        channels.put(channel.getId(), state);
+        return state;
+    }
+
+    /**
+     * @return Queues the subscription's replay when run, or null if there is nothing to replay
+     */
+    private Runnable subscribe(GetMessagesRequest request) throws IOException {
+        ChannelState state = follow(request.getChannel());
+        if (state.subscribed)
+            return null;
+
+        if (request.getAfterSeq() == 0) {
+            state.subscribed = true;
+            return null;
+        }
+
+        // Hold live events until the replay is queued, as getMessages does
+        buffer.hold();
+        state.subscribed = true;
+        SequenceReplay replay = new SequenceReplay(service.getHistoryStore(), state.channel, request.getAfterSeq(),
+                service.getMaxReplay());
+        state.replay = replay;
+        return () -> buffer.replay(replayEvents(state, replay), this::alreadyReplayed);
+    }
+
+    private boolean alreadyReplayed(GroupEvent event) {
+        if (!event.hasMessage())
+            return false;
+
+        ChannelState state = channels.get(event.getMessage().getChannelId());
+        SequenceReplay replay = state == null ? null : state.replay;
+        return replay != null && replay.contains(event.getMessage().getMessage().getSeq());
+    }
+
+    /**
+     * Send a replay as message events. If it fails, only its channel's subscription ends.
+     */
+    private Iterator<GroupEvent> replayEvents(ChannelState state, SequenceReplay replay) {
+        return new Iterator<GroupEvent>() {
+            private GroupEvent failure = null;
+
+            @Override
+            public boolean hasNext() {
+                if (failure != null)
+                    return true;
+                // Unsubscribed or subscribed again since
+                if (state.replay != replay)
+                    return false;
+
+                try {
+                    return replay.hasNext();
+                } catch (StatusRuntimeException e) {
+                    state.subscribed = false;
+                    state.replay = null;
+                    failure = GroupEvent.newBuilder()
+                            .setEnded(SubscriptionEnded.newBuilder()
+                                    .setChannelId(state.channel.getId())
+                                    .setCode(e.getStatus().getCode().value())
+                                    .setDescription(String.valueOf(e.getStatus().getDescription())))
+                            .build();
+                    return true;
+                }
+            }
+
+            @Override
+            public GroupEvent next() {
+                if (failure != null) {
+                    GroupEvent event = failure;
+                    failure = null;
+                    return event;
+                }
+
+                return messageEvent(state.channel, replay.next());
+            }
+        };
+    }
+
+    private void fail(Status status) {
+        LOGGER.info("Ending groupEvents: " + status);
+        buffer.fail(status);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // The buffer sees the call cancelled and closes everything
+    }
+
+    @Override
+    public void onCompleted() {
+        buffer.complete();
+    }
+
+    private synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        if (created != null)
+            created.close();
+        if (watch != null)
+            watch.close();
+        for (ChannelState state : channels.values()) {
+            state.subscription.close();
+        }
+        channels.clear();
+
+        service.streamEnded(this);
+        if (group != null)
+            service.setUserOffline(user, group);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import sh.swisschili.chat.util.ChatProtos;
+
+/**
+ * A user's status together with the group it was set in, as stored in the database
+ */
+public class GroupStatus {
+    private final ChatProtos.Group group;
+    private final ChatProtos.UserStatus status;
+
+    public GroupStatus(ChatProtos.Group group, ChatProtos.UserStatus status) {
+        this.group = group;
+        this.status = status;
+    }
+
+    public ChatProtos.Group getGroup() {
+        return group;
+    }
+
+    public ChatProtos.UserStatus getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Message bus for a single server, with no broker. Messages are handed to consumers as objects on the publishing
+ * thread, so nothing is serialized and delivery takes no more than the consumers themselves.
+ *
+ * Each topic's consumers are an immutable array that is replaced whenever a consumer joins or leaves. Publishing only
+ * reads the current array, so it never takes a lock or waits for a subscribe. Consumers of the same topic may be
+ * called from several publishing threads at once.
+ */
+public class InProcessMessageBus implements MessageBus {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InProcessMessageBus.class);
+
+    private final ConcurrentMap<String, LocalConsumer<?>[]> topics = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong delivered = new AtomicLong(0);
+
+    private class LocalConsumer<T> implements Consumer {
+        final String topic;
+        final Listener<T> listener;
+        final AtomicBoolean open = new AtomicBoolean(true);
+
+        LocalConsumer(String topic, Listener<T> listener) {
+            this.topic = topic;
+            this.listener = listener;
+        }
+
+        @SuppressWarnings("unchecked")
+        void deliver(MessageLite message) {
+            try {
+                // Publishers and consumers of a topic always agree on its message type
+                listener.onNext((T) message);
+                delivered.incrementAndGet();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Consumer of " + topic + " failed, removing it", e);
+                if (remove(this))
+                    listener.onLost(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            remove(this);
+        }
+    }
+
+    @Override
+    public void publish(String topic, MessageLite message) throws IOException {
+        if (closed)
+            throw new IOException("Message bus is closed");
+
+        published.incrementAndGet();
+
+        LocalConsumer<?>[] consumers = topics.get(topic);
+        if (consumers == null)
+            return;
+
+        for (LocalConsumer<?> consumer : consumers) {
+            consumer.deliver(message);
+        }
+    }
+
+    @Override
+    public <T extends MessageLite> Consumer consume(String topic, Parser<T> parser, Listener<T> listener)
+            throws IOException {
+        if (closed)
+            throw new IOException("Message bus is closed");
+
+        LocalConsumer<T> consumer = new LocalConsumer<>(topic, listener);
+        topics.compute(topic, (key, consumers) -> {
+            if (consumers == null)
+                return new LocalConsumer<?>[]{consumer};
+
+            LocalConsumer<?>[] added = Arrays.copyOf(consumers, consumers.length + 1);
+            added[consumers.length] = consumer;
+            return added;
+        });
+
+        return consumer;
+    }
+
+    /**
+     * @return Was the consumer still subscribed?
+     */
+    private boolean remove(LocalConsumer<?> consumer) {
+        if (!consumer.open.compareAndSet(true, false))
+            return false;
+
+        topics.computeIfPresent(consumer.topic, (key, consumers) -> {
+            LocalConsumer<?>[] removed = new LocalConsumer<?>[consumers.length - 1];
+            int i = 0;
+            for (LocalConsumer<?> existing : consumers) {
+                if (existing != consumer && i < removed.length)
+                    removed[i++] = existing;
+            }
+            return removed.length == 0 ? null : removed;
+        });
+
+        return true;
+    }
+
+    /**
+     * @return Number of topics with at least one consumer
+     */
+    public int getTopicCount() {
+        return topics.size();
+    }
+
+    /**
+     * @return Total messages published since startup, including those no one consumed
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return Total deliveries to consumers since startup
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        topics.clear();
+    }
+}
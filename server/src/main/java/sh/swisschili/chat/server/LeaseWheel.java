@@ -0,0 +1,257 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package sh.swisschili.chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Expires leases that are not renewed in time, using a hashed timing wheel.
+ *
+ * The wheel is a ring of buckets, one per tick, spanning the lease duration. A lease lives in the bucket of the tick it
+ * expires on, in an intrusive doubly linked list, so renewing or cancelling it is a constant time unlink and relink.
+ * Each tick only visits the bucket it reaches, and everything in that bucket has expired; no lease is ever looked at
+ * unless it is expiring. Leases expire between one lease duration and one tick later than that after their last
+ * renewal.
+ *
+ * @param <K> Identifies a lease
+ * @param <V> Carried with a lease and handed to the expiry listener
+ */
+public class LeaseWheel<K, V> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaseWheel.class);
+
+    public static final long DEFAULT_TICK_MS = 1000;
+
+    public interface ExpiryListener<K, V> {
+        /**
+         * Called from the wheel's thread, outside of any lock, once for every lease that expires
+         */
+        void expired(K key, V value);
+    }
+
+    private static class Lease<K, V> {
+        final K key;
+        V value;
+        int bucket;
+        Lease<K, V> previous;
+        Lease<K, V> next;
+
+        Lease(K key) {
+            this.key = key;
+        }
+    }
+
+    private final long leaseMs;
+    private final long tickMs;
+    private final ExpiryListener<K, V> listener;
+    private final Lease<K, V>[] buckets;
+    private final Map<K, Lease<K, V>> leases = new HashMap<>();
+    private final ScheduledExecutorService ticker;
+    private int cursor = 0;
+
+    private final AtomicLong renewals = new AtomicLong(0);
+    private final AtomicLong expirations = new AtomicLong(0);
+
+    /**
+     * @param leaseMs  How long a lease lasts after it is renewed
+     * @param tickMs   How often the wheel turns, i.e. how late a lease may expire
+     * @param listener Called for each expired lease
+     */
+    public LeaseWheel(long leaseMs, long tickMs, ExpiryListener<K, V> listener) {
+        if (leaseMs < 1)
+            throw new IllegalArgumentException("leaseMs: " + leaseMs);
+        if (tickMs < 1)
+            throw new IllegalArgumentException("tickMs: " + tickMs);
+
+        this.leaseMs = leaseMs;
+        this.tickMs = tickMs;
+        this.listener = listener;
+        // Leases go in the bucket just behind the cursor, which is reached after one turn of the wheel. The first tick
+        // of that turn may come immediately, so the wheel needs one bucket more than the ticks the lease spans
+        this.buckets = newBuckets((int) ((leaseMs + tickMs - 1) / tickMs) + 2);
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lease-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Lease<K, V>[] newBuckets(int count) {
+        // Arrays of a generic type can't be created directly, every element is null until a lease is linked in
+        return (Lease<K, V>[]) new Lease<?, ?>[count];
+    }
+
+    /**
+     * Start a lease or push back the expiry of an existing one.
+     *
+     * @param key   The lease
+     * @param value Replaces the value carried by the lease
+     */
+    public synchronized void renew(K key, V value) {
+        Lease<K, V> lease = leases.get(key);
+        if (lease == null) {
+            lease = new Lease<>(key);
+            leases.put(key, lease);
+        } else {
+            unlink(lease);
+        }
+
+        lease.value = value;
+        link(lease, behindCursor());
+        renewals.incrementAndGet();
+    }
+
+    /**
+     * Push back the expiry of an existing lease, keeping its value.
+     *
+     * @param key The lease
+     * @return False if there is no such lease, i.e. it was never started, has expired or was cancelled
+     */
+    public synchronized boolean renew(K key) {
+        Lease<K, V> lease = leases.get(key);
+        if (lease == null)
+            return false;
+
+        unlink(lease);
+        link(lease, behindCursor());
+        renewals.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * End a lease without expiring it
+     *
+     * @param key The lease
+     * @return False if there was no such lease
+     */
+    public synchronized boolean cancel(K key) {
+        Lease<K, V> lease = leases.remove(key);
+        if (lease == null)
+            return false;
+
+        unlink(lease);
+        return true;
+    }
+
+    private int behindCursor() {
+        return (cursor + buckets.length - 1) % buckets.length;
+    }
+
+    private void link(Lease<K, V> lease, int bucket) {
+        lease.bucket = bucket;
+        lease.previous = null;
+        lease.next = buckets[bucket];
+        if (lease.next != null)
+            lease.next.previous = lease;
+        buckets[bucket] = lease;
+    }
+
+    private void unlink(Lease<K, V> lease) {
+        if (lease.previous != null)
+            lease.previous.next = lease.next;
+        else
+            buckets[lease.bucket] = lease.next;
+
+        if (lease.next != null)
+            lease.next.previous = lease.previous;
+
+        lease.previous = null;
+        lease.next = null;
+    }
+
+    /**
+     * Turn the wheel by one tick and expire every lease in the bucket it reaches. Called by the wheel's own thread
+     * every tick.
+     */
+    public void advance() {
+        List<Lease<K, V>> expired = new ArrayList<>();
+
+        synchronized (this) {
+            cursor = (cursor + 1) % buckets.length;
+            Lease<K, V> lease = buckets[cursor];
+            buckets[cursor] = null;
+
+            while (lease != null) {
+                Lease<K, V> next = lease.next;
+                leases.remove(lease.key);
+                lease.previous = null;
+                lease.next = null;
+                expired.add(lease);
+                lease = next;
+            }
+        }
+
+        for (Lease<K, V> lease : expired) {
+            try {
+                listener.expired(lease.key, lease.value);
+            } catch (RuntimeException e) {
+                LOGGER.error("Lease expiry listener failed", e);
+            }
+            expirations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of live leases
+     */
+    public synchronized int size() {
+        return leases.size();
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * @return Total renewals since startup, including leases being started
+     */
+    public long getRenewalCount() {
+        return renewals.get();
+    }
+
+    /**
+     * @return Total leases that expired since startup, counted once their listener has returned
+     */
+    public long getExpiredCount() {
+        return expirations.get();
+    }
+
+    /**
+     * Stop the wheel. Leases that have not expired yet never will.
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+}
@@ -0,0 +1,765 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.MessageCursor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded message store that keeps each channel's history in its own append-only log, without a database.
+ *
+ * A channel's log is a directory of fixed size, memory-mapped segment files, so appending is a plain memory write and
+ * messages are parsed straight out of the mapping instead of being copied out first. Each record stores the message's
+ * time and id ahead of its bytes, so a query only parses the messages it returns. A sparse in-memory index holds the
+ * range of times in each block of records, letting a query skip every block that is newer than its cursor. The index
+ * is rebuilt by scanning the log the first time a channel is used.
+ *
+ * Sequence numbers are kept inside the serialized message. Records are appended in sequence order, so the index also
+ * holds the highest sequence number up to each block, and reading after a sequence number starts at the first block
+ * past it. A channel's next sequence number is recovered from its log.
+ *
+ * Old messages are deleted a whole segment at a time, by deleting the segment's file.
+ *
+ * A record is an int length, an int CRC32 of the rest of the record, a long unix time, a 12 byte id and the serialized
+ * message. The length is written last, so a record torn by a crash fails its checksum and marks the end of the log.
+ */
+public class LogMessageStore implements MessageStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogMessageStore.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_BLOCK_RECORDS = 64;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int ID_SIZE = 12;
+    private static final int KEY_SIZE = 8 + ID_SIZE;
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Varints have wire type 0, so the tag is just the field number shifted
+    private static final int SEQ_TAG = Message.SEQ_FIELD_NUMBER << 3;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int blockRecords;
+    private final Map<String, ChannelLog> logs = new ConcurrentHashMap<>();
+
+    public LogMessageStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_BLOCK_RECORDS);
+    }
+
+    /**
+     * @param directory    Directory holding one sub-directory per channel
+     * @param segmentSize  Size of each segment file in bytes. Segments are sparse, so this is not allocated up front
+     * @param blockRecords Number of records covered by each sparse index entry
+     */
+    public LogMessageStore(Path directory, int segmentSize, int blockRecords) throws IOException {
+        if (segmentSize < HEADER_SIZE + KEY_SIZE)
+            throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        if (blockRecords < 1)
+            throw new IllegalArgumentException("blockRecords: " + blockRecords);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.blockRecords = blockRecords;
+        Files.createDirectories(directory);
+    }
+
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, long size) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                if (file.length() < size)
+                    file.setLength(size);
+                return new Segment(path, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length()));
+            }
+        }
+    }
+
+    /**
+     * A sparse index entry covering consecutive records in one segment. Records are in the order they were written,
+     * which is usually but not always the order of their times.
+     */
+    private static class Block {
+        final Segment segment;
+        final int position;
+        int count = 1;
+        /**
+         * Latest time in this block and every block before it
+         */
+        long prefixMax;
+        /**
+         * Earliest time in this block and every block after it, never decreases with block index
+         */
+        long suffixMin;
+        /**
+         * Highest sequence number in this block and every block before it
+         */
+        long maxSeq;
+
+        Block(Segment segment, int position, long time, long prefixMax, long seq, long prefixMaxSeq) {
+            this.segment = segment;
+            this.position = position;
+            this.prefixMax = Math.max(prefixMax, time);
+            this.suffixMin = time;
+            this.maxSeq = Math.max(prefixMaxSeq, seq);
+        }
+    }
+
+    private static class Candidate {
+        final ByteBuffer buffer;
+        final int position;
+        final long time;
+
+        Candidate(ByteBuffer buffer, int position, long time) {
+            this.buffer = buffer;
+            this.position = position;
+            this.time = time;
+        }
+    }
+
+    private static final Comparator<Candidate> OLDEST_FIRST = (a, b) -> {
+        int byTime = Long.compare(a.time, b.time);
+        if (byTime != 0)
+            return byTime;
+        for (int i = 0; i < ID_SIZE; i++) {
+            int cmp = Integer.compare(a.buffer.get(a.position + HEADER_SIZE + 8 + i) & 0xff,
+                    b.buffer.get(b.position + HEADER_SIZE + 8 + i) & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    };
+
+    private class ChannelLog {
+        final Path directory;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final List<Segment> segments = new ArrayList<>();
+        final List<Block> blocks = new ArrayList<>();
+        final Set<Segment> unsynced = new HashSet<>();
+        Segment tail;
+        int writePosition;
+        long lastSeq = 0;
+        // Only sequenced records are counted, since only they can be deleted
+        long count = 0;
+        long bytes = 0;
+        int nextSegment = 0;
+
+        ChannelLog(Path directory) throws IOException {
+            this.directory = directory;
+
+            if (!Files.isDirectory(directory))
+                return;
+
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+
+            for (Path file : files) {
+                Segment segment = Segment.open(file, 0);
+                segments.add(segment);
+                tail = segment;
+                writePosition = recover(segment);
+            }
+
+            if (tail != null) {
+                String name = tail.path.getFileName().toString();
+                nextSegment = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1;
+            }
+        }
+
+        /**
+         * Index every intact record in a segment.
+         *
+         * @return The position after the last intact record
+         */
+        private int recover(Segment segment) {
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length == 0)
+                    return position;
+
+                if (length < KEY_SIZE || position + HEADER_SIZE + length > buffer.capacity()
+                        || buffer.getInt(position + 4) != checksum(buffer, position, length)) {
+                    LOGGER.warn(String.format("Truncating torn record at %d in %s", position, segment.path));
+                    // Records are appended in order, so nothing past the torn one was written. Clear just that record,
+                    // or only its header if its length can't be trusted, rather than the whole segment
+                    long recordEnd = length < KEY_SIZE
+                            ? position + HEADER_SIZE
+                            : (long) position + HEADER_SIZE + length;
+                    for (int i = position; i < Math.min(recordEnd, buffer.capacity()); i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    unsynced.add(segment);
+                    return position;
+                }
+
+                index(segment, position, HEADER_SIZE + length, buffer.getLong(position + HEADER_SIZE),
+                        readSeq(buffer, position));
+                position += HEADER_SIZE + length;
+            }
+
+            return position;
+        }
+
+        void append(Message message) throws IOException {
+            byte[] id = new ObjectId(message.getId()).toByteArray();
+            int length = KEY_SIZE + message.getSerializedSize();
+
+            lock.writeLock().lock();
+            try {
+                if (tail == null || writePosition + HEADER_SIZE + length > tail.buffer.capacity())
+                    roll(HEADER_SIZE + length);
+
+                ByteBuffer buffer = tail.buffer;
+                int position = writePosition;
+
+                ByteBuffer body = buffer.duplicate();
+                body.position(position + HEADER_SIZE);
+                body.putLong(message.getUnixTime());
+                body.put(id);
+                CodedOutputStream out = CodedOutputStream.newInstance(body);
+                message.writeTo(out);
+                out.flush();
+
+                buffer.putInt(position + 4, checksum(buffer, position, length));
+                // Writing the length commits the record
+                buffer.putInt(position, length);
+
+                unsynced.add(tail);
+                index(tail, position, HEADER_SIZE + length, message.getUnixTime(), message.getSeq());
+                writePosition += HEADER_SIZE + length;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void roll(int recordSize) throws IOException {
+            Files.createDirectories(directory);
+            Path path = directory.resolve(String.format("%010d%s", nextSegment++, SEGMENT_SUFFIX));
+            tail = Segment.open(path, Math.max(segmentSize, recordSize));
+            segments.add(tail);
+            writePosition = 0;
+        }
+
+        private void index(Segment segment, int position, int size, long time, long seq) {
+            Block last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+
+            if (last == null || last.segment != segment || last.count == blockRecords) {
+                blocks.add(new Block(segment, position, time, last == null ? Long.MIN_VALUE : last.prefixMax,
+                        seq, last == null ? 0 : last.maxSeq));
+            } else {
+                last.count++;
+                last.prefixMax = Math.max(last.prefixMax, time);
+                last.maxSeq = Math.max(last.maxSeq, seq);
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            if (seq > 0) {
+                count++;
+                bytes += size;
+            }
+
+            // Only an out of order message has to walk back, and then only as far as older messages
+            for (int i = blocks.size() - 1; i >= 0 && blocks.get(i).suffixMin > time; i--) {
+                blocks.get(i).suffixMin = time;
+            }
+        }
+
+        /**
+         * Find the newest records older than a cursor.
+         */
+        List<Message> newest(MessageCursor before, int limit) {
+            lock.readLock().lock();
+            try {
+                if (limit <= 0 || blocks.isEmpty())
+                    return new ArrayList<>();
+
+                int start = blocks.size() - 1;
+                byte[] beforeId = null;
+
+                if (before != null) {
+                    beforeId = new ObjectId(before.getId()).toByteArray();
+                    start = lastBlockAtOrBefore(before.getUnixTime());
+                }
+
+                PriorityQueue<Candidate> newest = new PriorityQueue<>(Math.min(limit, 1024) + 1, OLDEST_FIRST);
+
+                for (int i = start; i >= 0; i--) {
+                    Block block = blocks.get(i);
+
+                    // Nothing in this block or any before it can be newer than what we already have
+                    if (newest.size() == limit && block.prefixMax < newest.peek().time)
+                        break;
+
+                    ByteBuffer buffer = block.segment.buffer;
+                    int position = block.position;
+
+                    for (int r = 0; r < block.count; r++) {
+                        Candidate candidate = new Candidate(buffer, position, buffer.getLong(position + HEADER_SIZE));
+                        position += HEADER_SIZE + buffer.getInt(position);
+
+                        if (before != null && !isBefore(candidate, before.getUnixTime(), beforeId))
+                            continue;
+
+                        if (newest.size() < limit) {
+                            newest.add(candidate);
+                        } else if (OLDEST_FIRST.compare(candidate, newest.peek()) > 0) {
+                            newest.poll();
+                            newest.add(candidate);
+                        }
+                    }
+                }
+
+                List<Candidate> sorted = new ArrayList<>(newest);
+                sorted.sort(OLDEST_FIRST.reversed());
+
+                List<Message> messages = new ArrayList<>(sorted.size());
+                for (Candidate candidate : sorted) {
+                    messages.add(parse(candidate));
+                }
+                return messages;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        long reserve(int count) {
+            lock.writeLock().lock();
+            try {
+                long first = lastSeq + 1;
+                lastSeq += count;
+                return first;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Find the records after a sequence number, lowest first.
+         */
+        List<Message> after(long afterSeq, int limit) {
+            lock.readLock().lock();
+            try {
+                List<Message> messages = new ArrayList<>();
+
+                for (int i = firstBlockAfterSeq(afterSeq); i < blocks.size() && messages.size() < limit; i++) {
+                    Block block = blocks.get(i);
+                    ByteBuffer buffer = block.segment.buffer;
+                    int position = block.position;
+
+                    for (int r = 0; r < block.count && messages.size() < limit; r++) {
+                        if (readSeq(buffer, position) > afterSeq)
+                            messages.add(parse(new Candidate(buffer, position, 0)));
+                        position += HEADER_SIZE + buffer.getInt(position);
+                    }
+                }
+
+                return messages;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return The highest sequence number in the leading segments that hold nothing past seq, 0 if there are none
+         */
+        long deletableThrough(long seq) {
+            lock.readLock().lock();
+            try {
+                long through = 0;
+                int blockIndex = 0;
+
+                // The tail is still being written, so it is never deleted
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    int end = segmentEnd(segments.get(i), blockIndex);
+                    if (end == blockIndex)
+                        continue;
+
+                    long maxSeq = blocks.get(end - 1).maxSeq;
+                    if (maxSeq > seq || !isSequenced(blocks.get(blockIndex)))
+                        break;
+
+                    through = maxSeq;
+                    blockIndex = end;
+                }
+
+                return through;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Delete every leading segment holding nothing past seq.
+         *
+         * @return Number of records deleted
+         */
+        long deleteThrough(long seq) throws IOException {
+            lock.writeLock().lock();
+            try {
+                long deleted = 0;
+
+                while (segments.size() > 1) {
+                    Segment segment = segments.get(0);
+                    int end = segmentEnd(segment, 0);
+
+                    int records = 0;
+                    int size = 0;
+                    if (end > 0) {
+                        if (blocks.get(end - 1).maxSeq > seq || !isSequenced(blocks.get(0)))
+                            break;
+
+                        for (Block block : blocks.subList(0, end)) {
+                            records += block.count;
+                        }
+                        size = recordsEnd(blocks.get(end - 1));
+                    }
+
+                    Files.deleteIfExists(segment.path);
+                    segments.remove(0);
+                    unsynced.remove(segment);
+                    // Later blocks' running maximums still cover the deleted records, which only makes them looser
+                    blocks.subList(0, end).clear();
+                    count -= records;
+                    bytes -= size;
+                    deleted += records;
+                }
+
+                return deleted;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * @return Index after the last block in a segment, starting the search from the segment's first block
+         */
+        private int segmentEnd(Segment segment, int from) {
+            int end = from;
+            while (end < blocks.size() && blocks.get(end).segment == segment) {
+                end++;
+            }
+            return end;
+        }
+
+        /**
+         * Records are written in sequence order, so if the first record has a sequence number every later one does
+         */
+        private boolean isSequenced(Block first) {
+            return readSeq(first.segment.buffer, first.position) > 0;
+        }
+
+        private int recordsEnd(Block block) {
+            ByteBuffer buffer = block.segment.buffer;
+            int position = block.position;
+            for (int r = 0; r < block.count; r++) {
+                position += HEADER_SIZE + buffer.getInt(position);
+            }
+            return position;
+        }
+
+        Usage usage() {
+            lock.readLock().lock();
+            try {
+                return new Usage(count, bytes);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private int firstBlockAfterSeq(long seq) {
+            int low = 0;
+            int high = blocks.size();
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (blocks.get(mid).maxSeq > seq) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+
+            return low;
+        }
+
+        private int lastBlockAtOrBefore(long time) {
+            int low = 0;
+            int high = blocks.size() - 1;
+            int found = -1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (blocks.get(mid).suffixMin <= time) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return found;
+        }
+
+        void force() {
+            lock.writeLock().lock();
+            try {
+                for (Segment segment : unsynced) {
+                    segment.buffer.force();
+                }
+                unsynced.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + HEADER_SIZE);
+        body.limit(position + HEADER_SIZE + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static boolean isBefore(Candidate candidate, long time, byte[] id) {
+        if (candidate.time != time)
+            return candidate.time < time;
+
+        for (int i = 0; i < ID_SIZE; i++) {
+            int cmp = Integer.compare(candidate.buffer.get(candidate.position + HEADER_SIZE + 8 + i) & 0xff,
+                    id[i] & 0xff);
+            if (cmp != 0)
+                return cmp < 0;
+        }
+        return false;
+    }
+
+    /**
+     * Read just the sequence number out of a record's serialized message, skipping every other field
+     */
+    private static long readSeq(ByteBuffer buffer, int position) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_SIZE + KEY_SIZE);
+        slice.limit(position + HEADER_SIZE + buffer.getInt(position));
+
+        CodedInputStream in = CodedInputStream.newInstance(slice.slice());
+        try {
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                if (tag == SEQ_TAG)
+                    return in.readUInt64();
+                in.skipField(tag);
+            }
+            return 0;
+        } catch (IOException e) {
+            throw new IllegalStateException("Message log record passed its checksum but could not be parsed", e);
+        }
+    }
+
+    /**
+     * Parse a record's message from a slice of the mapped segment, without copying it out first
+     */
+    private static Message parse(Candidate candidate) {
+        ByteBuffer slice = candidate.buffer.duplicate();
+        slice.position(candidate.position + HEADER_SIZE + KEY_SIZE);
+        slice.limit(candidate.position + HEADER_SIZE + candidate.buffer.getInt(candidate.position));
+
+        try {
+            return Message.parseFrom(slice.slice());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Message log record passed its checksum but could not be parsed", e);
+        }
+    }
+
+    private static String channelId(Channel channel) {
+        // The id names a directory, so it must not be able to point anywhere else
+        if (!ObjectId.isValid(channel.getId()))
+            throw new IllegalArgumentException("Invalid channel id");
+        return channel.getId();
+    }
+
+    private ChannelLog log(String channelId) {
+        return logs.computeIfAbsent(channelId, id -> {
+            try {
+                return new ChannelLog(directory.resolve(id));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * @return The channel's log, or null if nothing has ever been written to it
+     */
+    private ChannelLog existingLog(Channel channel) {
+        String id = channelId(channel);
+        ChannelLog log = logs.get(id);
+        if (log == null && Files.isDirectory(directory.resolve(id)))
+            log = log(id);
+        return log;
+    }
+
+    @Override
+    public void saveMessages(List<ChannelMessage> batch) {
+        Set<ChannelLog> touched = new HashSet<>();
+        Set<Integer> failedIndexes = new HashSet<>();
+        Exception firstError = null;
+
+        for (int i = 0; i < batch.size(); i++) {
+            ChannelMessage channelMessage = batch.get(i);
+            try {
+                ChannelLog log = log(channelId(channelMessage.getChannel()));
+                log.append(channelMessage.getMessage());
+                touched.add(log);
+            } catch (IOException | RuntimeException e) {
+                failedIndexes.add(i);
+                if (firstError == null)
+                    firstError = e;
+            }
+        }
+
+        for (ChannelLog log : touched) {
+            log.force();
+        }
+
+        if (!failedIndexes.isEmpty())
+            throw new PartialWriteException(failedIndexes, firstError);
+    }
+
+    @Override
+    public List<Message> getMessagesBefore(Channel channel, MessageCursor before, int number) {
+        ChannelLog log = existingLog(channel);
+        return log == null ? new ArrayList<>() : log.newest(before, number);
+    }
+
+    @Override
+    public long reserveSequence(Channel channel, int count) {
+        return log(channelId(channel)).reserve(count);
+    }
+
+    /**
+     * Relies on messages being saved in sequence order, as {@link MessageWriter} does
+     */
+    @Override
+    public List<Message> getMessagesAfter(Channel channel, long afterSeq, int number) {
+        ChannelLog log = existingLog(channel);
+        return log == null ? new ArrayList<>() : log.after(afterSeq, number);
+    }
+
+    @Override
+    public List<Message> getMessageRange(Channel channel, int start, int number) {
+        ChannelLog log = existingLog(channel);
+        if (log == null)
+            return new ArrayList<>();
+
+        List<Message> messages = log.newest(null, (int) Math.min(Integer.MAX_VALUE, (long) start + number));
+        return messages.size() <= start ? new ArrayList<>() : messages.subList(start, messages.size());
+    }
+
+    @Override
+    public List<Channel> getStoredChannels() {
+        Set<String> ids = new TreeSet<>(logs.keySet());
+        try (Stream<Path> list = Files.list(directory)) {
+            list.filter(Files::isDirectory)
+                    .map(path -> path.getFileName().toString())
+                    .filter(ObjectId::isValid)
+                    .forEach(ids::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return ids.stream()
+                .map(id -> Channel.newBuilder().setId(id).build())
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Usage getUsage(Channel channel) {
+        ChannelLog log = existingLog(channel);
+        return log == null ? new Usage(0, 0) : log.usage();
+    }
+
+    @Override
+    public long getDeletableThrough(Channel channel, long seq) {
+        ChannelLog log = existingLog(channel);
+        return log == null ? 0 : log.deletableThrough(seq);
+    }
+
+    @Override
+    public long deleteMessagesThrough(Channel channel, long seq) {
+        ChannelLog log = existingLog(channel);
+        if (log == null)
+            return 0;
+
+        try {
+            return log.deleteThrough(seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return Number of channels whose logs are open
+     */
+    public int getOpenChannels() {
+        return logs.size();
+    }
+
+    @Override
+    public void close() {
+        logs.values().forEach(ChannelLog::force);
+        LOGGER.info(String.format("Closed message logs for %d channels", logs.size()));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import org.bson.types.ObjectId;
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compressed files of messages pruned by {@link RetentionEngine}, kept on local disk.
+ *
+ * Each channel has a directory of archives named after the range of sequence numbers they hold, e.g.
+ * {@code 00000000000000000001-00000000000000000500.gz}. An archive is a stream of length-delimited messages, read back
+ * with {@link #read(Path)}. Archives are written to a temporary file, synced and only then renamed into place, so a
+ * complete archive exists before any of its messages are deleted.
+ */
+public class MessageArchive {
+    private static final String SUFFIX = ".gz";
+
+    private final Path directory;
+
+    public MessageArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * An archive being written
+     */
+    public class Writer implements AutoCloseable {
+        private final Path channelDirectory;
+        private final Path temporary;
+        private final FileOutputStream file;
+        private final GZIPOutputStream out;
+        private long firstSeq = 0;
+        private long lastSeq = 0;
+        private int count = 0;
+        private boolean done = false;
+
+        private Writer(Channel channel) throws IOException {
+            // The id names a directory, so it must not be able to point anywhere else
+            if (!ObjectId.isValid(channel.getId()))
+                throw new IllegalArgumentException("Invalid channel id");
+
+            channelDirectory = directory.resolve(channel.getId());
+            Files.createDirectories(channelDirectory);
+            temporary = Files.createTempFile(channelDirectory, "archive", ".tmp");
+            file = new FileOutputStream(temporary.toFile());
+            out = new GZIPOutputStream(new BufferedOutputStream(file));
+        }
+
+        /**
+         * @param message The next message, messages must be written in sequence order
+         */
+        public void write(Message message) throws IOException {
+            if (count++ == 0)
+                firstSeq = message.getSeq();
+            lastSeq = message.getSeq();
+            message.writeDelimitedTo(out);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Make the archive durable and move it into place.
+         *
+         * @return The archive, or null if no messages were written
+         */
+        public Path commit() throws IOException {
+            done = true;
+            out.finish();
+            out.flush();
+            file.getFD().sync();
+            out.close();
+
+            if (count == 0) {
+                Files.delete(temporary);
+                return null;
+            }
+
+            Path archive = channelDirectory.resolve(String.format("%020d-%020d%s", firstSeq, lastSeq, SUFFIX));
+            Files.move(temporary, archive, StandardCopyOption.ATOMIC_MOVE);
+            return archive;
+        }
+
+        /**
+         * Throw away an archive that was not committed
+         */
+        @Override
+        public void close() throws IOException {
+            if (done)
+                return;
+
+            done = true;
+            out.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Start writing an archive of a channel's messages.
+     *
+     * @param channel The channel the messages are from
+     * @return A writer that must be committed, or closed to throw the archive away
+     */
+    public Writer open(Channel channel) throws IOException {
+        return new Writer(channel);
+    }
+
+    /**
+     * @param archive An archive written by this class
+     * @return Every message in the archive, in sequence order
+     */
+    public static List<Message> read(Path archive) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(archive)))) {
+            Message message;
+            while ((message = Message.parseDelimitedFrom(in)) != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+}
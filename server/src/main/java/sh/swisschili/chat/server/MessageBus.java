@@ -0,0 +1,93 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Publish/subscribe transport between servers, or within one. Topics are fanout: every consumer of a topic receives
+ * every message published to it after it started consuming.
+ */
+public interface MessageBus extends AutoCloseable {
+    interface Listener<T> {
+        /**
+         * Called for each message published to the topic. This must not block, as it may hold up delivery to every
+         * other consumer of the topic.
+         *
+         * @param value The message
+         */
+        void onNext(T value);
+
+        /**
+         * Called once if the bus stops delivering to this consumer for any reason other than it being closed.
+         *
+         * @param cause The cause
+         */
+        void onLost(Throwable cause);
+    }
+
+    interface Consumer extends AutoCloseable {
+        /**
+         * Stop consuming. Safe to call more than once.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Publish a message to every consumer of a topic.
+     *
+     * @param topic   The topic, i.e. from {@link ServerConstants#getChannelExchange(String)}
+     * @param message The message
+     * @throws IOException If the message could not be published
+     */
+    void publish(String topic, MessageLite message) throws IOException;
+
+    /**
+     * Publish several messages to a topic, in order. Implementations may do this in fewer round-trips than publishing
+     * each message on its own.
+     *
+     * @param topic    The topic
+     * @param messages The messages
+     * @throws IOException If the messages could not all be published, some may have been
+     */
+    default void publishAll(String topic, List<? extends MessageLite> messages) throws IOException {
+        for (MessageLite message : messages) {
+            publish(topic, message);
+        }
+    }
+
+    /**
+     * Start consuming a topic.
+     *
+     * @param topic    The topic
+     * @param parser   Parser for messages published to the topic, used if they arrive serialized
+     * @param listener Called for every message
+     * @return The consumer, which must be closed once it is no longer needed
+     * @throws IOException If the consumer could not be started
+     */
+    <T extends MessageLite> Consumer consume(String topic, Parser<T> parser, Listener<T> listener) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,117 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Publishes saved messages to the bus off the writer thread, keeping each channel's messages in the order they were
+ * handed over.
+ *
+ * The writer sequences and saves messages in order on a single thread, so handing them over from there keeps them in
+ * sequence order. Each channel then has at most one publish running at a time, which takes every message queued for
+ * the channel since and publishes them together. Clients resume from the highest sequence number they have seen, so
+ * a message published after a later one would never be replayed to them.
+ */
+public class MessagePublisher {
+    private static class Queued {
+        final Message message;
+        final CompletableFuture<Void> published = new CompletableFuture<>();
+
+        Queued(Message message) {
+            this.message = message;
+        }
+    }
+
+    private final MessageBus bus;
+    private final Executor executor;
+    // Messages waiting for each channel with a publish running, other channels have no entry
+    private final Map<String, List<Queued>> queues = new HashMap<>();
+
+    /**
+     * @param bus      The bus to publish to
+     * @param executor Runs the publishes
+     */
+    public MessagePublisher(MessageBus bus, Executor executor) {
+        this.bus = bus;
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a message to be published after every message handed over for its channel before it
+     *
+     * @param channel The channel the message was sent in
+     * @param message The message, with its sequence number
+     * @return A future that completes once the message has been published, or fails if it couldn't be
+     */
+    public CompletableFuture<Void> publish(Channel channel, Message message) {
+        Queued queued = new Queued(message);
+        String channelId = channel.getId();
+
+        synchronized (queues) {
+            List<Queued> queue = queues.get(channelId);
+            if (queue != null) {
+                queue.add(queued);
+                return queued.published;
+            }
+
+            queue = new ArrayList<>();
+            queue.add(queued);
+            queues.put(channelId, queue);
+        }
+
+        executor.execute(() -> publishQueued(channelId));
+        return queued.published;
+    }
+
+    private void publishQueued(String channelId) {
+        while (true) {
+            List<Queued> batch;
+            synchronized (queues) {
+                batch = queues.get(channelId);
+                if (batch.isEmpty()) {
+                    queues.remove(channelId);
+                    return;
+                }
+                queues.put(channelId, new ArrayList<>());
+            }
+
+            List<Message> messages = new ArrayList<>(batch.size());
+            for (Queued queued : batch) {
+                messages.add(queued.message);
+            }
+
+            try {
+                bus.publishAll(ServerConstants.getChannelExchange(channelId), messages);
+                batch.forEach(queued -> queued.published.complete(null));
+            } catch (IOException | RuntimeException e) {
+                batch.forEach(queued -> queued.published.completeExceptionally(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.MessageCursor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Storage for channel history. Messages are ordered newest first by time, then by id, except when read by sequence
+ * number.
+ */
+public interface MessageStore extends AutoCloseable {
+    /**
+     * Thrown by {@link #saveMessages(List)} when only part of a batch could be written
+     */
+    class PartialWriteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final Set<Integer> failedIndexes;
+
+        public PartialWriteException(Set<Integer> failedIndexes, Throwable cause) {
+            super(String.format("%d messages could not be written", failedIndexes.size()), cause);
+            this.failedIndexes = Collections.unmodifiableSet(failedIndexes);
+        }
+
+        /**
+         * @return Indexes into the batch of the messages that were not written
+         */
+        public Set<Integer> getFailedIndexes() {
+            return failedIndexes;
+        }
+    }
+
+    /**
+     * How much of a store one channel takes up
+     */
+    class Usage {
+        private final long count;
+        private final long bytes;
+
+        public Usage(long count, long bytes) {
+            this.count = count;
+            this.bytes = bytes;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Bytes taken up by the channel's messages, which may be an estimate
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Save a batch of messages. Every message must already have an id.
+     *
+     * @param batch The messages to save
+     * @throws PartialWriteException If some messages could not be written, the rest were
+     */
+    void saveMessages(List<ChannelMessage> batch);
+
+    /**
+     * Get the newest messages older than a cursor.
+     *
+     * @param channel The channel to get messages from
+     * @param before  Only return messages older than this, or null to start from the newest message
+     * @param number  The maximum number of messages to return
+     * @return Messages, newest first
+     */
+    List<Message> getMessagesBefore(Channel channel, MessageCursor before, int number);
+
+    /**
+     * Reserve consecutive sequence numbers for messages about to be saved to a channel. Numbers are never handed out
+     * twice, and each reservation starts after every number reserved before it, but a reservation that is never saved
+     * leaves a gap.
+     *
+     * @param channel The channel the messages will be saved to
+     * @param count   How many numbers to reserve
+     * @return The first reserved number, the rest follow it
+     */
+    long reserveSequence(Channel channel, int count);
+
+    /**
+     * Get messages by sequence number, to catch up on everything sent after a given message.
+     *
+     * @param channel  The channel to get messages from
+     * @param afterSeq Only return messages with a higher sequence number than this
+     * @param number   The maximum number of messages to return
+     * @return Messages, lowest sequence number first
+     */
+    List<Message> getMessagesAfter(Channel channel, long afterSeq, int number);
+
+    /**
+     * Get messages by offset from the newest message. Prefer {@link #getMessagesBefore(Channel, MessageCursor, int)}.
+     *
+     * @param channel The channel to get messages from
+     * @param start   Number of newer messages to skip
+     * @param number  The maximum number of messages to return
+     * @return Messages, newest first
+     */
+    List<Message> getMessageRange(Channel channel, int start, int number);
+
+    /**
+     * List every channel with stored messages, for {@link RetentionEngine}. Stores that cannot delete messages return
+     * nothing.
+     *
+     * @return Channels, with only their ids set
+     */
+    default List<Channel> getStoredChannels() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param channel A channel returned by {@link #getStoredChannels()}
+     * @return How many messages with a sequence number the channel holds and their size. Older messages without one
+     * are never deleted, so they are left out.
+     */
+    Usage getUsage(Channel channel);
+
+    /**
+     * Find how far {@link #deleteMessagesThrough(Channel, long)} can delete without going past a sequence number.
+     * Stores that can only delete whole files of messages at a time round down to the end of a file.
+     *
+     * @param channel The channel to delete from
+     * @param seq     The highest sequence number that may be deleted
+     * @return The highest sequence number that would actually be deleted through, 0 if nothing would be
+     */
+    default long getDeletableThrough(Channel channel, long seq) {
+        return seq;
+    }
+
+    /**
+     * Delete a channel's oldest messages, up to and including a sequence number. Messages without a sequence number
+     * are never deleted.
+     *
+     * @param channel The channel to delete from
+     * @param seq     The highest sequence number to delete
+     * @return Number of messages deleted
+     */
+    long deleteMessagesThrough(Channel channel, long seq);
+
+    /**
+     * Release any resources held by the store. Messages saved before this are durable.
+     */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,368 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatProtos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persistence for messages.
+ *
+ * Messages from every channel are queued and written by a single background thread in unordered batches, which are
+ * flushed once they reach a maximum size or the oldest queued message has waited for the linger time. Callers get a
+ * future for each message that completes once its batch has been written.
+ *
+ * Each message is given the next sequence number of its channel when its batch is flushed. Numbers are reserved from
+ * the store once per channel per batch, so they increase in the order messages were queued. With a publisher set,
+ * messages are handed to it from the writer thread in that same order.
+ */
+public class MessageWriter implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageWriter.class);
+
+    public static final int DEFAULT_MAX_BATCH = 512;
+    public static final long DEFAULT_LINGER_MS = 5;
+    public static final int DEFAULT_MAX_PENDING = 16384;
+
+    /**
+     * When a sendMessage call is acknowledged to the client, and when the message is published to subscribers. Either
+     * way the acknowledgement waits for the message's batch to be flushed and given sequence numbers, and for the
+     * message to be published.
+     */
+    public enum AckMode {
+        /**
+         * After the message has been written to the database. Subscribers are only sent persisted messages.
+         */
+        PERSISTED,
+        /**
+         * Once the message has a sequence number, before its batch is saved. Lower latency, but a crash can lose
+         * acknowledged messages. Messages are published before they are saved too, so a client resuming with
+         * getMessages just then can miss one: it was published before the client subscribed, but the replay read from
+         * the store does not include it yet.
+         */
+        ENQUEUED
+    }
+
+    /**
+     * A queued message
+     */
+    public static class Pending {
+        private ChannelMessage message;
+        private final CompletableFuture<ChatProtos.Message> sequenced = new CompletableFuture<>();
+        private final CompletableFuture<ChatProtos.Message> persisted = new CompletableFuture<>();
+        private final CompletableFuture<ChatProtos.Message> published = new CompletableFuture<>();
+
+        private Pending(ChannelMessage message) {
+            this.message = message;
+        }
+
+        /**
+         * @return A future for the message with its sequence number, which completes just before it is written
+         */
+        public CompletableFuture<ChatProtos.Message> getSequenced() {
+            return sequenced;
+        }
+
+        /**
+         * @return A future for the message with its sequence number, which completes once it has been written
+         */
+        public CompletableFuture<ChatProtos.Message> getPersisted() {
+            return persisted;
+        }
+
+        /**
+         * @return A future for the message with its sequence number, which completes once it has been published. Never
+         * completes unless the writer has a publisher, see
+         * {@link MessageWriter#setPublisher(MessagePublisher, AckMode)}.
+         */
+        public CompletableFuture<ChatProtos.Message> getPublished() {
+            return published;
+        }
+
+        private void fail(Throwable t) {
+            sequenced.completeExceptionally(t);
+            persisted.completeExceptionally(t);
+            published.completeExceptionally(t);
+        }
+    }
+
+    private final MessageStore store;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private volatile MessagePublisher publisher = null;
+    private volatile AckMode publishAfter = AckMode.PERSISTED;
+
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong batches = new AtomicLong(0);
+
+    public MessageWriter(MessageStore store) {
+        this(store, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MS, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param store      The store to write to
+     * @param maxBatch   Maximum number of messages written at once
+     * @param lingerMs   Maximum time a message waits for its batch to fill up
+     * @param maxPending Maximum number of messages queued before writes are rejected
+     */
+    public MessageWriter(MessageStore store, int maxBatch, long lingerMs, int maxPending) {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("maxBatch: " + maxBatch);
+
+        this.store = store;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.queue = new ArrayBlockingQueue<>(maxPending);
+
+        flusher = new Thread(this::run, "message-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queue a message to be written. The message must already have its id set, its sequence number is set here.
+     *
+     * @param channel The channel the message was sent in
+     * @param message The message
+     * @return The queued message, which fails straight away if it could not be queued
+     */
+    public Pending write(ChatProtos.Channel channel, ChatProtos.Message message) {
+        Pending pending = new Pending(new ChannelMessage(channel, message));
+
+        if (!running) {
+            pending.fail(new IOException("Message writer is closed"));
+        } else if (!queue.offer(pending)) {
+            failed.incrementAndGet();
+            pending.fail(new IOException("Too many messages waiting to be written"));
+        }
+
+        return pending;
+    }
+
+    /**
+     * Publish every message once it is saved, or as soon as it has a sequence number. Messages are handed over on the
+     * writer thread as they reach that point, so each channel's messages are published in sequence order.
+     *
+     * @param publisher Publishes the messages
+     * @param ackMode   PERSISTED to publish messages once saved, ENQUEUED to publish them once sequenced
+     */
+    public void setPublisher(MessagePublisher publisher, AckMode ackMode) {
+        this.publishAfter = ackMode;
+        this.publisher = publisher;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0)
+                        continue;
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                if (!running)
+                    break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        batches.incrementAndGet();
+        batch = sequence(batch);
+
+        List<ChannelMessage> messages = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            messages.add(pending.message);
+        }
+
+        try {
+            store.saveMessages(messages);
+            written.addAndGet(batch.size());
+            batch.forEach(this::persisted);
+        } catch (MessageStore.PartialWriteException e) {
+            // Everything that didn't fail was still written
+            Set<Integer> failedIndexes = e.getFailedIndexes();
+
+            LOGGER.warn(String.format("%d of %d messages in batch could not be saved", failedIndexes.size(),
+                    batch.size()));
+
+            for (int i = 0; i < batch.size(); i++) {
+                Pending pending = batch.get(i);
+                if (failedIndexes.contains(i)) {
+                    notPersisted(pending, e);
+                } else {
+                    persisted(pending);
+                }
+            }
+
+            written.addAndGet(batch.size() - failedIndexes.size());
+            failed.addAndGet(failedIndexes.size());
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not save batch of messages", e);
+            failed.addAndGet(batch.size());
+            batch.forEach(pending -> notPersisted(pending, e));
+        }
+    }
+
+    private void persisted(Pending pending) {
+        pending.persisted.complete(pending.message.getMessage());
+        if (publishAfter == AckMode.PERSISTED)
+            publish(pending);
+    }
+
+    private void notPersisted(Pending pending, Throwable t) {
+        pending.persisted.completeExceptionally(t);
+        if (publishAfter == AckMode.PERSISTED)
+            pending.published.completeExceptionally(t);
+    }
+
+    private void publish(Pending pending) {
+        MessagePublisher publisher = this.publisher;
+        if (publisher == null)
+            return;
+
+        ChatProtos.Message message = pending.message.getMessage();
+        publisher.publish(pending.message.getChannel(), message).whenComplete((published, t) -> {
+            if (t == null) {
+                pending.published.complete(message);
+            } else {
+                pending.published.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Give every message in a batch the next sequence number of its channel, reserving one range per channel.
+     *
+     * @return The messages that were given sequence numbers, in their original order
+     */
+    private List<Pending> sequence(List<Pending> batch) {
+        Map<String, List<Pending>> byChannel = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            byChannel.computeIfAbsent(pending.message.getChannel().getId(), id -> new ArrayList<>()).add(pending);
+        }
+
+        boolean anyFailed = false;
+        for (List<Pending> channelBatch : byChannel.values()) {
+            ChatProtos.Channel channel = channelBatch.get(0).message.getChannel();
+            try {
+                long seq = store.reserveSequence(channel, channelBatch.size());
+                for (Pending pending : channelBatch) {
+                    pending.message = new ChannelMessage(channel, pending.message.getMessage().toBuilder()
+                            .setSeq(seq++)
+                            .build());
+                    pending.sequenced.complete(pending.message.getMessage());
+                    if (publishAfter == AckMode.ENQUEUED)
+                        publish(pending);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error(String.format("Could not reserve sequence numbers for %d messages", channelBatch.size()),
+                        e);
+                failed.addAndGet(channelBatch.size());
+                channelBatch.forEach(pending -> pending.fail(e));
+                anyFailed = true;
+            }
+        }
+
+        if (!anyFailed)
+            return batch;
+
+        List<Pending> sequenced = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            if (!pending.persisted.isDone())
+                sequenced.add(pending);
+        }
+        return sequenced;
+    }
+
+    /**
+     * @return Number of messages waiting to be written
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * @return Total messages written since startup
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return Total messages that could not be queued or written
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return Total batches flushed since startup
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Stop accepting messages and wait for the queued ones to be written.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Group;
+import sh.swisschili.chat.util.ChatProtos.User;
+import sh.swisschili.chat.util.ChatProtos.UserStatus;
+import sh.swisschili.chat.util.Errors;
+
+import java.util.List;
+
+/**
+ * Storage for everything other than messages: groups, channels, users, registrations and statuses
+ */
+public interface MetadataStore {
+    /**
+     * Create a group with the given name
+     *
+     * @param name The name to give the group
+     * @return The created group
+     */
+    Group createGroup(String name);
+
+    /**
+     * Create a channel in a given group
+     *
+     * @param group The group to create the channel in
+     * @param name  The name to give the channel
+     * @return The created channel
+     */
+    Channel createChannel(Group group, String name);
+
+    User getOrAddUser(String name, String host);
+
+    Group getGroupByName(String name) throws ClassNotFoundException;
+
+    List<Channel> getGroupChannels(Group group);
+
+    void createUser(String name, String password, byte[] publicKey) throws Errors.UsernameRegisteredException;
+
+    boolean authenticateUser(String name, String password) throws Errors.UserNotFoundException;
+
+    byte[] getUserPublicKey(String name) throws Errors.UserNotFoundException;
+
+    /**
+     * Save a user's status in a group, replacing any status previously saved for them there
+     *
+     * @param status The status, identified by the user's name and host
+     * @param group  The group the status was set in
+     */
+    void setUserStatus(UserStatus status, Group group);
+
+    /**
+     * Save a batch of statuses, each replacing any status previously saved for that user in that group
+     *
+     * @param statuses The statuses to save
+     */
+    default void setUserStatuses(List<GroupStatus> statuses) {
+        for (GroupStatus status : statuses) {
+            setUserStatus(status.getStatus(), status.getGroup());
+        }
+    }
+
+    /**
+     * @param group The group to look in
+     * @return The latest saved status of every user in the group
+     */
+    Iterable<UserStatus> getUserStatuses(Group group);
+}
@@ -0,0 +1,162 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records every call's method, status code and latency, from the call starting to it being closed or cancelled.
+ *
+ * For streaming calls such as getMessages the latency is how long the stream was open, and the number of calls in
+ * flight per method doubles as the number of open streams.
+ */
+public class MetricsInterceptor implements ServerInterceptor, MetricsRegistry.Collector {
+    /**
+     * Upper bounds of the latency histogram's buckets, in seconds
+     */
+    private static final String[] BUCKETS = {"0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25",
+            "0.5", "1", "2.5", "5", "10", "30", "60"};
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (Double.parseDouble(BUCKETS[i]) * 1e9);
+        }
+    }
+    private static final Status.Code[] CODES = Status.Code.values();
+
+    private static class MethodMetrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLongArray codes = new AtomicLongArray(CODES.length);
+        final AtomicInteger active = new AtomicInteger(0);
+
+        void finish(long started, Status.Code code) {
+            latency.record(System.nanoTime() - started);
+            codes.incrementAndGet(code.ordinal());
+            active.decrementAndGet();
+        }
+    }
+
+    // Sorted so each scrape lists methods in the same order
+    private final Map<String, MethodMetrics> methods = new ConcurrentSkipListMap<>();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        MethodMetrics metrics = methods.computeIfAbsent(call.getMethodDescriptor().getFullMethodName(),
+                method -> new MethodMetrics());
+        long started = System.nanoTime();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        metrics.active.incrementAndGet();
+
+        ServerCall<ReqT, RespT> recorded = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (finished.compareAndSet(false, true))
+                    metrics.finish(started, status.getCode());
+                super.close(status, trailers);
+            }
+        };
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(recorded, headers);
+        } catch (RuntimeException e) {
+            if (finished.compareAndSet(false, true))
+                metrics.finish(started, Status.fromThrowable(e).getCode());
+            throw e;
+        }
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                if (finished.compareAndSet(false, true))
+                    metrics.finish(started, Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+
+    @Override
+    public void collect(MetricsRegistry.Exposition out) {
+        out.family("chat_rpc_calls_total", "counter", "Finished calls by method and status code");
+        methods.forEach((method, metrics) -> {
+            for (Status.Code code : CODES) {
+                long calls = metrics.codes.get(code.ordinal());
+                if (calls > 0)
+                    out.sample("chat_rpc_calls_total", calls, "method", method, "code", code.name());
+            }
+        });
+
+        out.family("chat_rpc_active_calls", "gauge", "Calls in flight by method, including open streams");
+        methods.forEach((method, metrics) -> out.sample("chat_rpc_active_calls", metrics.active.get(),
+                "method", method));
+
+        // A histogram rather than a summary, so rates over any window can be taken and servers aggregated
+        out.family("chat_rpc_latency_seconds", "histogram", "Time from a call starting to it finishing, by method");
+        methods.forEach((method, metrics) -> {
+            LatencyHistogram latency = metrics.latency;
+            long[] counts = latency.getCumulativeCounts(BUCKET_NANOS);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                out.sample("chat_rpc_latency_seconds_bucket", counts[i], "method", method, "le", BUCKETS[i]);
+            }
+            long count = counts[BUCKETS.length];
+            out.sample("chat_rpc_latency_seconds_bucket", count, "method", method, "le", "+Inf");
+            out.sample("chat_rpc_latency_seconds_sum", latency.getSum() / 1e9, "method", method);
+            out.sample("chat_rpc_latency_seconds_count", count, "method", method);
+        });
+    }
+
+    /**
+     * @param fullMethodName e.g. chat.Chat/SendMessage
+     * @return Latencies of the method's calls, or null if it has not been called
+     */
+    public LatencyHistogram getLatency(String fullMethodName) {
+        MethodMetrics metrics = methods.get(fullMethodName);
+        return metrics == null ? null : metrics.latency;
+    }
+
+    /**
+     * @return Calls of a method that finished with a status code
+     */
+    public long getCallCount(String fullMethodName, Status.Code code) {
+        MethodMetrics metrics = methods.get(fullMethodName);
+        return metrics == null ? 0 : metrics.codes.get(code.ordinal());
+    }
+
+    /**
+     * @return Calls of a method in flight
+     */
+    public int getActiveCalls(String fullMethodName) {
+        MethodMetrics metrics = methods.get(fullMethodName);
+        return metrics == null ? 0 : metrics.active.get();
+    }
+}
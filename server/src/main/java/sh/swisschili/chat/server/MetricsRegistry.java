@@ -0,0 +1,169 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Server metrics, exposed in the Prometheus text format by {@link MetricsServer}.
+ *
+ * Gauges and counters are suppliers reading counts the server's components already keep, so they are only read when
+ * scraped and registering them adds nothing to any hot path. Metrics whose labels are only known at runtime, such as
+ * one per RPC method, are written by a {@link Collector}.
+ */
+public class MetricsRegistry {
+    /**
+     * Writes metrics whenever they are scraped
+     */
+    public interface Collector {
+        void collect(Exposition out);
+    }
+
+    /**
+     * Prometheus text exposition being written
+     */
+    public static class Exposition {
+        private final StringBuilder text = new StringBuilder();
+
+        /**
+         * Start a metric family, must come before its samples
+         *
+         * @param type counter, gauge or summary
+         */
+        public void family(String name, String type, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+                    .append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        /**
+         * @param labels Label names and values, alternating
+         */
+        public void sample(String name, double value, String... labels) {
+            text.append(name);
+            if (labels.length > 0) {
+                text.append('{');
+                for (int i = 0; i + 1 < labels.length; i += 2) {
+                    if (i > 0)
+                        text.append(',');
+                    text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+                }
+                text.append('}');
+            }
+            text.append(' ');
+
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                text.append((long) value);
+            } else {
+                text.append(value);
+            }
+            text.append('\n');
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    private static class Sample {
+        final String[] labels;
+        final DoubleSupplier value;
+
+        Sample(String[] labels, DoubleSupplier value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    private static class Family {
+        final String type;
+        final String help;
+        final List<Sample> samples = new ArrayList<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+    private final List<Collector> collectors = new ArrayList<>();
+
+    /**
+     * Register a value that can go up and down.
+     *
+     * @param labels Label names and values, alternating. The same name can be registered again with other labels
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        add(name, "gauge", help, value, labels);
+    }
+
+    /**
+     * Register a total that only goes up, its name should end in _total.
+     *
+     * @param labels Label names and values, alternating. The same name can be registered again with other labels
+     */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        add(name, "counter", help, value, labels);
+    }
+
+    private synchronized void add(String name, String type, String help, DoubleSupplier value, String[] labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+
+        Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException(String.format("%s is already registered as a %s", name, family.type));
+
+        family.samples.add(new Sample(labels, value));
+    }
+
+    public synchronized void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    /**
+     * @return Every metric, in the Prometheus text format
+     */
+    public synchronized String scrape() {
+        Exposition out = new Exposition();
+
+        families.forEach((name, family) -> {
+            out.family(name, family.type, family.help);
+            for (Sample sample : family.samples) {
+                out.sample(name, sample.value.getAsDouble(), sample.labels);
+            }
+        });
+
+        for (Collector collector : collectors) {
+            collector.collect(out);
+        }
+
+        return out.toString();
+    }
+}
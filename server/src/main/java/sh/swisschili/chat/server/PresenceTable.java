@@ -0,0 +1,493 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package sh.swisschili.chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatProtos.Group;
+import sh.swisschili.chat.util.ChatProtos.Presence;
+import sh.swisschili.chat.util.ChatProtos.User;
+import sh.swisschili.chat.util.ChatProtos.UserStatus;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the latest status of every user in the groups being watched on this server.
+ *
+ * Statuses only enter the table through their group's status topic, so a status set on another server is handled
+ * exactly like one set here. The first watcher of a group subscribes to the topic and then loads the group's saved
+ * statuses, one per user, so nothing published in between is lost. Later watchers are sent a snapshot of the table
+ * instead of querying the database. A group is dropped once its last watcher leaves.
+ *
+ * Statuses set on this server are saved by a background flusher instead of on every change. Only the newest status of
+ * each user is kept until the next flush, so a user flapping between states costs at most one upsert per interval.
+ *
+ * A status other than OFFLINE is also a lease, which the client keeps alive with heartbeats. Leases are kept on a
+ * {@link LeaseWheel}, and a user whose lease runs out is set OFFLINE as if they had done so themselves. This catches
+ * clients that vanish without their status stream ever failing.
+ */
+public class PresenceTable implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PresenceTable.class);
+
+    public static final long DEFAULT_FLUSH_MS = 1000;
+    public static final long DEFAULT_LEASE_MS = 30000;
+
+    private final MessageBus bus;
+    private final SubscriptionHub<UserStatus> hub;
+    private final MetadataStore db;
+    private final long flushMs;
+    private final Map<String, GroupPresence> groups = new HashMap<>();
+    private final ConcurrentHashMap<String, GroupStatus> unsaved = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final LeaseWheel<String, GroupStatus> leases;
+
+    private final AtomicLong updates = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong saved = new AtomicLong(0);
+    private final AtomicLong saveFailures = new AtomicLong(0);
+
+    /**
+     * A watcher's interest in a group's statuses
+     */
+    public class Watch implements AutoCloseable {
+        private final GroupPresence presence;
+        private final SubscriptionHub.Listener<UserStatus> listener;
+        private final List<UserStatus> snapshot;
+
+        private Watch(GroupPresence presence, SubscriptionHub.Listener<UserStatus> listener,
+                      List<UserStatus> snapshot) {
+            this.presence = presence;
+            this.listener = listener;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return The latest status of every user in the group when watching began, older than anything sent to the
+         * listener
+         */
+        public List<UserStatus> getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Stop watching. Safe to call more than once, and from within the listener.
+         */
+        @Override
+        public void close() {
+            if (presence.watchers.remove(listener))
+                release(presence);
+        }
+    }
+
+    private class GroupPresence {
+        final Group group;
+        final String topic;
+        final Map<String, UserStatus> statuses = new HashMap<>();
+        final List<SubscriptionHub.Listener<UserStatus>> watchers = new CopyOnWriteArrayList<>();
+        SubscriptionHub<UserStatus>.Subscription subscription;
+        boolean loaded = false;
+        IOException failure;
+        // Guarded by the table, counts watchers including those still waiting for the group to load
+        int references = 0;
+
+        GroupPresence(Group group) {
+            this.group = group;
+            this.topic = ServerConstants.getGroupUserStatusExchange(group.getId());
+        }
+
+        synchronized void apply(UserStatus status) {
+            statuses.put(userKey(status.getUser()), status);
+
+            for (SubscriptionHub.Listener<UserStatus> watcher : watchers) {
+                try {
+                    watcher.onNext(status);
+                } catch (Exception e) {
+                    LOGGER.info("Status watcher failed, removing it from " + topic);
+                    if (watchers.remove(watcher))
+                        release(this);
+                    watcher.onError(e);
+                }
+            }
+        }
+
+        synchronized void loaded(IOException failure) {
+            this.loaded = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        void lost(Throwable cause) {
+            synchronized (PresenceTable.this) {
+                if (groups.get(group.getId()) == this)
+                    groups.remove(group.getId());
+            }
+
+            LOGGER.warn("Lost status updates for " + topic);
+            for (SubscriptionHub.Listener<UserStatus> watcher : watchers) {
+                watchers.remove(watcher);
+                watcher.onError(cause);
+            }
+        }
+    }
+
+    /**
+     * @param bus     Statuses are published to this bus
+     * @param hub     Used to follow the status topics of watched groups
+     * @param db      Where statuses are loaded from and saved to
+     * @param flushMs How often statuses set on this server are saved, or 0 to save each one as it is set
+     * @param leaseMs How long a status lasts without a heartbeat before the user is set OFFLINE, or 0 to never expire
+     *                statuses
+     */
+    public PresenceTable(MessageBus bus, SubscriptionHub<UserStatus> hub, MetadataStore db, long flushMs,
+                         long leaseMs) {
+        this.bus = bus;
+        this.hub = hub;
+        this.db = db;
+        this.flushMs = flushMs;
+
+        if (flushMs > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "presence-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+
+        if (leaseMs > 0) {
+            long tickMs = Math.max(1, Math.min(LeaseWheel.DEFAULT_TICK_MS, leaseMs / 10));
+            leases = new LeaseWheel<>(leaseMs, tickMs, this::expired);
+        } else {
+            leases = null;
+        }
+    }
+
+    /**
+     * Publish a user's status to everyone watching the group and schedule it to be saved.
+     *
+     * @param group  The group the status applies to
+     * @param status The new status
+     * @throws IOException If the status could not be published
+     */
+    public void setStatus(Group group, UserStatus status) throws IOException {
+        updates.incrementAndGet();
+        bus.publish(ServerConstants.getGroupUserStatusExchange(group.getId()), status);
+
+        String key = groupUserKey(group, status.getUser());
+        if (leases != null) {
+            if (!status.hasCustom() && status.getPresence() == Presence.OFFLINE)
+                leases.cancel(key);
+            else
+                leases.renew(key, new GroupStatus(group, status));
+        }
+
+        if (flusher == null) {
+            db.setUserStatus(status, group);
+            saved.incrementAndGet();
+        } else if (unsaved.put(key, new GroupStatus(group, status)) != null) {
+            coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Renew a user's lease on their status.
+     *
+     * @param group The group the status was set in
+     * @param user  The user
+     * @return False if the user has no lease, because it ran out or their status was never set on this server, in
+     * which case they should set their status again
+     */
+    public boolean heartbeat(Group group, User user) {
+        return leases == null || leases.renew(groupUserKey(group, user));
+    }
+
+    private void expired(String key, GroupStatus status) {
+        User user = status.getStatus().getUser();
+        LOGGER.info(String.format("No heartbeat from %s@%s, setting them offline", user.getName(), user.getHost()));
+
+        try {
+            setStatus(status.getGroup(), UserStatus.newBuilder()
+                    .setUser(user)
+                    .setPresence(Presence.OFFLINE)
+                    .build());
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Could not set %s offline", user.getName()), e);
+        }
+    }
+
+    /**
+     * Watch a group's statuses. The watch holds the latest status of every user in the group, and the listener is
+     * sent every status published afterwards, with nothing missed or repeated in between. The snapshot is returned
+     * rather than sent so a caller streaming to a client can send it as a backlog, which no overflow policy drops.
+     *
+     * @param group    The group to watch
+     * @param listener Called for each status published after the snapshot. This must not block, as it holds up
+     *                 delivery to the group's other watchers
+     * @return A watch holding the snapshot, which must be closed once the caller is no longer interested
+     * @throws IOException If the group could not be loaded
+     */
+    public Watch watch(Group group, SubscriptionHub.Listener<UserStatus> listener) throws IOException {
+        GroupPresence presence;
+        boolean first;
+        List<UserStatus> snapshot;
+
+        synchronized (this) {
+            presence = groups.get(group.getId());
+            first = presence == null;
+            if (first) {
+                presence = new GroupPresence(group);
+                groups.put(group.getId(), presence);
+            }
+            presence.references++;
+        }
+
+        if (first)
+            load(presence);
+
+        synchronized (presence) {
+            while (!presence.loaded) {
+                try {
+                    presence.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    release(presence);
+                    throw new IOException("Interrupted while loading statuses", e);
+                }
+            }
+
+            if (presence.failure != null) {
+                release(presence);
+                throw presence.failure;
+            }
+
+            snapshot = new ArrayList<>(presence.statuses.values());
+            presence.watchers.add(listener);
+        }
+
+        return new Watch(presence, listener, snapshot);
+    }
+
+    private void load(GroupPresence presence) {
+        try {
+            presence.subscription = hub.subscribe(presence.topic, new SubscriptionHub.Listener<UserStatus>() {
+                @Override
+                public void onNext(UserStatus value) {
+                    presence.apply(value);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    presence.lost(t);
+                }
+            });
+
+            // Anything already in the table arrived after subscribing, so it is newer than what was saved
+            List<UserStatus> saved = new ArrayList<>();
+            db.getUserStatuses(presence.group).forEach(saved::add);
+            String prefix = presence.group.getId() + "/";
+            synchronized (presence) {
+                unsaved.forEach((key, status) -> {
+                    if (key.startsWith(prefix))
+                        presence.statuses.putIfAbsent(userKey(status.getStatus().getUser()), status.getStatus());
+                });
+                for (UserStatus status : saved) {
+                    presence.statuses.putIfAbsent(userKey(status.getUser()), status);
+                }
+            }
+
+            LOGGER.info(String.format("Loaded %d statuses for %s", saved.size(), presence.topic));
+            presence.loaded(null);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Could not load statuses for " + presence.topic, e);
+            synchronized (this) {
+                if (groups.get(presence.group.getId()) == presence)
+                    groups.remove(presence.group.getId());
+            }
+            presence.loaded(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void release(GroupPresence presence) {
+        boolean last;
+
+        synchronized (this) {
+            last = --presence.references == 0;
+            if (last && groups.get(presence.group.getId()) == presence)
+                groups.remove(presence.group.getId());
+        }
+
+        if (last && presence.subscription != null)
+            presence.subscription.close();
+    }
+
+    private static String userKey(User user) {
+        return user.getName() + "@" + user.getHost();
+    }
+
+    private static String groupUserKey(Group group, User user) {
+        return group.getId() + "/" + userKey(user);
+    }
+
+    /**
+     * Save every status set since the last flush. Called periodically by the flusher, statuses that fail to save are
+     * retried on the next flush unless they have been replaced in the meantime.
+     */
+    public void flush() {
+        if (unsaved.isEmpty())
+            return;
+
+        List<GroupStatus> batch = new ArrayList<>(unsaved.size());
+        for (Map.Entry<String, GroupStatus> entry : unsaved.entrySet()) {
+            if (unsaved.remove(entry.getKey(), entry.getValue()))
+                batch.add(entry.getValue());
+        }
+
+        try {
+            db.setUserStatuses(batch);
+            saved.addAndGet(batch.size());
+        } catch (RuntimeException e) {
+            saveFailures.incrementAndGet();
+            LOGGER.warn(String.format("Could not save %d statuses, retrying", batch.size()), e);
+            for (GroupStatus status : batch) {
+                unsaved.putIfAbsent(groupUserKey(status.getGroup(), status.getStatus().getUser()), status);
+            }
+        }
+    }
+
+    /**
+     * @return Number of groups currently held in memory
+     */
+    public synchronized int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * @return Number of statuses currently held in memory, across all groups
+     */
+    public int getStatusCount() {
+        List<GroupPresence> presences;
+        synchronized (this) {
+            presences = new ArrayList<>(groups.values());
+        }
+
+        int count = 0;
+        for (GroupPresence presence : presences) {
+            synchronized (presence) {
+                count += presence.statuses.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of statuses set but not yet saved
+     */
+    public int getUnsavedCount() {
+        return unsaved.size();
+    }
+
+    /**
+     * @return Total statuses set on this server since startup
+     */
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    /**
+     * @return Total statuses that replaced an unsaved status of the same user, and so were never written on their own
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return Total statuses written to the database
+     */
+    public long getSavedCount() {
+        return saved.get();
+    }
+
+    /**
+     * @return Total flushes that failed to write
+     */
+    public long getSaveFailureCount() {
+        return saveFailures.get();
+    }
+
+    /**
+     * @return Number of users whose status is kept alive by heartbeats
+     */
+    public int getLeaseCount() {
+        return leases == null ? 0 : leases.size();
+    }
+
+    /**
+     * @return Total users set offline because their lease ran out
+     */
+    public long getExpiredCount() {
+        return leases == null ? 0 : leases.getExpiredCount();
+    }
+
+    public long getFlushMs() {
+        return flushMs;
+    }
+
+    /**
+     * @return How long a status lasts without a heartbeat, 0 if statuses never expire
+     */
+    public long getLeaseMs() {
+        return leases == null ? 0 : leases.getLeaseMs();
+    }
+
+    /**
+     * Stop following every group and expiring leases, and save any statuses that have not been saved yet
+     */
+    @Override
+    public void close() {
+        if (leases != null)
+            leases.close();
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+
+        List<GroupPresence> presences;
+        synchronized (this) {
+            presences = new ArrayList<>(groups.values());
+            groups.clear();
+        }
+        for (GroupPresence presence : presences) {
+            if (presence.subscription != null)
+                presence.subscription.close();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatProtos;
+
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of users' public keys, keyed by name and host.
+ *
+ * Concurrent lookups of a key that is not cached share a single load, so a burst of messages from a new sender only
+ * asks their authentication server once. Keys are reloaded in the background once they are older than the refresh
+ * time, and are not served at all once they are older than the expiry time. The least recently used key is evicted
+ * once the cache is full. Failed loads are not cached.
+ */
+public class PublicKeyCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PublicKeyCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_REFRESH_MS = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_EXPIRE_MS = TimeUnit.HOURS.toMillis(1);
+
+    public interface Loader {
+        CompletableFuture<PublicKey> load(ChatProtos.User user);
+    }
+
+    private static class Key {
+        final String name;
+        final String host;
+
+        Key(ChatProtos.User user) {
+            this.name = user.getName();
+            this.host = user.getHost();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return name.equals(key.name) && host.equals(key.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, host);
+        }
+    }
+
+    private static class CachedKey {
+        final CompletableFuture<PublicKey> future;
+        volatile long loadedAt = Long.MAX_VALUE;
+        volatile boolean refreshing = false;
+
+        CachedKey(CompletableFuture<PublicKey> future) {
+            this.future = future;
+        }
+    }
+
+    private final Loader loader;
+    private final long refreshNanos;
+    private final long expireNanos;
+    private final Map<Key, CachedKey> entries;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong loads = new AtomicLong(0);
+    private final AtomicLong loadFailures = new AtomicLong(0);
+    private final AtomicLong loadNanos = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public PublicKeyCache(Loader loader) {
+        this(loader, DEFAULT_MAX_SIZE, DEFAULT_REFRESH_MS, DEFAULT_EXPIRE_MS);
+    }
+
+    /**
+     * @param loader    Fetches a key that is not cached
+     * @param maxSize   Maximum number of keys to hold
+     * @param refreshMs Age after which a key is reloaded in the background
+     * @param expireMs  Age after which a key is no longer served
+     */
+    public PublicKeyCache(Loader loader, int maxSize, long refreshMs, long expireMs) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+
+        this.loader = loader;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMs);
+        this.expireNanos = TimeUnit.MILLISECONDS.toNanos(expireMs);
+        this.entries = new LinkedHashMap<Key, CachedKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedKey> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a user's public key, loading it if it is not cached.
+     *
+     * @param user The user
+     * @return A future for the key, shared with any other caller waiting on the same load
+     */
+    public CompletableFuture<PublicKey> get(ChatProtos.User user) {
+        Key key = new Key(user);
+        long now = System.nanoTime();
+        CachedKey entry;
+        boolean load = false;
+        boolean refresh = false;
+
+        synchronized (entries) {
+            entry = entries.get(key);
+
+            if (entry != null && entry.loadedAt != Long.MAX_VALUE && now - entry.loadedAt > expireNanos) {
+                entries.remove(key);
+                entry = null;
+            }
+
+            if (entry == null) {
+                entry = new CachedKey(new CompletableFuture<>());
+                entries.put(key, entry);
+                load = true;
+            } else if (!entry.refreshing && entry.loadedAt != Long.MAX_VALUE && now - entry.loadedAt > refreshNanos) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+
+        if (load) {
+            misses.incrementAndGet();
+            load(key, user, entry);
+        } else {
+            hits.incrementAndGet();
+            if (refresh)
+                refresh(key, user);
+        }
+
+        return entry.future;
+    }
+
+    private void load(Key key, ChatProtos.User user, CachedKey entry) {
+        startLoad(user).whenComplete((publicKey, t) -> {
+            if (t == null) {
+                entry.loadedAt = System.nanoTime();
+                entry.future.complete(publicKey);
+            } else {
+                synchronized (entries) {
+                    entries.remove(key, entry);
+                }
+                entry.future.completeExceptionally(t);
+            }
+        });
+    }
+
+    private void refresh(Key key, ChatProtos.User user) {
+        LOGGER.info(String.format("Refreshing public key for %s@%s", key.name, key.host));
+
+        startLoad(user).whenComplete((publicKey, t) -> {
+            synchronized (entries) {
+                CachedKey current = entries.get(key);
+                if (t == null) {
+                    CachedKey fresh = new CachedKey(CompletableFuture.completedFuture(publicKey));
+                    fresh.loadedAt = System.nanoTime();
+                    entries.put(key, fresh);
+                } else if (current != null) {
+                    // Keep serving the old key until it expires, and try again next time it is used
+                    current.refreshing = false;
+                }
+            }
+        });
+    }
+
+    private CompletableFuture<PublicKey> startLoad(ChatProtos.User user) {
+        long start = System.nanoTime();
+        loads.incrementAndGet();
+
+        CompletableFuture<PublicKey> future;
+        try {
+            future = loader.load(user);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        return future.whenComplete((publicKey, t) -> {
+            loadNanos.addAndGet(System.nanoTime() - start);
+            if (t != null)
+                loadFailures.incrementAndGet();
+        });
+    }
+
+    /**
+     * Cache a key that is already known, i.e. for a user registered on this server.
+     *
+     * @param user      The user
+     * @param publicKey Their public key
+     */
+    public void put(ChatProtos.User user, PublicKey publicKey) {
+        CachedKey entry = new CachedKey(CompletableFuture.completedFuture(publicKey));
+        entry.loadedAt = System.nanoTime();
+
+        synchronized (entries) {
+            entries.put(new Key(user), entry);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailures.get();
+    }
+
+    /**
+     * @return Total time spent loading keys, in nanoseconds
+     */
+    public long getTotalLoadNanos() {
+        return loadNanos.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        long lookups = hits.get() + misses.get();
+        long loadCount = loads.get();
+        return String.format("PublicKeyCache[size=%d, hitRatio=%.3f, loads=%d, loadFailures=%d, avgLoadMs=%.2f, evictions=%d]",
+                size(), lookups == 0 ? 0.0 : (double) hits.get() / lookups, loadCount, loadFailures.get(),
+                loadCount == 0 ? 0.0 : loadNanos.get() / 1e6 / loadCount, evictions.get());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Message bus backed by RabbitMQ fanout exchanges, one per topic. Messages are published through a {@link ChannelPool},
+ * and each consumer gets its own channel and server-named queue bound to the topic's exchange.
+ */
+public class RabbitMessageBus implements MessageBus {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMessageBus.class);
+
+    private final Connection conn;
+    private final ChannelPool channelPool;
+
+    public RabbitMessageBus(String host, int port, int maxChannels) throws IOException, TimeoutException {
+        this(connect(host, port), maxChannels);
+    }
+
+    /**
+     * @param conn        An open broker connection, closed along with this bus
+     * @param maxChannels Maximum pooled publisher channels
+     */
+    public RabbitMessageBus(Connection conn, int maxChannels) {
+        this.conn = conn;
+        this.channelPool = new ChannelPool(conn, maxChannels, ChannelPool.DEFAULT_BORROW_TIMEOUT_MS);
+    }
+
+    private static Connection connect(String host, int port) throws IOException, TimeoutException {
+        ConnectionFactory connectionFactory = new ConnectionFactory();
+        connectionFactory.setHost(host);
+        connectionFactory.setPort(port);
+        return connectionFactory.newConnection();
+    }
+
+    @Override
+    public void publish(String topic, MessageLite message) throws IOException {
+        channelPool.publish(topic, message.toByteArray());
+    }
+
+    /**
+     * Publish every message on one pooled channel, borrowing it and checking the exchange is declared only once
+     */
+    @Override
+    public void publishAll(String topic, List<? extends MessageLite> messages) throws IOException {
+        List<byte[]> bodies = new ArrayList<>(messages.size());
+        for (MessageLite message : messages) {
+            bodies.add(message.toByteArray());
+        }
+        channelPool.publishAll(topic, bodies);
+    }
+
+    @Override
+    public <T extends MessageLite> Consumer consume(String topic, Parser<T> parser, Listener<T> listener)
+            throws IOException {
+        RabbitConsumer consumer = new RabbitConsumer(topic);
+        try {
+            consumer.open(parser, listener);
+        } catch (IOException e) {
+            consumer.close();
+            throw e;
+        }
+        return consumer;
+    }
+
+    private class RabbitConsumer implements Consumer {
+        final String exchange;
+        Channel channel;
+        String consumerTag;
+        volatile boolean closing = false;
+
+        RabbitConsumer(String exchange) {
+            this.exchange = exchange;
+        }
+
+        <T> void open(Parser<T> parser, Listener<T> listener) throws IOException {
+            channel = conn.createChannel();
+            channelPool.declareExchange(channel, exchange);
+
+            String queueName = channel.queueDeclare().getQueue();
+            channel.queueBind(queueName, exchange, "");
+
+            consumerTag = channel.basicConsume(queueName, true,
+                    (tag, delivery) -> {
+                        T value;
+                        try {
+                            value = parser.parseFrom(delivery.getBody());
+                        } catch (InvalidProtocolBufferException e) {
+                            LOGGER.warn("Dropping malformed message from " + exchange);
+                            return;
+                        }
+
+                        listener.onNext(value);
+                    },
+                    tag -> lost(listener, new IOException("Consumer cancelled by broker")),
+                    (tag, signal) -> lost(listener, signal));
+        }
+
+        private void lost(Listener<?> listener, Throwable cause) {
+            if (!closing)
+                listener.onLost(cause);
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            try {
+                if (channel != null && channel.isOpen()) {
+                    if (consumerTag != null)
+                        channel.basicCancel(consumerTag);
+                    channel.close();
+                }
+            } catch (IOException | TimeoutException | ShutdownSignalException e) {
+                LOGGER.warn("Could not cleanly close consumer for " + exchange, e);
+            }
+        }
+    }
+
+    public ChannelPool getChannelPool() {
+        return channelPool;
+    }
+
+    @Override
+    public void close() {
+        channelPool.close();
+
+        try {
+            conn.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close RabbitMQ connection", e);
+        }
+    }
+}
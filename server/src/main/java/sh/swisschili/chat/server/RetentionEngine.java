@@ -0,0 +1,391 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Group;
+import sh.swisschili.chat.util.ChatProtos.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prunes old messages in the background according to each channel's {@link RetentionPolicy}.
+ *
+ * A channel's policy is its own if it has one, otherwise its group's, otherwise the default. Every pass walks each
+ * stored channel's messages oldest first by sequence number to find how far the policy reaches, optionally writes
+ * that range to a {@link MessageArchive}, then deletes it in batches. Deletes are throttled to a fixed rate, and a
+ * channel only has so many messages pruned per pass, so catching up on a large backlog is spread over several passes
+ * instead of competing with foreground reads and writes.
+ *
+ * Only messages with a sequence number are pruned.
+ */
+public class RetentionEngine implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetentionEngine.class);
+
+    public static final long DEFAULT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+    public static final int DEFAULT_DELETES_PER_SECOND = 2000;
+    public static final int BATCH_SIZE = 500;
+    public static final int MAX_MESSAGES_PER_PASS = 100_000;
+
+    private final MessageStore store;
+    private final MetadataStore metadata;
+    private final RetentionPolicy defaultPolicy;
+    private final MessageArchive archive;
+    private final int deletesPerSecond;
+    private final Map<String, RetentionPolicy> groupPolicies = new ConcurrentHashMap<>();
+    private final Map<String, RetentionPolicy> channelPolicies = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler = null;
+    private volatile boolean closed = false;
+
+    private final AtomicLong passes = new AtomicLong(0);
+    private final AtomicLong deleted = new AtomicLong(0);
+    private final AtomicLong archived = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private volatile long backlog = 0;
+    private volatile long lastPassMs = 0;
+    private volatile long lastPassFinished = 0;
+
+    /**
+     * @param store            The store to prune
+     * @param metadata         Used to find the channels of groups with a policy, may be null if no group has one
+     * @param defaultPolicy    Policy for channels without one of their own or of their group's
+     * @param archive          Where to archive messages before deleting them, or null to only delete them
+     * @param deletesPerSecond Most messages deleted per second
+     */
+    public RetentionEngine(MessageStore store, MetadataStore metadata, RetentionPolicy defaultPolicy,
+                           MessageArchive archive, int deletesPerSecond) {
+        if (deletesPerSecond < 1)
+            throw new IllegalArgumentException("deletesPerSecond: " + deletesPerSecond);
+
+        this.store = store;
+        this.metadata = metadata;
+        this.defaultPolicy = defaultPolicy;
+        this.archive = archive;
+        this.deletesPerSecond = deletesPerSecond;
+    }
+
+    /**
+     * @param groupName The name of a group
+     * @param policy    Policy for every channel in the group without a policy of its own
+     */
+    public void setGroupPolicy(String groupName, RetentionPolicy policy) {
+        groupPolicies.put(groupName, policy);
+    }
+
+    /**
+     * @param channelId The id of a channel
+     * @param policy    Policy for the channel
+     */
+    public void setChannelPolicy(String channelId, RetentionPolicy policy) {
+        channelPolicies.put(channelId, policy);
+    }
+
+    /**
+     * Set policies from properties named {@code group.<group name>} or {@code channel.<channel id>}, each a policy in
+     * the form {@link RetentionPolicy#parse(String)} takes.
+     *
+     * @throws IllegalArgumentException If a property has another name or its policy cannot be parsed
+     */
+    public void setPolicies(Properties properties) {
+        for (String name : properties.stringPropertyNames()) {
+            RetentionPolicy policy = RetentionPolicy.parse(properties.getProperty(name));
+
+            if (name.startsWith("group.")) {
+                setGroupPolicy(name.substring("group.".length()), policy);
+            } else if (name.startsWith("channel.")) {
+                setChannelPolicy(name.substring("channel.".length()), policy);
+            } else {
+                throw new IllegalArgumentException("Retention policies must be named group.<name> or channel.<id>: "
+                        + name);
+            }
+        }
+    }
+
+    /**
+     * Run a pass every interval on a background thread.
+     *
+     * @param intervalMs Time between the end of one pass and the start of the next
+     */
+    public synchronized void start(long intervalMs) {
+        if (scheduler != null)
+            throw new IllegalStateException("Retention engine already started");
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "retention");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                runPass();
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                LOGGER.error("Retention pass failed", e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+        LOGGER.info(String.format("Pruning messages every %dms, default policy %s, %d channel and %d group policies",
+                intervalMs, defaultPolicy, channelPolicies.size(), groupPolicies.size()));
+    }
+
+    /**
+     * Prune every stored channel once. Called by the background thread, but can also be called directly.
+     */
+    public synchronized void runPass() {
+        long started = System.currentTimeMillis();
+        Map<String, RetentionPolicy> policies = resolvePolicies();
+        long deletedBefore = deleted.get();
+        long remaining = 0;
+
+        for (Channel channel : store.getStoredChannels()) {
+            if (closed)
+                break;
+
+            RetentionPolicy policy = policies.getOrDefault(channel.getId(), defaultPolicy);
+            if (policy.isUnlimited())
+                continue;
+
+            try {
+                remaining += prune(channel, policy, started);
+            } catch (IOException | RuntimeException e) {
+                failures.incrementAndGet();
+                LOGGER.error(String.format("Could not prune channel %s", channel.getId()), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        backlog = remaining;
+        lastPassFinished = System.currentTimeMillis();
+        lastPassMs = lastPassFinished - started;
+        passes.incrementAndGet();
+
+        long pruned = deleted.get() - deletedBefore;
+        if (pruned > 0 || remaining > 0) {
+            LOGGER.info(String.format("Pruned %d messages in %dms, %d more past their retention",
+                    pruned, lastPassMs, remaining));
+        }
+    }
+
+    /**
+     * @return Policy of every channel with a policy of its own or of its group's, by channel id
+     */
+    private Map<String, RetentionPolicy> resolvePolicies() {
+        Map<String, RetentionPolicy> policies = new HashMap<>();
+
+        if (metadata != null) {
+            groupPolicies.forEach((name, policy) -> {
+                try {
+                    Group group = metadata.getGroupByName(name);
+                    for (Channel channel : metadata.getGroupChannels(group)) {
+                        policies.put(channel.getId(), policy);
+                    }
+                } catch (ClassNotFoundException e) {
+                    LOGGER.warn(String.format("Retention policy for group %s, which does not exist", name));
+                }
+            });
+        }
+
+        policies.putAll(channelPolicies);
+        return policies;
+    }
+
+    /**
+     * Prune one channel's oldest messages, up to {@link #MAX_MESSAGES_PER_PASS} of them.
+     *
+     * @return Messages found past the policy but left for a later pass
+     */
+    private long prune(Channel channel, RetentionPolicy policy, long now) throws IOException, InterruptedException {
+        MessageStore.Usage usage = store.getUsage(channel);
+        long averageSize = usage.getCount() == 0 ? 0 : usage.getBytes() / usage.getCount();
+        long excessCount = policy.getMaxCount() > 0 ? usage.getCount() - policy.getMaxCount() : 0;
+        long excessBytes = policy.getMaxBytes() > 0 ? usage.getBytes() - policy.getMaxBytes() : 0;
+        long oldestTime = policy.getMaxAgeMs() > 0 ? now - policy.getMaxAgeMs() : Long.MIN_VALUE;
+
+        // Find how far the policy reaches, noting where each delete batch ends
+        List<Long> batchEnds = new ArrayList<>();
+        long expiredThrough = 0;
+        long lastBatchEnd = 0;
+        int expired = 0;
+        boolean more = true;
+
+        while (more && expired < MAX_MESSAGES_PER_PASS) {
+            List<Message> page = store.getMessagesAfter(channel, expiredThrough, BATCH_SIZE);
+            more = page.size() == BATCH_SIZE;
+
+            for (Message message : page) {
+                if (excessCount <= 0 && excessBytes <= 0 && message.getUnixTime() >= oldestTime) {
+                    more = false;
+                    break;
+                }
+
+                excessCount--;
+                excessBytes -= averageSize;
+                expiredThrough = message.getSeq();
+                expired++;
+            }
+
+            if (expiredThrough > lastBatchEnd) {
+                batchEnds.add(expiredThrough);
+                lastBatchEnd = expiredThrough;
+            }
+        }
+
+        long through = expiredThrough == 0 ? 0 : store.getDeletableThrough(channel, expiredThrough);
+        if (through == 0)
+            return expired;
+
+        if (archive != null)
+            archive(channel, through);
+
+        long channelDeleted = 0;
+        for (long end : batchEnds) {
+            if (closed)
+                break;
+
+            long batchStarted = System.currentTimeMillis();
+            long batchDeleted = store.deleteMessagesThrough(channel, Math.min(end, through));
+            channelDeleted += batchDeleted;
+            deleted.addAndGet(batchDeleted);
+
+            long wait = batchDeleted * 1000 / deletesPerSecond - (System.currentTimeMillis() - batchStarted);
+            if (wait > 0)
+                Thread.sleep(wait);
+
+            if (end >= through)
+                break;
+        }
+
+        long left = expired - channelDeleted;
+        if (more)
+            left += Math.max(excessCount, 0);
+        return Math.max(left, 0);
+    }
+
+    /**
+     * Archive a channel's messages up to a sequence number before they are deleted
+     */
+    private void archive(Channel channel, long through) throws IOException {
+        try (MessageArchive.Writer writer = archive.open(channel)) {
+            long after = 0;
+            while (after < through) {
+                List<Message> page = store.getMessagesAfter(channel, after, BATCH_SIZE);
+                if (page.isEmpty())
+                    break;
+
+                for (Message message : page) {
+                    if (message.getSeq() > through)
+                        break;
+                    writer.write(message);
+                    after = message.getSeq();
+                }
+
+                if (page.get(page.size() - 1).getSeq() > through || page.size() < BATCH_SIZE)
+                    break;
+            }
+
+            Path file = writer.commit();
+            archived.addAndGet(writer.getCount());
+            if (file != null)
+                LOGGER.info(String.format("Archived %d messages to %s", writer.getCount(), file));
+        }
+    }
+
+    /**
+     * @return Number of passes finished since startup
+     */
+    public long getPassCount() {
+        return passes.get();
+    }
+
+    /**
+     * @return Total messages deleted since startup
+     */
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    /**
+     * @return Total messages archived since startup
+     */
+    public long getArchivedCount() {
+        return archived.get();
+    }
+
+    /**
+     * @return Total channels that could not be pruned, or passes that failed outright
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return Messages known to be past their retention at the end of the last pass but not yet deleted, e.g. because
+     * of the per-pass limit or because the store deletes whole files at a time
+     */
+    public long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return How long the last pass took, including time spent throttling deletes
+     */
+    public long getLastPassMs() {
+        return lastPassMs;
+    }
+
+    /**
+     * @return Milliseconds since the last pass finished, or -1 if none has
+     */
+    public long getLagMs() {
+        long finished = lastPassFinished;
+        return finished == 0 ? -1 : System.currentTimeMillis() - finished;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        // Not synchronized, a pass holds the lock while it runs and is only stopped early by the interrupt
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
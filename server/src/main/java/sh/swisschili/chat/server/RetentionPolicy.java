@@ -0,0 +1,161 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on how much history a channel keeps. Messages past any one of the limits are pruned, oldest first.
+ *
+ * A policy is written as a comma separated list of limits, e.g. {@code age=30d,count=100000,size=512m}. Ages take a
+ * unit of s, m, h or d, sizes one of k, m or g. Limits left out, or set to 0, do not apply.
+ */
+public class RetentionPolicy {
+    public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, 0);
+
+    private final long maxAgeMs;
+    private final long maxCount;
+    private final long maxBytes;
+
+    /**
+     * @param maxAgeMs Oldest a message can be, in milliseconds
+     * @param maxCount Most messages a channel can hold
+     * @param maxBytes Most bytes a channel's messages can take up
+     */
+    public RetentionPolicy(long maxAgeMs, long maxCount, long maxBytes) {
+        if (maxAgeMs < 0 || maxCount < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("Retention limits cannot be negative");
+
+        this.maxAgeMs = maxAgeMs;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param spec A policy such as {@code age=30d,count=100000,size=512m}, empty for no limits
+     * @return The policy
+     * @throws IllegalArgumentException If spec cannot be parsed
+     */
+    public static RetentionPolicy parse(String spec) {
+        long maxAgeMs = 0;
+        long maxCount = 0;
+        long maxBytes = 0;
+
+        for (String limit : spec.split(",")) {
+            limit = limit.trim();
+            if (limit.isEmpty())
+                continue;
+
+            int equals = limit.indexOf('=');
+            if (equals < 0)
+                throw new IllegalArgumentException("Expected name=value in retention policy: " + limit);
+
+            String name = limit.substring(0, equals).trim();
+            String value = limit.substring(equals + 1).trim().toLowerCase();
+
+            switch (name) {
+                case "age":
+                    maxAgeMs = parseAge(value);
+                    break;
+                case "count":
+                    maxCount = parseNumber(value);
+                    break;
+                case "size":
+                    maxBytes = parseSize(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown retention limit: " + name);
+            }
+        }
+
+        return new RetentionPolicy(maxAgeMs, maxCount, maxBytes);
+    }
+
+    private static long parseAge(String value) {
+        if (value.isEmpty())
+            throw new IllegalArgumentException("Missing retention age");
+
+        long amount = parseNumber(value.substring(0, value.length() - 1));
+        switch (value.charAt(value.length() - 1)) {
+            case 's':
+                return TimeUnit.SECONDS.toMillis(amount);
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(amount);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(amount);
+            case 'd':
+                return TimeUnit.DAYS.toMillis(amount);
+            default:
+                throw new IllegalArgumentException("Retention age needs a unit of s, m, h or d: " + value);
+        }
+    }
+
+    private static long parseSize(String value) {
+        if (value.isEmpty())
+            throw new IllegalArgumentException("Missing retention size");
+
+        char unit = value.charAt(value.length() - 1);
+        if (Character.isDigit(unit))
+            return parseNumber(value);
+
+        long amount = parseNumber(value.substring(0, value.length() - 1));
+        switch (unit) {
+            case 'k':
+                return amount * 1024;
+            case 'm':
+                return amount * 1024 * 1024;
+            case 'g':
+                return amount * 1024 * 1024 * 1024;
+            default:
+                throw new IllegalArgumentException("Retention size needs a unit of k, m or g: " + value);
+        }
+    }
+
+    private static long parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number in retention policy: " + value, e);
+        }
+    }
+
+    /**
+     * @return Whether this policy never prunes anything
+     */
+    public boolean isUnlimited() {
+        return maxAgeMs == 0 && maxCount == 0 && maxBytes == 0;
+    }
+
+    public long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    public long getMaxCount() {
+        return maxCount;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("age=%dms,count=%d,size=%d", maxAgeMs, maxCount, maxBytes);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package sh.swisschili.chat.server;
+
+import io.grpc.Status;
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the messages a resuming client missed, everything in a channel after a sequence number, a page at a time.
+ *
+ * The sequence numbers returned are remembered, so the same messages arriving live while or after they are replayed
+ * can be recognised and dropped. Replaying more than a maximum number of messages fails with OUT_OF_RANGE, at that
+ * point the client is better off reloading the channel.
+ */
+public class SequenceReplay implements Iterator<Message> {
+    public static final int PAGE_SIZE = 256;
+    public static final int DEFAULT_MAX_MESSAGES = 10000;
+
+    private final MessageStore store;
+    private final Channel channel;
+    private final int maxMessages;
+    private long afterSeq;
+
+    private List<Message> page = Collections.emptyList();
+    private int index = 0;
+    private boolean lastPage = false;
+
+    // Ascending, since pages are read in sequence order
+    private long[] replayed = new long[16];
+    private int replayedCount = 0;
+
+    /**
+     * @param store       The store to read from
+     * @param channel     The channel to replay
+     * @param afterSeq    The last sequence number the client received
+     * @param maxMessages Most messages to replay before giving up
+     */
+    public SequenceReplay(MessageStore store, Channel channel, long afterSeq, int maxMessages) {
+        this.store = store;
+        this.channel = channel;
+        this.afterSeq = afterSeq;
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (index < page.size())
+            return true;
+        if (lastPage)
+            return false;
+
+        page = store.getMessagesAfter(channel, afterSeq, PAGE_SIZE);
+        index = 0;
+        lastPage = page.size() < PAGE_SIZE;
+
+        if (replayedCount + page.size() > maxMessages) {
+            lastPage = true;
+            page = Collections.emptyList();
+            throw Status.OUT_OF_RANGE
+                    .withDescription("Too many messages were missed to replay, reload the channel instead")
+                    .asRuntimeException();
+        }
+
+        return !page.isEmpty();
+    }
+
+    @Override
+    public Message next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        Message message = page.get(index++);
+        afterSeq = message.getSeq();
+
+        if (replayedCount == replayed.length)
+            replayed = Arrays.copyOf(replayed, replayed.length * 2);
+        replayed[replayedCount++] = message.getSeq();
+
+        return message;
+    }
+
+    /**
+     * @param seq A sequence number
+     * @return Whether the message with this sequence number has already been replayed
+     */
+    public boolean contains(long seq) {
+        return Arrays.binarySearch(replayed, 0, replayedCount, seq) >= 0;
+    }
+
+    /**
+     * @return Number of messages replayed so far
+     */
+    public int getReplayedCount() {
+        return replayedCount;
+    }
+}
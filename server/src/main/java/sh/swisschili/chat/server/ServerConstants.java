@@ -23,6 +23,10 @@ public class ServerConstants {
         return "sh.swisschili.chat.channel.messages:" + id;
     }
 
+    public static String getGroupChannelsExchange(String groupId) {
+        return "sh.swisschili.chat.group.channels:" + groupId;
+    }
+
     public static String getGroupUserStatusExchange(String groupId) {
         return "sh.swisschili.chat.group.statuses:" + groupId;
     }
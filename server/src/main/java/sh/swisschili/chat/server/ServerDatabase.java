@@ -19,17 +19,36 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package sh.swisschili.chat.server;
 
 import com.mongodb.ConnectionString;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionRemovedEvent;
 import org.bson.BsonArray;
 import org.bson.BsonBinary;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
 import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
@@ -40,18 +59,35 @@ import sh.swisschili.chat.util.Errors;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import static com.mongodb.client.model.Filters.eq;
 
-public class ServerDatabase {
+/**
+ * MongoDB backed storage for both metadata and messages
+ */
+public class ServerDatabase implements MetadataStore, MessageStore {
     private final MongoCollection<Document> users;
     private final MongoCollection<Document> groups;
     private final MongoCollection<Document> registered;
     private final MongoCollection<Document> userStatuses;
     private final MongoCollection<Document> messages;
+    private final MongoCollection<Document> sequences;
+    private final MongoDatabase database;
+
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int COMPACT_BATCH = 1000;
+
+    private static final Bson MESSAGE_ORDER = Sorts.descending("unixTime", "_id");
+    private static final Bson SEQUENCE_ORDER = Sorts.ascending("seq");
+
+    private final AtomicInteger poolConnections = new AtomicInteger(0);
+    private final AtomicInteger poolCheckedOut = new AtomicInteger(0);
 
     private final PasswordAuthentication auth = new PasswordAuthentication();
     private static final Logger LOGGER = LoggerFactory.getLogger(ServerDatabase.class);
@@ -60,16 +96,18 @@ public class ServerDatabase {
         ConnectionString connectionString = new ConnectionString(url);
         MongoClientSettings settings = MongoClientSettings.builder()
                 .applyConnectionString(connectionString)
+                .applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(new PoolListener()))
                 .retryWrites(true).build();
 
         MongoClient mongoClient = MongoClients.create(settings);
-        MongoDatabase db = mongoClient.getDatabase("chat");
-
-        users = db.getCollection("users");
-        groups = db.getCollection("groups");
-        registered = db.getCollection("registeredUsers");
-        userStatuses = db.getCollection("userStatuses");
-        messages = db.getCollection("messages");
+        database = mongoClient.getDatabase("chat");
+
+        users = database.getCollection("users");
+        groups = database.getCollection("groups");
+        registered = database.getCollection("registeredUsers");
+        userStatuses = database.getCollection("userStatuses");
+        messages = database.getCollection("messages");
+        sequences = database.getCollection("channelSequences");
     }
 
     /**
@@ -78,6 +116,7 @@ public class ServerDatabase {
      * @param name The name to give the group
      * @return The created group
      */
+    @Override
     public Group createGroup(String name) {
         ObjectId id = new ObjectId();
         Document doc = new Document("users", new BsonArray())
@@ -100,6 +139,7 @@ public class ServerDatabase {
      * @param name  The name to give the channel
      * @return The created channel
      */
+    @Override
     public Channel createChannel(Group group, String name) {
         ObjectId id = new ObjectId();
         Document channelDoc = new Document("name", name)
@@ -117,9 +157,9 @@ public class ServerDatabase {
                 .build();
     }
 
+    @Override
     public User getOrAddUser(String name, String host) {
-        Document queryDoc = new Document("name", name)
-                .append("host", host);
+        Document queryDoc = userFilter(name, host);
 
         Document existing = users.find(queryDoc)
                 .projection(new Document())
@@ -145,8 +185,9 @@ public class ServerDatabase {
                 .build();
     }
 
+    @Override
     public Group getGroupByName(String name) throws ClassNotFoundException {
-        Document doc = groups.find(eq("name", name))
+        Document doc = groups.find(groupNameFilter(name))
                 .projection(new Document("channels", 0)
                         .append("users", 0)).first();
 
@@ -159,6 +200,7 @@ public class ServerDatabase {
                 .build();
     }
 
+    @Override
     public List<Channel> getGroupChannels(Group group) {
         List<Channel> channels = new ArrayList<>();
 
@@ -175,9 +217,8 @@ public class ServerDatabase {
         return channels;
     }
 
+    @Override
     public void createUser(String name, String password, byte[] publicKey) throws Errors.UsernameRegisteredException {
-        registered.createIndex(new Document("name", 1), new IndexOptions().unique(true));
-
         try {
             registered.insertOne(new Document("name", name)
                     .append("password", auth.hash(password.toCharArray()))
@@ -187,8 +228,9 @@ public class ServerDatabase {
         }
     }
 
+    @Override
     public boolean authenticateUser(String name, String password) throws Errors.UserNotFoundException {
-        Document user = registered.find(eq("name", name))
+        Document user = registered.find(registeredUserFilter(name))
                 .projection(new Document("password", 1)
                         .append("_id", 0)).first();
 
@@ -199,8 +241,9 @@ public class ServerDatabase {
         return auth.authenticate(password.toCharArray(), pass);
     }
 
+    @Override
     public byte[] getUserPublicKey(String name) throws Errors.UserNotFoundException {
-        Document user = registered.find(eq("name", name))
+        Document user = registered.find(registeredUserFilter(name))
                 .projection(new Document("publicKey", 1)
                         .append("_id", 0)).first();
 
@@ -210,34 +253,67 @@ public class ServerDatabase {
         return user.get("publicKey", Binary.class).getData();
     }
 
+    @Override
     public void setUserStatus(UserStatus status, Group group) {
+        userStatuses.replaceOne(userStatusFilter(group, status.getUser()), userStatusDocument(status, group),
+                new ReplaceOptions().upsert(true));
+    }
+
+    /**
+     * Upsert a batch of statuses in one round-trip. The write is unordered, so one failing status does not stop the
+     * rest from being saved.
+     *
+     * @param statuses The statuses to save
+     */
+    @Override
+    public void setUserStatuses(List<GroupStatus> statuses) {
+        if (statuses.isEmpty())
+            return;
+
+        List<ReplaceOneModel<Document>> writes = new ArrayList<>(statuses.size());
+        for (GroupStatus status : statuses) {
+            writes.add(new ReplaceOneModel<>(userStatusFilter(status.getGroup(), status.getStatus().getUser()),
+                    userStatusDocument(status.getStatus(), status.getGroup()),
+                    new ReplaceOptions().upsert(true)));
+        }
+
+        userStatuses.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+
+    private static Document userStatusDocument(UserStatus status, Group group) {
         User user = status.getUser();
         int statusValue = -1;
         if (!status.hasCustom()) {
             statusValue = status.getPresenceValue();
         }
 
-        Document userStatus = new Document("userId", new ObjectId(user.getId()))
-                .append("name", user.getName())
+        Document userStatus = new Document("name", user.getName())
                 .append("host", user.getHost())
                 .append("statusValue", statusValue)
                 .append("groupId", new ObjectId(group.getId()));
 
+        if (ObjectId.isValid(user.getId())) {
+            userStatus = userStatus.append("userId", new ObjectId(user.getId()));
+        }
+
         if (status.hasCustom()) {
             userStatus = userStatus.append("customStatus", status.getCustom().getName());
         }
 
-        userStatuses.insertOne(userStatus);
+        return userStatus;
     }
 
+    @Override
     public Iterable<UserStatus> getUserStatuses(Group group) {
-        return userStatuses.find(new Document("groupId", group.getId()))
+        return userStatuses.find(userStatusFilter(new ObjectId(group.getId())))
                 .map(doc -> {
-                    User user = User.newBuilder()
+                    User.Builder user = User.newBuilder()
                             .setHost(doc.getString("host"))
-                            .setName(doc.getString("name"))
-                            .setId(doc.getObjectId("userId").toString())
-                            .build();
+                            .setName(doc.getString("name"));
+                    ObjectId userId = doc.getObjectId("userId");
+                    if (userId != null)
+                        user.setId(userId.toString());
+
                     UserStatus.Builder status = UserStatus.newBuilder()
                             .setUser(user);
                     int statusValue = doc.getInteger("statusValue", 0);
@@ -261,41 +337,376 @@ public class ServerDatabase {
      */
     public ObjectId saveMessage(Channel channel, Message message) {
         ObjectId id = new ObjectId();
+        messages.insertOne(messageDocument(id, channel, message));
+
+        return id;
+    }
+
+    /**
+     * Save a batch of messages in one round-trip. Every message must already have an id. The insert is unordered, so
+     * one failing message does not stop the rest from being written.
+     *
+     * @param batch The messages to save
+     * @throws PartialWriteException If some messages could not be written
+     */
+    @Override
+    public void saveMessages(List<ChannelMessage> batch) {
+        if (batch.isEmpty())
+            return;
+
+        List<Document> docs = new ArrayList<>(batch.size());
+        for (ChannelMessage channelMessage : batch) {
+            docs.add(messageDocument(new ObjectId(channelMessage.getMessage().getId()),
+                    channelMessage.getChannel(), channelMessage.getMessage()));
+        }
+
+        try {
+            messages.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            Set<Integer> failedIndexes = new HashSet<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                failedIndexes.add(error.getIndex());
+            }
+            throw new PartialWriteException(failedIndexes, e);
+        }
+    }
+
+    private static Document messageDocument(ObjectId id, Channel channel, Message message) {
         User user = message.getSender();
-        Document messageDoc = new Document("body", message.getBody())
+        Document doc = new Document("body", message.getBody())
                 .append("unixTime", message.getUnixTime())
                 .append("_id", id)
                 .append("senderName", user.getName())
                 .append("senderHost", user.getHost())
                 .append("senderId", new ObjectId(user.getId()))
                 .append("channelId", new ObjectId(channel.getId()));
-        messages.insertOne(messageDoc);
 
-        return id;
+        if (message.getSeq() > 0)
+            doc.append("seq", message.getSeq());
+
+        return doc;
+    }
+
+    /**
+     * Each channel's last reserved sequence number is kept in its own document, which is atomically incremented, so
+     * every server sharing the database draws from the same sequence.
+     */
+    @Override
+    public long reserveSequence(Channel channel, int count) {
+        Document counter = sequences.findOneAndUpdate(eq("_id", new ObjectId(channel.getId())),
+                Updates.inc("seq", (long) count),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+
+        return counter.getLong("seq") - count + 1;
+    }
+
+    /**
+     * Counts connections across every server's pool
+     */
+    private class PoolListener extends ConnectionPoolListenerAdapter {
+        @Override
+        public void connectionAdded(ConnectionAddedEvent event) {
+            poolConnections.incrementAndGet();
+        }
+
+        @Override
+        public void connectionRemoved(ConnectionRemovedEvent event) {
+            poolConnections.decrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+            poolCheckedOut.incrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+            poolCheckedOut.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return Connections open to the database
+     */
+    public int getPoolConnections() {
+        return poolConnections.get();
+    }
+
+    /**
+     * @return Connections currently in use by a query
+     */
+    public int getPoolCheckedOut() {
+        return poolCheckedOut.get();
+    }
+
+    /**
+     * Create any missing indexes. Should be called once at startup, this is a no-op for indexes that already exist.
+     * Every query in this class must be covered by one of these, see {@link #checkQueryPlans()}.
+     */
+    public void ensureIndexes() {
+        messages.createIndex(Indexes.compoundIndex(
+                Indexes.ascending("channelId"),
+                Indexes.descending("unixTime"),
+                Indexes.descending("_id")));
+        ensureUserStatusIndex();
+        messages.createIndex(Indexes.ascending("channelId", "seq"));
+        users.createIndex(Indexes.ascending("name", "host"));
+        groups.createIndex(Indexes.ascending("name"));
+        registered.createIndex(Indexes.ascending("name"), new IndexOptions().unique(true));
+
+        LOGGER.info("Ensured database indexes");
+    }
+
+    /**
+     * Statuses used to be inserted on every change, so older databases hold the whole history of each user's status.
+     * The unique index can only be built once that history has been reduced to the latest status per user.
+     */
+    private void ensureUserStatusIndex() {
+        Bson index = Indexes.ascending("groupId", "host", "name");
+        try {
+            userStatuses.createIndex(index, new IndexOptions().unique(true));
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() != DUPLICATE_KEY)
+                throw e;
+
+            LOGGER.info("Removing status history left over from before statuses were upserted");
+            compactUserStatuses();
+            userStatuses.createIndex(index, new IndexOptions().unique(true));
+        }
+
+        for (Document existing : userStatuses.listIndexes()) {
+            if ("groupId_1".equals(existing.getString("name"))) {
+                // Covered by the prefix of the unique index
+                userStatuses.dropIndex("groupId_1");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Delete every status except the newest for each user in each group
+     */
+    private void compactUserStatuses() {
+        Set<List<Object>> seen = new HashSet<>();
+        List<ObjectId> stale = new ArrayList<>();
+        long deleted = 0;
+
+        for (Document doc : userStatuses.find()
+                .projection(new Document("groupId", 1).append("host", 1).append("name", 1))
+                .sort(Sorts.descending("_id"))) {
+            List<Object> key = Arrays.asList(doc.get("groupId"), doc.get("host"), doc.get("name"));
+            if (!seen.add(key))
+                stale.add(doc.getObjectId("_id"));
+
+            if (stale.size() >= COMPACT_BATCH) {
+                deleted += userStatuses.deleteMany(Filters.in("_id", stale)).getDeletedCount();
+                stale.clear();
+            }
+        }
+
+        if (!stale.isEmpty())
+            deleted += userStatuses.deleteMany(Filters.in("_id", stale)).getDeletedCount();
+
+        LOGGER.info(String.format("Removed %d old statuses, %d remain", deleted, seen.size()));
+    }
+
+    /**
+     * Explain every query this class issues and report those that would scan a whole collection.
+     *
+     * @return A description of each query whose winning plan contains a COLLSCAN, empty if all queries use an index
+     */
+    public List<String> checkQueryPlans() {
+        ObjectId sampleId = new ObjectId();
+        MessageCursor sampleCursor = MessageCursor.newBuilder()
+                .setUnixTime(System.currentTimeMillis())
+                .setId(sampleId.toString())
+                .build();
+
+        List<String> problems = new ArrayList<>();
+        checkQueryPlan(problems, "getOrAddUser", users, userFilter("", ""), null);
+        checkQueryPlan(problems, "getGroupByName", groups, groupNameFilter(""), null);
+        checkQueryPlan(problems, "authenticateUser", registered, registeredUserFilter(""), null);
+        checkQueryPlan(problems, "getUserStatuses", userStatuses, userStatusFilter(sampleId), null);
+        checkQueryPlan(problems, "getMessageRange", messages, messagesFilter(sampleId.toString(), null),
+                MESSAGE_ORDER);
+        checkQueryPlan(problems, "getMessagesBefore", messages, messagesFilter(sampleId.toString(), sampleCursor),
+                MESSAGE_ORDER);
+        checkQueryPlan(problems, "getMessagesAfter", messages, messagesAfterFilter(sampleId.toString(), 0),
+                SEQUENCE_ORDER);
+        checkQueryPlan(problems, "getUsage", messages, messagesAfterFilter(sampleId.toString(), 0), null);
+        checkQueryPlan(problems, "deleteMessagesThrough", messages, messagesThroughFilter(sampleId.toString(), 0),
+                null);
+        return problems;
+    }
+
+    private void checkQueryPlan(List<String> problems, String name, MongoCollection<Document> collection,
+                                Bson filter, Bson sort) {
+        CodecRegistry codecs = collection.getCodecRegistry();
+        Document find = new Document("find", collection.getNamespace().getCollectionName())
+                .append("filter", filter.toBsonDocument(Document.class, codecs));
+        if (sort != null)
+            find.append("sort", sort.toBsonDocument(Document.class, codecs));
+
+        Document explained = database.runCommand(new Document("explain", find)
+                .append("verbosity", "queryPlanner"));
+        Document planner = explained.get("queryPlanner", Document.class);
+        Document winningPlan = planner == null ? null : planner.get("winningPlan", Document.class);
+
+        if (winningPlan == null) {
+            LOGGER.warn(String.format("Could not explain %s", name));
+        } else if (planContainsStage(winningPlan, "COLLSCAN")) {
+            problems.add(String.format("%s scans all of %s", name, collection.getNamespace().getCollectionName()));
+        }
+    }
+
+    private static boolean planContainsStage(Document plan, String stage) {
+        if (stage.equals(plan.getString("stage")))
+            return true;
+
+        Document input = plan.get("inputStage", Document.class);
+        if (input != null && planContainsStage(input, stage))
+            return true;
+
+        List<?> inputs = plan.get("inputStages", List.class);
+        if (inputs != null) {
+            for (Object child : inputs) {
+                if (child instanceof Document && planContainsStage((Document) child, stage))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Document userFilter(String name, String host) {
+        return new Document("name", name)
+                .append("host", host);
+    }
+
+    private static Bson groupNameFilter(String name) {
+        return eq("name", name);
+    }
+
+    private static Bson registeredUserFilter(String name) {
+        return eq("name", name);
+    }
+
+    private static Bson userStatusFilter(ObjectId groupId) {
+        return eq("groupId", groupId);
+    }
+
+    private static Bson userStatusFilter(Group group, User user) {
+        return new Document("groupId", new ObjectId(group.getId()))
+                .append("host", user.getHost())
+                .append("name", user.getName());
+    }
+
+    private static Bson messagesAfterFilter(String channelId, long afterSeq) {
+        // Messages saved before sequence numbers existed have none, so never match
+        return Filters.and(eq("channelId", new ObjectId(channelId)), Filters.gt("seq", afterSeq));
+    }
+
+    private static Bson messagesThroughFilter(String channelId, long seq) {
+        return Filters.and(eq("channelId", new ObjectId(channelId)), Filters.gt("seq", 0),
+                Filters.lte("seq", seq));
+    }
+
+    private static Bson messagesFilter(String channelId, MessageCursor before) {
+        Bson filter = eq("channelId", new ObjectId(channelId));
+
+        if (before != null) {
+            filter = Filters.and(filter, Filters.or(
+                    Filters.lt("unixTime", before.getUnixTime()),
+                    Filters.and(
+                            eq("unixTime", before.getUnixTime()),
+                            Filters.lt("_id", new ObjectId(before.getId())))));
+        }
+
+        return filter;
     }
 
+    @Override
     public List<Message> getMessageRange(Channel channel, int start, int number) {
-        LOGGER.info(String.format("Getting from %d # %d", start, number));
+        LOGGER.debug(String.format("Getting from %d # %d", start, number));
         return StreamSupport.stream(
-                messages.find(new Document("channelId", new ObjectId(channel.getId())))
-                        .sort(new Document("unixTime", -1))
+                messages.find(messagesFilter(channel.getId(), null))
+                        .sort(MESSAGE_ORDER)
                         .skip(start)
                         .limit(number)
                         .spliterator(), false)
-                .map(doc -> {
-                    User sender = User.newBuilder()
-                            .setName(doc.getString("senderName"))
-                            .setHost(doc.getString("senderHost"))
-                            .setId(doc.getObjectId("senderId").toString())
-                            .build();
-
-                    return Message.newBuilder()
-                            .setId(doc.getObjectId("_id").toString())
-                            .setBody(doc.getString("body"))
-                            .setUnixTime(doc.getLong("unixTime"))
-                            .setSender(sender)
-                            .build();
-                })
+                .map(ServerDatabase::messageFromDocument)
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Unlike {@link #getMessageRange(Channel, int, int)} this costs the same no matter how far back the cursor is, and
+     * pages don't shift when new messages arrive.
+     */
+    @Override
+    public List<Message> getMessagesBefore(Channel channel, MessageCursor before, int number) {
+        return StreamSupport.stream(
+                messages.find(messagesFilter(channel.getId(), before))
+                        .sort(MESSAGE_ORDER)
+                        .limit(number)
+                        .spliterator(), false)
+                .map(ServerDatabase::messageFromDocument)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Message> getMessagesAfter(Channel channel, long afterSeq, int number) {
+        return StreamSupport.stream(
+                messages.find(messagesAfterFilter(channel.getId(), afterSeq))
+                        .sort(SEQUENCE_ORDER)
+                        .limit(number)
+                        .spliterator(), false)
+                .map(ServerDatabase::messageFromDocument)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Channel> getStoredChannels() {
+        List<Channel> channels = new ArrayList<>();
+        for (ObjectId id : messages.distinct("channelId", ObjectId.class)) {
+            channels.add(Channel.newBuilder().setId(id.toString()).build());
+        }
+        return channels;
+    }
+
+    /**
+     * Only messages with a sequence number are counted, as only they can be pruned; messages saved before sequence
+     * numbers existed are left out. They are counted exactly, their size is estimated from the average size of every
+     * message in the collection.
+     */
+    @Override
+    public Usage getUsage(Channel channel) {
+        long count = messages.countDocuments(messagesAfterFilter(channel.getId(), 0));
+        Document stats = database.runCommand(new Document("collStats", messages.getNamespace().getCollectionName()));
+        Number averageSize = stats.get("avgObjSize", Number.class);
+
+        return new Usage(count, averageSize == null ? 0 : count * averageSize.longValue());
+    }
+
+    @Override
+    public long deleteMessagesThrough(Channel channel, long seq) {
+        return messages.deleteMany(messagesThroughFilter(channel.getId(), seq)).getDeletedCount();
+    }
+
+    private static Message messageFromDocument(Document doc) {
+        User sender = User.newBuilder()
+                .setName(doc.getString("senderName"))
+                .setHost(doc.getString("senderHost"))
+                .setId(doc.getObjectId("senderId").toString())
+                .build();
+
+        Long seq = doc.getLong("seq");
+
+        return Message.newBuilder()
+                .setId(doc.getObjectId("_id").toString())
+                .setBody(doc.getString("body"))
+                .setUnixTime(doc.getLong("unixTime"))
+                .setSeq(seq == null ? 0 : seq)
+                .setSender(sender)
+                .build();
+    }
 }
@@ -0,0 +1,240 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads a server runs on: Netty event loops that accept connections and move bytes, and an application
+ * executor that runs every gRPC handler.
+ *
+ * Handlers may block on the database, so they never run on the event loops. The application executor is either a
+ * bounded pool with a bounded queue, which rejects calls once both are full instead of piling up threads, or one
+ * virtual thread per call when the runtime has them.
+ */
+public class ServerExecutors implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerExecutors.class);
+
+    public static final int DEFAULT_BOSS_THREADS = 1;
+    /**
+     * Use Netty's default, twice the number of cores
+     */
+    public static final int DEFAULT_WORKER_THREADS = 0;
+    public static final int DEFAULT_APP_THREADS = 64;
+    public static final int DEFAULT_APP_QUEUE = 1024;
+    public static final int DEFAULT_PUBLISH_THREADS = 8;
+
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final ExecutorService appExecutor;
+    private final Executor instrumented;
+    private final boolean virtual;
+    private final int maxThreads;
+
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong busyNanos = new AtomicLong(0);
+    private final long createdAt = System.nanoTime();
+
+    /**
+     * @param bossThreads    Threads accepting connections
+     * @param workerThreads  Threads doing network I/O, 0 for Netty's default
+     * @param appThreads     Maximum threads running handlers, ignored with virtual threads
+     * @param appQueue       Maximum calls waiting for a handler thread, ignored with virtual threads
+     * @param virtualThreads Run each handler on its own virtual thread if the runtime supports them
+     */
+    public ServerExecutors(int bossThreads, int workerThreads, int appThreads, int appQueue, boolean virtualThreads) {
+        if (appThreads < 1)
+            throw new IllegalArgumentException("appThreads: " + appThreads);
+
+        bossGroup = new NioEventLoopGroup(bossThreads, threadFactory("grpc-boss-"));
+        workerGroup = new NioEventLoopGroup(workerThreads, threadFactory("grpc-worker-"));
+
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            LOGGER.info("Running handlers on virtual threads");
+            appExecutor = virtualExecutor;
+            virtual = true;
+            maxThreads = Integer.MAX_VALUE;
+        } else {
+            if (virtualThreads)
+                LOGGER.warn("Virtual threads are not supported by this runtime, using a bounded pool instead");
+
+            appExecutor = new ThreadPoolExecutor(appThreads, appThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(appQueue), threadFactory("grpc-app-"), new ThreadPoolExecutor.AbortPolicy());
+            ((ThreadPoolExecutor) appExecutor).allowCoreThreadTimeOut(true);
+            virtual = false;
+            maxThreads = appThreads;
+        }
+
+        instrumented = this::execute;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively since this builds for Java 8
+     *
+     * @return The executor, or null if the runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create the pool that publishes messages to the bus. Publishes may block waiting for a broker channel, so they get
+     * their own threads rather than sharing the common pool. Its queue holds at most one task per channel, since a
+     * {@link MessagePublisher} only runs one publish per channel at a time.
+     *
+     * @param threads Maximum threads publishing at once
+     * @return The pool, which the caller must shut down
+     */
+    public static ExecutorService newPublishExecutor(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads: " + threads);
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory("publish-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        return r -> {
+            Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private void execute(Runnable task) {
+        try {
+            appExecutor.execute(() -> {
+                long start = System.nanoTime();
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public EventLoopGroup getBossGroup() {
+        return bossGroup;
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    /**
+     * @return The executor to hand to the server builder, which records the metrics below
+     */
+    public Executor getAppExecutor() {
+        return instrumented;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return Number of calls waiting for a handler thread
+     */
+    public int getQueueDepth() {
+        return virtual ? 0 : ((ThreadPoolExecutor) appExecutor).getQueue().size();
+    }
+
+    /**
+     * @return Number of handlers running right now
+     */
+    public int getActiveThreads() {
+        return active.get();
+    }
+
+    /**
+     * @return Number of handler threads that exist, busy or not
+     */
+    public int getPoolSize() {
+        return virtual ? active.get() : ((ThreadPoolExecutor) appExecutor).getPoolSize();
+    }
+
+    /**
+     * @return Fraction of the pool's threads that are busy, 0 with virtual threads since they have no limit
+     */
+    public double getUtilisation() {
+        return virtual ? 0 : (double) active.get() / maxThreads;
+    }
+
+    /**
+     * @return Average number of busy handler threads since startup
+     */
+    public double getAverageBusyThreads() {
+        long elapsed = System.nanoTime() - createdAt;
+        return elapsed == 0 ? 0 : (double) busyNanos.get() / elapsed;
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return Total tasks rejected because the pool and its queue were full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ServerExecutors[virtual=%b, active=%d, poolSize=%d, queued=%d, utilisation=%.2f, "
+                        + "completed=%d, rejected=%d]", virtual, getActiveThreads(), getPoolSize(), getQueueDepth(),
+                getUtilisation(), getCompletedCount(), getRejectedCount());
+    }
+
+    /**
+     * Stop every thread. The server using these executors must already have terminated.
+     */
+    @Override
+    public void close() {
+        appExecutor.shutdown();
+        bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+        workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+    }
+}
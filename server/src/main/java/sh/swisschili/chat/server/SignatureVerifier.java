@@ -0,0 +1,216 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import io.grpc.Status;
+import sh.swisschili.chat.util.SignedAuth;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies message signatures on a dedicated pool of crypto threads.
+ *
+ * Verification is CPU bound, so running it on gRPC or network threads stalls I/O for every other call. The pool is
+ * sized to the number of cores by default and has a bounded queue; once the queue is full verification fails fast
+ * with RESOURCE_EXHAUSTED instead of queueing without limit.
+ */
+public class SignatureVerifier implements AutoCloseable {
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+    /**
+     * A signature to verify against some data
+     */
+    public static class Request {
+        private final PublicKey publicKey;
+        private final byte[] signature;
+        private final byte[][] data;
+
+        public Request(PublicKey publicKey, byte[] signature, byte[]... data) {
+            this.publicKey = publicKey;
+            this.signature = signature;
+            this.data = data;
+        }
+
+        boolean verify() {
+            return SignedAuth.verify(publicKey, signature, data);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+
+    private final AtomicLong verified = new AtomicLong(0);
+    private final AtomicLong invalid = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public SignatureVerifier() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param threads   Number of crypto worker threads
+     * @param queueSize Maximum number of verification tasks waiting for a thread
+     */
+    public SignatureVerifier(int threads, int queueSize) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads: " + threads);
+
+        this.threads = threads;
+
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "crypto-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Verify a single signature.
+     *
+     * @param request The signature and data to verify
+     * @return A future for whether the signature is valid
+     */
+    public CompletableFuture<Boolean> verify(Request request) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        submit(future, () -> future.complete(count(request.verify())));
+
+        return future;
+    }
+
+    /**
+     * Verify a burst of signatures, split into one task per worker rather than one task per signature.
+     *
+     * @param requests The signatures and data to verify
+     * @return A future for whether each signature is valid, in the same order as requests
+     */
+    public CompletableFuture<boolean[]> verifyAll(List<Request> requests) {
+        CompletableFuture<boolean[]> future = new CompletableFuture<>();
+        boolean[] results = new boolean[requests.size()];
+
+        if (requests.isEmpty()) {
+            future.complete(results);
+            return future;
+        }
+
+        int chunkSize = (requests.size() + threads - 1) / threads;
+        List<Runnable> chunks = new ArrayList<>();
+        AtomicInteger remaining = new AtomicInteger(0);
+
+        for (int start = 0; start < requests.size(); start += chunkSize) {
+            int from = start;
+            int to = Math.min(start + chunkSize, requests.size());
+            remaining.incrementAndGet();
+
+            chunks.add(() -> {
+                for (int i = from; i < to; i++) {
+                    results[i] = count(requests.get(i).verify());
+                }
+
+                if (remaining.decrementAndGet() == 0)
+                    future.complete(results);
+            });
+        }
+
+        for (Runnable chunk : chunks) {
+            if (!submit(future, chunk))
+                break;
+        }
+
+        return future;
+    }
+
+    private boolean submit(CompletableFuture<?> future, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(Status.RESOURCE_EXHAUSTED
+                    .withDescription("Too many signatures waiting to be verified")
+                    .asRuntimeException());
+            return false;
+        }
+    }
+
+    private boolean count(boolean valid) {
+        verified.incrementAndGet();
+        if (!valid)
+            invalid.incrementAndGet();
+        return valid;
+    }
+
+    /**
+     * @return Number of verification tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Number of threads currently verifying signatures
+     */
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return Total signatures checked since startup
+     */
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+    /**
+     * @return Total signatures that did not match
+     */
+    public long getInvalidCount() {
+        return invalid.get();
+    }
+
+    /**
+     * @return Total verifications rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,402 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Bounded, flow-control aware buffer between a {@link SubscriptionHub} and a single server stream.
+ *
+ * Items are only written to the stream while gRPC reports it as ready, the rest wait in a fixed size ring buffer
+ * until the transport asks for more. This means a slow client never blocks the hub's consumer thread and never makes
+ * gRPC buffer an unbounded amount of data on its behalf. What happens once the ring buffer is full is decided by the
+ * {@link OverflowPolicy}.
+ *
+ * A buffer can also be given a backlog with {@link #replay(Iterator, Predicate)}, which is sent ahead of everything
+ * offered and is only read as fast as the client reads. Reading the backlog may block, so it is never done while
+ * offering or with the buffer locked.
+ *
+ * @param <T> The type sent over the stream
+ */
+public class StreamBuffer<T> implements SubscriptionHub.Listener<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamBuffer.class);
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest buffered item to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * Replace a buffered item with the same key (i.e. an older status for the same user), otherwise drop the
+         * oldest item
+         */
+        COALESCE,
+        /**
+         * End the stream with RESOURCE_EXHAUSTED, the client is expected to reconnect and catch up. Items with a key
+         * still replace a buffered item with the same key rather than taking up room.
+         */
+        DISCONNECT
+    }
+
+    private final ServerCallStreamObserver<T> observer;
+    private final OverflowPolicy policy;
+    private final Function<T, Object> keyGetter;
+
+    private final Object[] ring;
+    private final Object[] ringKeys;
+    // Maps a coalescing key to the absolute position of the buffered item holding it
+    private final Map<Object, Long> keyPositions = new HashMap<>();
+    private long head = 0;
+    private int size = 0;
+
+    private boolean held = false;
+    private Iterator<T> backlog = null;
+    private Predicate<T> alreadySent = null;
+    // Whether a thread is reading the backlog, only one may at a time
+    private boolean replaying = false;
+
+    private boolean closed = false;
+    private Runnable closeHandler = null;
+    private long dropped = 0;
+
+    /**
+     * @param observer  The stream to write to
+     * @param capacity  Maximum number of items to hold while the stream is not ready
+     * @param policy    What to do when the buffer is full
+     * @param keyGetter Used to coalesce items unless policy is DROP_OLDEST, may be null if items never coalesce
+     */
+    public StreamBuffer(ServerCallStreamObserver<T> observer, int capacity, OverflowPolicy policy,
+                        Function<T, Object> keyGetter) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity: " + capacity);
+
+        this.observer = observer;
+        this.policy = policy;
+        this.keyGetter = policy == OverflowPolicy.DROP_OLDEST ? null : keyGetter;
+        this.ring = new Object[capacity];
+        this.ringKeys = new Object[capacity];
+
+        observer.setOnReadyHandler(this::drain);
+        observer.setOnCancelHandler(this::cancelled);
+        // The call's context is also cancelled when its deadline passes or the server shuts down, release the
+        // subscription as soon as that happens rather than when the next item fails to send
+        Context.current().addListener(context -> cancelled(), Runnable::run);
+    }
+
+    /**
+     * Register a handler to run once the stream ends, either because the client cancelled it or because it was
+     * disconnected for overflowing. If the stream has already ended the handler runs immediately.
+     *
+     * @param handler The handler to run
+     */
+    public void whenClosed(Runnable handler) {
+        boolean runNow;
+        synchronized (this) {
+            runNow = closed;
+            if (!runNow)
+                closeHandler = handler;
+        }
+
+        if (runNow)
+            handler.run();
+    }
+
+    /**
+     * Buffer offered items without sending them until {@link #replay(Iterator, Predicate)} is called. Lets the caller
+     * subscribe before reading the backlog, so nothing published in between is missed, without anything live being
+     * sent ahead of the backlog.
+     */
+    public synchronized void hold() {
+        held = true;
+    }
+
+    /**
+     * Send a backlog, i.e. history a resuming client missed, ahead of every item offered to this buffer. The backlog is
+     * only read while the stream is ready, so a long one is never held in memory. Items offered in the meantime wait
+     * in the buffer as usual and are sent once the backlog runs out. If an earlier backlog is still being sent, this
+     * one is sent after it.
+     *
+     * @param backlog     Items to send first. Its methods are called by the thread calling this or by gRPC's onReady
+     *                    handler, one thread at a time and without this buffer locked, so they may block. They may
+     *                    throw a StatusRuntimeException to end the stream with that status
+     * @param alreadySent From now on, offered items for which this returns true are dropped instead of sent, since the
+     *                    backlog already included them
+     */
+    public void replay(Iterator<T> backlog, Predicate<T> alreadySent) {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            this.held = false;
+            this.backlog = this.backlog == null ? backlog : concat(this.backlog, backlog);
+            this.alreadySent = alreadySent;
+        }
+
+        drain();
+    }
+
+    /**
+     * End the stream with an error, discarding anything still buffered
+     *
+     * @param status Why the stream ended
+     */
+    public void fail(Status status) {
+        disconnect(status);
+    }
+
+    private static <T> Iterator<T> concat(Iterator<T> first, Iterator<T> second) {
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+        };
+    }
+
+    /**
+     * End the stream successfully, discarding anything still buffered
+     */
+    public void complete() {
+        Runnable handler = close();
+        if (handler == null)
+            return;
+
+        try {
+            observer.onCompleted();
+        } catch (IllegalStateException e) {
+            // The call already ended
+        }
+        handler.run();
+    }
+
+    @Override
+    public void onNext(T value) {
+        offer(value);
+    }
+
+    /**
+     * Queue an item for the stream, writing it straight away if the stream is ready. Never blocks.
+     *
+     * @param value The item to send
+     */
+    public void offer(T value) {
+        boolean overflowed = false;
+
+        synchronized (this) {
+            if (closed)
+                return;
+
+            Object key = keyGetter == null ? null : keyGetter.apply(value);
+
+            if (key != null && keyPositions.containsKey(key)) {
+                int slot = slot(keyPositions.get(key));
+                ring[slot] = value;
+                dropped++;
+            } else if (size == ring.length) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    overflowed = true;
+                } else {
+                    poll();
+                    dropped++;
+                    push(value, key);
+                }
+            } else {
+                push(value, key);
+            }
+
+            // Never reads the backlog, anything offered behind it waits until gRPC asks for more
+            if (!overflowed)
+                drainLocked();
+        }
+
+        if (overflowed) {
+            LOGGER.info("Subscriber fell too far behind, disconnecting");
+            disconnect(Status.RESOURCE_EXHAUSTED.withDescription("Client is not reading fast enough"));
+        }
+    }
+
+    private void push(T value, Object key) {
+        long position = head + size;
+        int slot = slot(position);
+        ring[slot] = value;
+        ringKeys[slot] = key;
+        if (key != null)
+            keyPositions.put(key, position);
+        size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T poll() {
+        int slot = slot(head);
+        T value = (T) ring[slot];
+        Object key = ringKeys[slot];
+
+        if (key != null) {
+            Long position = keyPositions.get(key);
+            if (position != null && position == head)
+                keyPositions.remove(key);
+        }
+
+        ring[slot] = null;
+        ringKeys[slot] = null;
+        head++;
+        size--;
+        return value;
+    }
+
+    private int slot(long position) {
+        return (int) (position % ring.length);
+    }
+
+    /**
+     * Send the backlog while the stream is ready, then everything buffered behind it. Each backlog item is read with
+     * the buffer unlocked, since reading it may go to the store.
+     */
+    private void drain() {
+        while (true) {
+            Iterator<T> current;
+            synchronized (this) {
+                if (backlog == null) {
+                    drainLocked();
+                    return;
+                }
+                // Another thread reading the backlog carries on for as long as the stream is ready
+                if (replaying || closed || held || !observer.isReady())
+                    return;
+
+                replaying = true;
+                current = backlog;
+            }
+
+            boolean more = false;
+            T next = null;
+            RuntimeException failure = null;
+            try {
+                more = current.hasNext();
+                if (more)
+                    next = current.next();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            synchronized (this) {
+                replaying = false;
+                if (failure != null) {
+                    backlog = null;
+                } else if (more) {
+                    if (!closed)
+                        observer.onNext(next);
+                } else if (backlog == current) {
+                    // Unless another backlog was queued behind it in the meantime
+                    backlog = null;
+                }
+            }
+
+            if (failure != null) {
+                disconnect(Status.fromThrowable(failure));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send buffered items while the stream is ready, unless the backlog still has to go first
+     */
+    private void drainLocked() {
+        while (!closed && !held && backlog == null && size > 0 && observer.isReady()) {
+            T value = poll();
+            if (alreadySent == null || !alreadySent.test(value))
+                observer.onNext(value);
+        }
+    }
+
+    private void disconnect(Status status) {
+        Runnable handler = close();
+        if (handler == null)
+            return;
+
+        try {
+            observer.onError(status.asRuntimeException());
+        } catch (IllegalStateException e) {
+            // The call already ended
+        }
+        handler.run();
+    }
+
+    private void cancelled() {
+        Runnable handler = close();
+        if (handler != null)
+            handler.run();
+    }
+
+    /**
+     * Mark the buffer closed and return the close handler to run, or null if it was already closed.
+     */
+    private synchronized Runnable close() {
+        if (closed)
+            return null;
+
+        closed = true;
+        backlog = null;
+        size = 0;
+        keyPositions.clear();
+        Arrays.fill(ring, null);
+        Arrays.fill(ringKeys, null);
+
+        Runnable handler = closeHandler != null ? closeHandler : () -> {};
+        closeHandler = null;
+        return handler;
+    }
+
+    /**
+     * @return Number of items currently waiting for the stream to become ready
+     */
+    public synchronized int getBuffered() {
+        return size;
+    }
+
+    /**
+     * @return Number of items discarded or coalesced away because the buffer was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans messages from message bus topics out to local subscribers.
+ *
+ * Only one bus consumer is created per topic on this node, no matter how many clients are subscribed to it. Each
+ * delivery is parsed at most once and handed to every subscriber. Subscriptions are reference counted, and the
+ * consumer is torn down when the last subscriber for a topic leaves.
+ *
+ * @param <T> The protobuf message type published to the topics
+ */
+public class SubscriptionHub<T extends MessageLite> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionHub.class);
+
+    private final MessageBus bus;
+    private final Parser<T> parser;
+    private final Map<String, Topic> topics = new HashMap<>();
+
+    public interface Listener<T> {
+        /**
+         * Called from the bus's delivery thread for each message, which may be the publisher's own thread. This must
+         * not block, as it holds up delivery to every other subscriber of the exchange.
+         *
+         * @param value The parsed message
+         */
+        void onNext(T value);
+
+        /**
+         * Called once if the subscription ends for any reason other than being closed, i.e. because onNext threw or
+         * the bus stopped delivering to the topic. The listener has already been unsubscribed when this is called.
+         *
+         * @param t The cause
+         */
+        default void onError(Throwable t) {
+        }
+    }
+
+    public class Subscription implements AutoCloseable {
+        private final Topic topic;
+        private final Listener<T> listener;
+
+        private Subscription(Topic topic, Listener<T> listener) {
+            this.topic = topic;
+            this.listener = listener;
+        }
+
+        private void deliver(T value) {
+            try {
+                listener.onNext(value);
+            } catch (Exception e) {
+                LOGGER.info("Subscriber failed, unsubscribing from " + topic.exchange);
+                close();
+                listener.onError(e);
+            }
+        }
+
+        /**
+         * Remove this subscription. Safe to call more than once, and from within the listener.
+         */
+        @Override
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+
+    private class Topic {
+        final String exchange;
+        final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        MessageBus.Consumer consumer;
+        volatile boolean closing = false;
+
+        Topic(String exchange) {
+            this.exchange = exchange;
+        }
+
+        void open() throws IOException {
+            consumer = bus.consume(exchange, parser, new MessageBus.Listener<T>() {
+                @Override
+                public void onNext(T value) {
+                    for (Subscription subscription : subscriptions) {
+                        subscription.deliver(value);
+                    }
+                }
+
+                @Override
+                public void onLost(Throwable cause) {
+                    lost(Topic.this, cause);
+                }
+            });
+        }
+
+        void shutdown() {
+            closing = true;
+            if (consumer != null)
+                consumer.close();
+        }
+    }
+
+    /**
+     * @param bus    The bus to consume topics from
+     * @param parser Parser for messages published to the topics
+     */
+    public SubscriptionHub(MessageBus bus, Parser<T> parser) {
+        this.bus = bus;
+        this.parser = parser;
+    }
+
+    /**
+     * Subscribe to messages published to an exchange, starting a consumer if this is the first local subscriber.
+     *
+     * @param exchange The exchange to subscribe to
+     * @param listener Called for every message
+     * @return A subscription which must be closed once the caller is no longer interested
+     * @throws IOException If the consumer could not be started
+     */
+    public synchronized Subscription subscribe(String exchange, Listener<T> listener) throws IOException {
+        Topic topic = topics.get(exchange);
+        if (topic == null) {
+            topic = new Topic(exchange);
+            try {
+                topic.open();
+            } catch (IOException e) {
+                topic.shutdown();
+                throw e;
+            }
+            topics.put(exchange, topic);
+            LOGGER.debug("Started consumer for " + exchange);
+        }
+
+        Subscription subscription = new Subscription(topic, listener);
+        topic.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        Topic topic = subscription.topic;
+        boolean last;
+
+        synchronized (this) {
+            if (!topic.subscriptions.remove(subscription))
+                return;
+
+            last = topic.subscriptions.isEmpty() && topics.get(topic.exchange) == topic;
+            if (last)
+                topics.remove(topic.exchange);
+        }
+
+        if (last) {
+            LOGGER.debug("Last subscriber left, stopping consumer for " + topic.exchange);
+            topic.shutdown();
+        }
+    }
+
+    private void lost(Topic topic, Throwable cause) {
+        if (topic.closing)
+            return;
+
+        synchronized (this) {
+            if (topics.get(topic.exchange) == topic)
+                topics.remove(topic.exchange);
+        }
+
+        LOGGER.warn("Lost consumer for " + topic.exchange);
+        for (Subscription subscription : topic.subscriptions) {
+            topic.subscriptions.remove(subscription);
+            subscription.listener.onError(cause);
+        }
+    }
+
+    /**
+     * @return Number of exchanges with an active consumer on this node
+     */
+    public synchronized int getTopicCount() {
+        return topics.size();
+    }
+
+    /**
+     * @return Number of local subscriptions across all exchanges
+     */
+    public synchronized int getSubscriptionCount() {
+        return topics.values().stream()
+                .mapToInt(topic -> topic.subscriptions.size())
+                .sum();
+    }
+
+    @Override
+    public void close() {
+        List<Topic> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(topics.values());
+            topics.clear();
+        }
+
+        closing.forEach(Topic::shutdown);
+    }
+}
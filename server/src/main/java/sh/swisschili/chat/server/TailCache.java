@@ -0,0 +1,430 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package sh.swisschili.chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.MessageCursor;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the newest messages of recently read channels in memory, in front of another message store.
+ *
+ * The first read of a channel loads its newest messages from the store and subscribes to the channel, so every
+ * message published afterwards, by this server or any other, is added as it is delivered. Reads that fall inside the
+ * cached window never reach the store. Channels are evicted least recently read first once the cache holds more than
+ * its memory cap. Writes go straight to the store, and retention deletes go through to it too, taking the deleted
+ * messages out of the cache.
+ *
+ * With {@link MessageWriter.AckMode#ENQUEUED} a message can be published before it is saved, so one sent just as a
+ * channel is first loaded may be missing from that channel's cache until it is evicted.
+ */
+public class TailCache implements MessageStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TailCache.class);
+
+    public static final int DEFAULT_MESSAGES_PER_CHANNEL = 200;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Rough cost of a cached channel and of a cached message beyond its serialized size, so the memory cap also bounds
+     * the number of quiet channels
+     */
+    private static final int CHANNEL_OVERHEAD = 1024;
+    private static final int MESSAGE_OVERHEAD = 64;
+
+    private static final Comparator<Message> NEWEST_FIRST = Comparator.comparingLong(Message::getUnixTime)
+            .thenComparing(Message::getId)
+            .reversed();
+
+    private final MessageStore store;
+    private final SubscriptionHub<Message> hub;
+    private final int messagesPerChannel;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Tail> tails = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param store              The store to read from on a miss and to write to
+     * @param hub                Used to follow messages published to cached channels
+     * @param messagesPerChannel Maximum messages cached for each channel
+     * @param maxBytes           Approximate memory cap across all channels
+     */
+    public TailCache(MessageStore store, SubscriptionHub<Message> hub, int messagesPerChannel, long maxBytes) {
+        if (messagesPerChannel < 1)
+            throw new IllegalArgumentException("messagesPerChannel: " + messagesPerChannel);
+
+        this.store = store;
+        this.hub = hub;
+        this.messagesPerChannel = messagesPerChannel;
+        this.maxBytes = maxBytes;
+    }
+
+    private class Tail implements SubscriptionHub.Listener<Message> {
+        final Channel channel;
+        /**
+         * Newest first, without gaps
+         */
+        final List<Message> messages = new ArrayList<>();
+        final Set<String> ids = new HashSet<>();
+        long size = CHANNEL_OVERHEAD;
+        boolean seeded = false;
+        /**
+         * Are these all of the channel's messages, rather than just the newest?
+         */
+        boolean complete = false;
+        boolean closed = false;
+        /**
+         * Highest sequence number deleted from the store, older sequenced messages are never cached again
+         */
+        long deletedThrough = 0;
+        volatile SubscriptionHub<Message>.Subscription subscription;
+
+        Tail(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onNext(Message value) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                insertLive(value);
+            }
+            evictIfNeeded();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            LOGGER.warn("Lost messages for cached channel, dropping it", t);
+            invalidate(this);
+        }
+
+        /**
+         * Must be called with this locked
+         */
+        private void insert(Message message) {
+            if (message.getSeq() > 0 && message.getSeq() <= deletedThrough)
+                return;
+            if (!ids.add(message.getId()))
+                return;
+
+            int index = Collections.binarySearch(messages, message, NEWEST_FIRST);
+            if (index < 0)
+                index = -index - 1;
+
+            messages.add(index, message);
+            grow(message);
+
+            while (messages.size() > messagesPerChannel) {
+                Message oldest = messages.remove(messages.size() - 1);
+                ids.remove(oldest.getId());
+                shrink(oldest);
+                complete = false;
+            }
+        }
+
+        /**
+         * Insert a delivered message unless it sorts past the oldest one cached while older messages are not, which
+         * would leave a gap. Its timestamp comes from the sender, so it can be arbitrarily old. Must be called with
+         * this locked.
+         */
+        private void insertLive(Message message) {
+            if (seeded && !complete && !messages.isEmpty()
+                    && NEWEST_FIRST.compare(message, messages.get(messages.size() - 1)) > 0)
+                return;
+            insert(message);
+        }
+
+        private void grow(Message message) {
+            long cost = message.getSerializedSize() + MESSAGE_OVERHEAD;
+            size += cost;
+            bytes.addAndGet(cost);
+        }
+
+        private void shrink(Message message) {
+            long cost = message.getSerializedSize() + MESSAGE_OVERHEAD;
+            size -= cost;
+            bytes.addAndGet(-cost);
+        }
+
+        synchronized void seed(List<Message> newest) {
+            if (closed)
+                return;
+
+            // Anything delivered since subscribing is merged in, it may or may not also be in newest
+            newest.forEach(this::insert);
+            complete = newest.size() < messagesPerChannel;
+            seeded = true;
+        }
+
+        /**
+         * Drop messages deleted from the store. Those left are still the channel's newest, so nothing is refetched.
+         */
+        synchronized void trimThrough(long seq) {
+            deletedThrough = Math.max(deletedThrough, seq);
+
+            Iterator<Message> iterator = messages.iterator();
+            while (iterator.hasNext()) {
+                Message message = iterator.next();
+                if (message.getSeq() > 0 && message.getSeq() <= seq) {
+                    iterator.remove();
+                    ids.remove(message.getId());
+                    shrink(message);
+                }
+            }
+        }
+
+        /**
+         * @return The requested messages, or null if they are not all cached
+         */
+        synchronized List<Message> read(MessageCursor before, int skip, int count) {
+            if (!seeded || closed)
+                return null;
+
+            int start = 0;
+            if (before != null) {
+                Message key = Message.newBuilder()
+                        .setUnixTime(before.getUnixTime())
+                        .setId(before.getId())
+                        .build();
+                int index = Collections.binarySearch(messages, key, NEWEST_FIRST);
+                start = index >= 0 ? index + 1 : -index - 1;
+            }
+
+            long from = (long) start + skip;
+            long to = from + count;
+            if (to > messages.size() && !complete)
+                return null;
+
+            return new ArrayList<>(messages.subList((int) Math.min(from, messages.size()),
+                    (int) Math.min(to, messages.size())));
+        }
+
+        /**
+         * Stop following the channel and release its memory. Must be called with the tails map locked.
+         */
+        synchronized void detach() {
+            closed = true;
+            bytes.addAndGet(-size);
+            size = 0;
+            messages.clear();
+            ids.clear();
+        }
+
+        void unsubscribe() {
+            if (subscription != null)
+                subscription.close();
+        }
+    }
+
+    private List<Message> cached(Channel channel, MessageCursor before, int skip, int count) {
+        Tail tail;
+        boolean created = false;
+
+        synchronized (tails) {
+            tail = tails.get(channel.getId());
+            if (tail == null) {
+                tail = new Tail(channel);
+                tails.put(channel.getId(), tail);
+                bytes.addAndGet(tail.size);
+                created = true;
+            }
+        }
+
+        if (created)
+            load(tail);
+
+        List<Message> messages = tail.read(before, skip, count);
+        if (messages != null && !created) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+
+        return messages;
+    }
+
+    private void load(Tail tail) {
+        try {
+            // Subscribe first so nothing published while loading is missed
+            tail.subscription = hub.subscribe(ServerConstants.getChannelExchange(tail.channel.getId()), tail);
+        } catch (IOException e) {
+            LOGGER.warn("Could not follow channel, not caching it", e);
+            invalidate(tail);
+            return;
+        }
+
+        synchronized (tail) {
+            // Evicted while subscribing
+            if (tail.closed) {
+                tail.unsubscribe();
+                return;
+            }
+        }
+
+        tail.seed(store.getMessagesBefore(tail.channel, null, messagesPerChannel));
+        evictIfNeeded();
+    }
+
+    private void invalidate(Tail tail) {
+        synchronized (tails) {
+            if (tails.get(tail.channel.getId()) == tail)
+                tails.remove(tail.channel.getId());
+            tail.detach();
+        }
+        tail.unsubscribe();
+    }
+
+    private void evictIfNeeded() {
+        if (bytes.get() <= maxBytes)
+            return;
+
+        List<Tail> evicted = new ArrayList<>();
+        synchronized (tails) {
+            Iterator<Tail> eldest = tails.values().iterator();
+            while (bytes.get() > maxBytes && eldest.hasNext()) {
+                Tail tail = eldest.next();
+                eldest.remove();
+                tail.detach();
+                evicted.add(tail);
+            }
+        }
+
+        evictions.addAndGet(evicted.size());
+        evicted.forEach(Tail::unsubscribe);
+    }
+
+    @Override
+    public List<Message> getMessagesBefore(Channel channel, MessageCursor before, int number) {
+        List<Message> messages = cached(channel, before, 0, number);
+        return messages != null ? messages : store.getMessagesBefore(channel, before, number);
+    }
+
+    @Override
+    public List<Message> getMessageRange(Channel channel, int start, int number) {
+        List<Message> messages = cached(channel, null, start, number);
+        return messages != null ? messages : store.getMessageRange(channel, start, number);
+    }
+
+    @Override
+    public List<Message> getMessagesAfter(Channel channel, long afterSeq, int number) {
+        return store.getMessagesAfter(channel, afterSeq, number);
+    }
+
+    @Override
+    public long reserveSequence(Channel channel, int count) {
+        return store.reserveSequence(channel, count);
+    }
+
+    @Override
+    public void saveMessages(List<ChannelMessage> batch) {
+        store.saveMessages(batch);
+    }
+
+    @Override
+    public List<Channel> getStoredChannels() {
+        return store.getStoredChannels();
+    }
+
+    @Override
+    public Usage getUsage(Channel channel) {
+        return store.getUsage(channel);
+    }
+
+    @Override
+    public long getDeletableThrough(Channel channel, long seq) {
+        return store.getDeletableThrough(channel, seq);
+    }
+
+    /**
+     * Delete from the store, then from the channel's cache so deleted messages are never served from memory
+     */
+    @Override
+    public long deleteMessagesThrough(Channel channel, long seq) {
+        long deleted = store.deleteMessagesThrough(channel, seq);
+
+        Tail tail;
+        synchronized (tails) {
+            tail = tails.get(channel.getId());
+        }
+        if (tail != null)
+            tail.trimThrough(seq);
+
+        return deleted;
+    }
+
+    public int getChannelCount() {
+        synchronized (tails) {
+            return tails.size();
+        }
+    }
+
+    /**
+     * @return Approximate memory used by cached messages, in bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TailCache[channels=%d, bytes=%d, hitRatio=%.3f, evictions=%d]",
+                getChannelCount(), getBytes(), getHitRatio(), getEvictionCount());
+    }
+
+    /**
+     * Stop following every cached channel. The underlying store is left open.
+     */
+    @Override
+    public void close() {
+        List<Tail> closing;
+        synchronized (tails) {
+            closing = new ArrayList<>(tails.values());
+            tails.clear();
+            closing.forEach(Tail::detach);
+        }
+        closing.forEach(Tail::unsubscribe);
+    }
+}
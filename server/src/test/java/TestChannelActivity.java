@@ -0,0 +1,198 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sh.swisschili.chat.server.*;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos.*;
+import sh.swisschili.chat.util.SignedAuth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class TestChannelActivity {
+    private static final User SENDER = User.newBuilder().setName("joe").setHost("localhost")
+            .setId("5f0c8b8e8f1b2a3c4d5e6f71").build();
+    private static final Group GROUP = Group.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f70").setName("test").build();
+    private static final Channel GENERAL = Channel.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f72").setName("general")
+            .build();
+    private static final Channel RANDOM = Channel.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f73").setName("random")
+            .build();
+
+    private Path directory;
+    private ChatService chatService;
+    private Server server;
+    private ManagedChannel channel;
+
+    /**
+     * Only knows the channels of one group
+     */
+    private static class ChannelStore implements MetadataStore {
+        @Override
+        public List<Channel> getGroupChannels(Group group) {
+            return Arrays.asList(GENERAL, RANDOM);
+        }
+
+        @Override
+        public Group createGroup(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Channel createChannel(Group group, String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public User getOrAddUser(String name, String host) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Group getGroupByName(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createUser(String name, String password, byte[] publicKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticateUser(String name, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getUserPublicKey(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setUserStatus(UserStatus status, Group group) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterable<UserStatus> getUserStatuses(Group group) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("chat-test");
+        LogMessageStore store = new LogMessageStore(directory);
+        chatService = new ChatService(new InProcessMessageBus(), new ChannelStore(), store, new MessageWriter(store),
+                new SignatureVerifier());
+        chatService.setAllowUnsignedMessages(true);
+        chatService.getKeyCache().put(SENDER, SignedAuth.generateKeyPair().getPublic());
+
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(chatService).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, IOException {
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        chatService.close();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static OutgoingMessage outgoing(Channel channel, String body) {
+        return OutgoingMessage.newBuilder()
+                .setMessage(Message.newBuilder().setBody(body).setSender(SENDER).setUnixTime(1))
+                .setChannel(channel)
+                .build();
+    }
+
+    @Test
+    public void testNewestMessageThenUpdates() {
+        ChatGrpc.ChatBlockingStub stub = ChatGrpc.newBlockingStub(channel);
+        stub.sendMessage(outgoing(GENERAL, "one"));
+        MessageResponse second = stub.sendMessage(outgoing(GENERAL, "two"));
+
+        Iterator<ChannelActivity> activity = stub.getChannelActivity(GROUP);
+
+        // Only general has messages so far, random is left out
+        ChannelActivity snapshot = activity.next();
+        assert snapshot.getChannelId().equals(GENERAL.getId());
+        assert snapshot.getLastSeq() == second.getSeq();
+        assert snapshot.getLastMessageId().equals(second.getId());
+        assert snapshot.getNewMessages() == 0;
+
+        MessageResponse third = stub.sendMessage(outgoing(RANDOM, "three"));
+        ChannelActivity update = activity.next();
+        assert update.getChannelId().equals(RANDOM.getId());
+        assert update.getLastSeq() == third.getSeq();
+        assert update.getNewMessages() == 1;
+    }
+
+    @Test
+    public void testCancellingReleasesSubscriptions() throws InterruptedException {
+        ChatGrpc.ChatStub stub = ChatGrpc.newStub(channel);
+        int before = chatService.getMessageHub().getSubscriptionCount();
+
+        Context.CancellableContext context = Context.current().withCancellation();
+        context.run(() -> stub.getChannelActivity(GROUP, new StreamObserver<ChannelActivity>() {
+            @Override
+            public void onNext(ChannelActivity value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        }));
+
+        for (int i = 0; i < 100 && chatService.getMessageHub().getSubscriptionCount() < before + 2; i++) {
+            Thread.sleep(10);
+        }
+        assert chatService.getMessageHub().getSubscriptionCount() == before + 2;
+
+        context.cancel(null);
+        for (int i = 0; i < 100 && chatService.getMessageHub().getSubscriptionCount() > before; i++) {
+            Thread.sleep(10);
+        }
+        assert chatService.getMessageHub().getSubscriptionCount() == before;
+    }
+}
@@ -16,10 +16,15 @@ You should have received a copy of the GNU Affero General Public License
 along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
+import org.bson.types.ObjectId;
 import org.junit.Test;
+import sh.swisschili.chat.server.RetentionEngine;
+import sh.swisschili.chat.server.RetentionPolicy;
 import sh.swisschili.chat.server.ServerDatabase;
 import sh.swisschili.chat.util.ChatProtos.Channel;
 import sh.swisschili.chat.util.ChatProtos.Group;
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.MessageCursor;
 import sh.swisschili.chat.util.ChatProtos.User;
 
 import java.util.List;
@@ -33,6 +38,15 @@ public class TestDatabase {
         String dbUrl = System.getProperty("db-url");
         LOGGER.info(dbUrl);
         db = new ServerDatabase(dbUrl);
+        db.ensureIndexes();
+    }
+
+    @Test
+    public void queryPlanTest() {
+        List<String> problems = db.checkQueryPlans();
+        problems.forEach(LOGGER::warning);
+
+        assert problems.isEmpty();
     }
 
     @Test
@@ -64,4 +78,65 @@ public class TestDatabase {
         db.getMessageRange(channel, 0, 10)
                 .forEach(System.out::println);
     }
+
+    @Test
+    public void messageCursorTest() throws ClassNotFoundException {
+        Channel channel = db.getGroupChannels(db.getGroupByName("test-group")).get(0);
+        User user = db.getOrAddUser("joe", "localhost");
+
+        for (int i = 0; i < 3; i++) {
+            db.saveMessage(channel, Message.newBuilder()
+                    .setBody("Cursor test " + i)
+                    .setSender(user)
+                    .setUnixTime(System.currentTimeMillis())
+                    .build());
+        }
+
+        List<Message> first = db.getMessagesBefore(channel, null, 2);
+        assert first.size() == 2;
+
+        Message oldest = first.get(1);
+        List<Message> second = db.getMessagesBefore(channel, MessageCursor.newBuilder()
+                .setUnixTime(oldest.getUnixTime())
+                .setId(oldest.getId()).build(), 2);
+
+        assert !second.isEmpty();
+        assert second.stream().noneMatch(first::contains);
+        assert second.get(0).getUnixTime() <= oldest.getUnixTime();
+    }
+
+    @Test
+    public void retentionKeepsNewMessagesTest() throws Exception {
+        Group group = db.createGroup("retention-" + new ObjectId());
+        Channel channel = db.getGroupChannels(group).get(0);
+        User user = db.getOrAddUser("joe", "localhost");
+
+        // Messages saved before sequence numbers existed, which retention never deletes
+        for (int i = 0; i < 50; i++) {
+            db.saveMessage(channel, Message.newBuilder()
+                    .setBody("Legacy " + i)
+                    .setSender(user)
+                    .setUnixTime(i)
+                    .build());
+        }
+        for (int i = 0; i < 20; i++) {
+            db.saveMessage(channel, Message.newBuilder()
+                    .setBody("Sequenced " + i)
+                    .setSender(user)
+                    .setUnixTime(100 + i)
+                    .setSeq(db.reserveSequence(channel, 1))
+                    .build());
+        }
+
+        assert db.getUsage(channel).getCount() == 20;
+
+        RetentionEngine engine = new RetentionEngine(db, null, RetentionPolicy.UNLIMITED, null, 1_000_000);
+        engine.setChannelPolicy(channel.getId(), new RetentionPolicy(0, 10, 0));
+        engine.runPass();
+
+        List<Message> remaining = db.getMessagesAfter(channel, 0, 100);
+        assert remaining.size() == 10;
+        assert remaining.get(0).getBody().equals("Sequenced 10");
+        assert db.getMessageRange(channel, 0, 100).size() == 60;
+    }
 }
@@ -0,0 +1,366 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status.Code;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sh.swisschili.chat.server.*;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos.*;
+import sh.swisschili.chat.util.SignedAuth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class TestGroupEvents {
+    private static final User SENDER = User.newBuilder().setName("joe").setHost("localhost")
+            .setId("5f0c8b8e8f1b2a3c4d5e6f71").build();
+    private static final Group GROUP = Group.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f70").setName("test").build();
+    private static final Channel GENERAL = Channel.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f72").setName("general")
+            .build();
+    private static final Channel RANDOM = Channel.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f73").setName("random")
+            .build();
+
+    private Path directory;
+    private ChatService chatService;
+    private Server server;
+    private ManagedChannel channel;
+    private int barriers = 0;
+
+    /**
+     * Keeps one group's channels in a list and has no saved statuses
+     */
+    private static class GroupStore implements MetadataStore {
+        final List<Channel> channels = Collections.synchronizedList(new ArrayList<>());
+
+        GroupStore() {
+            channels.add(GENERAL);
+            channels.add(RANDOM);
+        }
+
+        @Override
+        public List<Channel> getGroupChannels(Group group) {
+            synchronized (channels) {
+                return new ArrayList<>(channels);
+            }
+        }
+
+        @Override
+        public Channel createChannel(Group group, String name) {
+            Channel channel = Channel.newBuilder().setId(String.format("5f0c8b8e8f1b2a3c4d5e6f%02d", channels.size()))
+                    .setName(name).build();
+            channels.add(channel);
+            return channel;
+        }
+
+        @Override
+        public Iterable<UserStatus> getUserStatuses(Group group) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void setUserStatus(UserStatus status, Group group) {
+        }
+
+        @Override
+        public Group createGroup(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public User getOrAddUser(String name, String host) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Group getGroupByName(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createUser(String name, String password, byte[] publicKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticateUser(String name, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getUserPublicKey(String name) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Collects the events of one GroupEvents call
+     */
+    private static class Events implements StreamObserver<GroupEvent> {
+        final BlockingQueue<GroupEvent> events = new LinkedBlockingQueue<>();
+        /**
+         * Channels used as barriers, whose events are skipped
+         */
+        final Set<String> ignored = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void onNext(GroupEvent value) {
+            events.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        /**
+         * @return The next event of the given kind, skipping others
+         */
+        GroupEvent next(GroupEvent.EventCase kind) throws InterruptedException {
+            while (true) {
+                GroupEvent event = events.poll(5, TimeUnit.SECONDS);
+                assert event != null : "No " + kind + " event";
+                if (event.getEventCase() == kind && !ignored.contains(channelOf(event)))
+                    return event;
+            }
+        }
+
+        private static String channelOf(GroupEvent event) {
+            if (event.hasMessage())
+                return event.getMessage().getChannelId();
+            return event.hasActivity() ? event.getActivity().getChannelId() : "";
+        }
+
+        /**
+         * @return The bodies of the next count message events, skipping other events
+         */
+        List<String> messages(int count) throws InterruptedException {
+            List<String> bodies = new ArrayList<>();
+            while (bodies.size() < count) {
+                bodies.add(next(GroupEvent.EventCase.MESSAGE).getMessage().getMessage().getBody());
+            }
+            return bodies;
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("chat-test");
+        LogMessageStore store = new LogMessageStore(directory);
+        chatService = new ChatService(new InProcessMessageBus(), new GroupStore(), store, new MessageWriter(store),
+                new SignatureVerifier());
+        chatService.setAllowUnsignedMessages(true);
+        chatService.getKeyCache().put(SENDER, SignedAuth.generateKeyPair().getPublic());
+
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(chatService).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException, IOException {
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        chatService.close();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private MessageResponse send(Channel channel, String body) {
+        return ChatGrpc.newBlockingStub(this.channel).sendMessage(OutgoingMessage.newBuilder()
+                .setMessage(Message.newBuilder().setBody(body).setSender(SENDER).setUnixTime(1))
+                .setChannel(channel)
+                .build());
+    }
+
+    /**
+     * Wait until the server has handled every command sent so far. Commands are handled in order, so once a message in
+     * a newly subscribed channel streams, everything before the subscription has been handled too.
+     */
+    private void barrier(StreamObserver<GroupCommand> commands, Events events) throws InterruptedException {
+        Channel barrier = Channel.newBuilder().setId(String.format("5f0c8b8e8f1b2a3c4d5e6f%02d", 90 + barriers++))
+                .setName("barrier").build();
+        events.ignored.add(barrier.getId());
+        commands.onNext(subscribe(barrier, 0));
+
+        while (true) {
+            send(barrier, "barrier");
+            GroupEvent event;
+            while ((event = events.events.poll(50, TimeUnit.MILLISECONDS)) != null) {
+                if (event.hasMessage() && event.getMessage().getChannelId().equals(barrier.getId())) {
+                    commands.onNext(GroupCommand.newBuilder().setUnsubscribe(barrier).build());
+                    return;
+                }
+            }
+        }
+    }
+
+    private static GroupCommand join() {
+        return GroupCommand.newBuilder()
+                .setJoin(GroupUserStatusRequest.newBuilder().setGroup(GROUP))
+                .build();
+    }
+
+    private static GroupCommand subscribe(Channel channel, long afterSeq) {
+        return GroupCommand.newBuilder()
+                .setSubscribe(GetMessagesRequest.newBuilder().setChannel(channel).setAfterSeq(afterSeq))
+                .build();
+    }
+
+    @Test
+    public void testMultiplexesSubscribedChannels() throws Exception {
+        Events events = new Events();
+        StreamObserver<GroupCommand> commands = ChatGrpc.newStub(channel).groupEvents(events);
+        commands.onNext(join());
+        commands.onNext(subscribe(GENERAL, 0));
+        commands.onNext(subscribe(RANDOM, 0));
+        barrier(commands, events);
+
+        send(GENERAL, "one");
+        send(RANDOM, "two");
+        assert events.messages(2).equals(Arrays.asList("one", "two"));
+
+        commands.onNext(GroupCommand.newBuilder().setUnsubscribe(GENERAL).build());
+        barrier(commands, events);
+
+        // General is still followed for activity, just not streamed
+        send(GENERAL, "three");
+        send(RANDOM, "four");
+        ChannelActivity activity = events.next(GroupEvent.EventCase.ACTIVITY).getActivity();
+        assert activity.getChannelId().equals(GENERAL.getId()) && activity.getNewMessages() == 1;
+        assert events.messages(1).equals(Collections.singletonList("four"));
+
+        commands.onCompleted();
+    }
+
+    @Test
+    public void testResumeReplaysThenContinuesLive() throws Exception {
+        MessageResponse first = send(GENERAL, "one");
+        send(GENERAL, "two");
+        send(GENERAL, "three");
+
+        Events events = new Events();
+        StreamObserver<GroupCommand> commands = ChatGrpc.newStub(channel).groupEvents(events);
+        commands.onNext(join());
+        commands.onNext(subscribe(GENERAL, first.getSeq()));
+        assert events.messages(2).equals(Arrays.asList("two", "three"));
+
+        send(GENERAL, "four");
+        assert events.messages(1).equals(Collections.singletonList("four"));
+
+        commands.onCompleted();
+    }
+
+    @Test
+    public void testReplayTooLongOnlyEndsItsSubscription() throws Exception {
+        chatService.setMaxReplay(2);
+        MessageResponse first = send(GENERAL, "one");
+        for (int i = 0; i < 5; i++) {
+            send(GENERAL, "missed " + i);
+        }
+
+        Events events = new Events();
+        StreamObserver<GroupCommand> commands = ChatGrpc.newStub(channel).groupEvents(events);
+        commands.onNext(join());
+        commands.onNext(subscribe(GENERAL, first.getSeq()));
+        commands.onNext(subscribe(RANDOM, 0));
+
+        SubscriptionEnded ended = events.next(GroupEvent.EventCase.ENDED).getEnded();
+        assert ended.getChannelId().equals(GENERAL.getId());
+        assert ended.getCode() == Code.OUT_OF_RANGE.value();
+        barrier(commands, events);
+
+        send(GENERAL, "not streamed");
+        send(RANDOM, "still streaming");
+        assert events.messages(1).equals(Collections.singletonList("still streaming"));
+
+        commands.onCompleted();
+    }
+
+    @Test
+    public void testCreatedChannelsAreAnnouncedAndFollowed() throws Exception {
+        Events events = new Events();
+        StreamObserver<GroupCommand> commands = ChatGrpc.newStub(channel).groupEvents(events);
+        commands.onNext(join());
+        barrier(commands, events);
+
+        Channel created = ChatGrpc.newBlockingStub(channel).createChannel(CreateChannelRequest.newBuilder()
+                .setGroup(GROUP)
+                .setChannelName("new")
+                .build()).getChannel();
+        assert events.next(GroupEvent.EventCase.CHANNELCREATED).getChannelCreated().equals(created);
+
+        send(created, "hello");
+        ChannelActivity activity = events.next(GroupEvent.EventCase.ACTIVITY).getActivity();
+        assert activity.getChannelId().equals(created.getId());
+
+        commands.onCompleted();
+        for (int i = 0; i < 100 && chatService.getGroupStreamCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assert chatService.getGroupStreamCount() == 0;
+        assert chatService.getMessageHub().getSubscriptionCount() == 0;
+    }
+
+    @Test
+    public void testStatusSnapshotIsNeverDropped() throws Exception {
+        chatService.setStreamBufferSize(4);
+        for (int i = 0; i < 50; i++) {
+            chatService.getPresence().setStatus(GROUP, UserStatus.newBuilder()
+                    .setUser(User.newBuilder().setName("user" + i).setHost("localhost"))
+                    .setPresence(Presence.ONLINE)
+                    .build());
+        }
+
+        // The blocking stub only asks for one status at a time, so the snapshot can't all be sent at once
+        Iterator<UserStatus> statuses = ChatGrpc.newBlockingStub(channel)
+                .withDeadlineAfter(5, TimeUnit.SECONDS)
+                .getGroupUserStatuses(GroupUserStatusRequest.newBuilder().setGroup(GROUP).build());
+        Set<String> users = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            users.add(statuses.next().getUser().getName());
+        }
+        assert users.size() == 50;
+    }
+}
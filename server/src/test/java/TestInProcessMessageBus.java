@@ -0,0 +1,85 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+import sh.swisschili.chat.server.InProcessMessageBus;
+import sh.swisschili.chat.server.SubscriptionHub;
+import sh.swisschili.chat.util.ChatProtos.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestInProcessMessageBus {
+    private static Message message(String body) {
+        return Message.newBuilder().setBody(body).build();
+    }
+
+    @Test
+    public void testFanOutThroughHub() throws IOException {
+        InProcessMessageBus bus = new InProcessMessageBus();
+        SubscriptionHub<Message> hub = new SubscriptionHub<>(bus, Message.parser());
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+
+        SubscriptionHub<Message>.Subscription a = hub.subscribe("channel", value -> first.add(value.getBody()));
+        SubscriptionHub<Message>.Subscription b = hub.subscribe("channel", value -> second.add(value.getBody()));
+        // Both subscribers share one consumer
+        assert bus.getTopicCount() == 1;
+
+        bus.publish("channel", message("hello"));
+        bus.publish("other", message("nobody"));
+        a.close();
+        bus.publish("channel", message("again"));
+
+        assert first.size() == 1 && first.get(0).equals("hello");
+        assert second.size() == 2 && second.get(1).equals("again");
+
+        b.close();
+        assert bus.getTopicCount() == 0;
+        assert hub.getTopicCount() == 0;
+    }
+
+    @Test
+    public void testFailingSubscriberIsRemoved() throws IOException {
+        InProcessMessageBus bus = new InProcessMessageBus();
+        SubscriptionHub<Message> hub = new SubscriptionHub<>(bus, Message.parser());
+        List<Throwable> errors = new ArrayList<>();
+        List<String> healthy = new ArrayList<>();
+
+        hub.subscribe("channel", new SubscriptionHub.Listener<Message>() {
+            @Override
+            public void onNext(Message value) {
+                throw new IllegalStateException("Broken subscriber");
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                errors.add(t);
+            }
+        });
+        hub.subscribe("channel", value -> healthy.add(value.getBody()));
+
+        bus.publish("channel", message("one"));
+        bus.publish("channel", message("two"));
+
+        assert errors.size() == 1;
+        assert healthy.size() == 2;
+        assert hub.getSubscriptionCount() == 1;
+    }
+}
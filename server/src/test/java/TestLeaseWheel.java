@@ -0,0 +1,73 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+import org.junit.Test;
+import sh.swisschili.chat.server.LeaseWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestLeaseWheel {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test
+    public void testRenewPushesBackExpiry() {
+        List<String> expired = new ArrayList<>();
+        // Ticks are driven by hand, the wheel's own thread would only tick after an hour
+        LeaseWheel<String, String> wheel = new LeaseWheel<>(3 * HOUR, HOUR, (key, value) -> expired.add(value));
+
+        wheel.renew("joe", "first");
+        wheel.renew("ann", "ann");
+        wheel.advance();
+        wheel.advance();
+        wheel.advance();
+        assert expired.isEmpty();
+
+        assert wheel.renew("joe");
+        wheel.advance();
+        assert expired.size() == 1 && expired.get(0).equals("ann");
+
+        wheel.renew("joe", "second");
+        wheel.advance();
+        wheel.advance();
+        wheel.advance();
+        assert expired.size() == 1;
+        wheel.advance();
+        assert expired.size() == 2 && expired.get(1).equals("second");
+
+        assert !wheel.renew("joe");
+        assert wheel.size() == 0;
+        assert wheel.getExpiredCount() == 2;
+        wheel.close();
+    }
+
+    @Test
+    public void testCancelledLeaseNeverExpires() {
+        List<String> expired = new ArrayList<>();
+        LeaseWheel<String, String> wheel = new LeaseWheel<>(HOUR, HOUR, (key, value) -> expired.add(key));
+
+        wheel.renew("joe", "joe");
+        assert wheel.cancel("joe");
+        assert !wheel.cancel("joe");
+
+        for (int i = 0; i < 10; i++) {
+            wheel.advance();
+        }
+        assert expired.isEmpty();
+        wheel.close();
+    }
+}
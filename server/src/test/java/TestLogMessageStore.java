@@ -0,0 +1,185 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sh.swisschili.chat.server.ChannelMessage;
+import sh.swisschili.chat.server.LogMessageStore;
+import sh.swisschili.chat.util.ChatProtos.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class TestLogMessageStore {
+    private final Channel channel = Channel.newBuilder().setId(new ObjectId().toString()).build();
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("chat-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static Message message(long unixTime) {
+        return Message.newBuilder()
+                .setId(new ObjectId().toString())
+                .setBody("Message sent at " + unixTime)
+                .setUnixTime(unixTime)
+                .build();
+    }
+
+    private static MessageCursor cursor(Message message) {
+        return MessageCursor.newBuilder().setUnixTime(message.getUnixTime()).setId(message.getId()).build();
+    }
+
+    private List<Message> save(LogMessageStore store, long... times) {
+        List<Message> messages = new ArrayList<>();
+        List<ChannelMessage> batch = new ArrayList<>();
+        for (long time : times) {
+            Message message = message(time);
+            messages.add(message);
+            batch.add(new ChannelMessage(channel, message));
+        }
+        store.saveMessages(batch);
+        return messages;
+    }
+
+    @Test
+    public void testCursorPagingFollowsTimeNotWriteOrder() throws IOException {
+        LogMessageStore store = new LogMessageStore(directory, LogMessageStore.DEFAULT_SEGMENT_SIZE, 2);
+        // A late message from a client with a slow clock lands after newer ones
+        save(store, 10, 20, 30, 40, 15, 50, 60);
+
+        List<Long> times = new ArrayList<>();
+        MessageCursor before = null;
+        List<Message> page;
+        do {
+            page = store.getMessagesBefore(channel, before, 3);
+            for (Message message : page) {
+                times.add(message.getUnixTime());
+            }
+            if (!page.isEmpty())
+                before = cursor(page.get(page.size() - 1));
+        } while (page.size() == 3);
+
+        assert times.equals(Arrays.asList(60L, 50L, 40L, 30L, 20L, 15L, 10L)) : times;
+        assert store.getMessageRange(channel, 5, 10).size() == 2;
+        assert store.getMessagesBefore(Channel.newBuilder().setId(new ObjectId().toString()).build(), null, 10)
+                .isEmpty();
+    }
+
+    @Test
+    public void testReopenRecoversAcrossSegments() throws IOException {
+        // Segments only big enough for a few messages each
+        LogMessageStore store = new LogMessageStore(directory, 256, 4);
+        List<Message> saved = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            saved.addAll(save(store, i));
+        }
+        store.close();
+
+        LogMessageStore reopened = new LogMessageStore(directory, 256, 4);
+        List<Message> loaded = reopened.getMessagesBefore(channel, null, 100);
+
+        assert loaded.size() == 20;
+        for (int i = 0; i < 20; i++) {
+            assert loaded.get(i).equals(saved.get(19 - i));
+        }
+
+        save(reopened, 100);
+        assert reopened.getMessagesBefore(channel, null, 1).get(0).getUnixTime() == 100;
+    }
+
+    @Test
+    public void testRecoveryOnlyClearsTornRecord() throws IOException {
+        LogMessageStore store = new LogMessageStore(directory, 4096, 4);
+        List<Message> saved = save(store, 1, 2, 3);
+        store.close();
+
+        Path segment = directory.resolve(channel.getId()).resolve(String.format("%010d.log", 0));
+        byte[] bytes = Files.readAllBytes(segment);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int third = 0;
+        for (int i = 0; i < 2; i++) {
+            third += 8 + buffer.getInt(third);
+        }
+        int thirdEnd = third + 8 + buffer.getInt(third);
+
+        // Tear the last record, and leave a mark well past it that recovery has no reason to touch
+        bytes[thirdEnd - 1] ^= 1;
+        bytes[bytes.length - 1] = 42;
+        Files.write(segment, bytes);
+
+        LogMessageStore reopened = new LogMessageStore(directory, 4096, 4);
+        assert reopened.getMessagesBefore(channel, null, 10).size() == 2;
+        assert reopened.getMessagesBefore(channel, null, 1).get(0).equals(saved.get(1));
+        reopened.close();
+
+        bytes = Files.readAllBytes(segment);
+        for (int i = third; i < thirdEnd; i++) {
+            assert bytes[i] == 0;
+        }
+        assert bytes[bytes.length - 1] == 42;
+    }
+
+    @Test
+    public void testReadsAfterSequenceAndRecoversCounter() throws IOException {
+        LogMessageStore store = new LogMessageStore(directory, 512, 4);
+        for (int i = 0; i < 30; i++) {
+            long seq = store.reserveSequence(channel, 1);
+            assert seq == i + 1;
+            Message message = message(i).toBuilder().setSeq(seq).build();
+            store.saveMessages(Arrays.asList(new ChannelMessage(channel, message)));
+        }
+
+        List<Message> after = store.getMessagesAfter(channel, 17, 5);
+        assert after.size() == 5;
+        for (int i = 0; i < 5; i++) {
+            assert after.get(i).getSeq() == 18 + i;
+        }
+        assert store.getMessagesAfter(channel, 30, 10).isEmpty();
+        store.close();
+
+        // Numbers reserved after a restart carry on from the highest one saved
+        LogMessageStore reopened = new LogMessageStore(directory, 512, 4);
+        assert reopened.getMessagesAfter(channel, 0, 100).size() == 30;
+        assert reopened.reserveSequence(channel, 3) == 31;
+        assert reopened.reserveSequence(channel, 1) == 34;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChannelIdCannotEscapeDirectory() throws IOException {
+        new LogMessageStore(directory).getMessagesBefore(Channel.newBuilder().setId("../etc").build(), null, 1);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import sh.swisschili.chat.server.*;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class TestMetrics {
+    @Test
+    public void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        long[] values = histogram.getValuesAtPercentiles(50, 99, 100);
+        assert Math.abs(values[0] - 50_000_000L) <= 50_000_000L * 4 / 100;
+        assert Math.abs(values[1] - 99_000_000L) <= 99_000_000L * 4 / 100;
+        assert values[2] == 100_000_000L;
+        assert histogram.getCount() == 100_000;
+        assert histogram.getMax() == 100_000_000L;
+
+        assert new LatencyHistogram().getValuesAtPercentiles(50)[0] == 0;
+    }
+
+    @Test
+    public void testCumulativeCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000);
+        }
+
+        // 1ms to 1s, so about a tenth are at or below 100ms and none above 1s
+        long[] counts = histogram.getCumulativeCounts(100_000_000L, 1_000_000_000L, 10_000_000_000L);
+        assert Math.abs(counts[0] - 100) <= 4;
+        assert counts[1] == 1000 && counts[2] == 1000;
+        assert counts[3] == 1000;
+
+        assert new LatencyHistogram().getCumulativeCounts(1)[1] == 0;
+    }
+
+    @Test
+    public void testInterceptorCountsCallsAndServesThem() throws Exception {
+        Path directory = Files.createTempDirectory("chat-test");
+        LogMessageStore store = new LogMessageStore(directory);
+        ChatService chatService = new ChatService(new InProcessMessageBus(), null, store, new MessageWriter(store),
+                new SignatureVerifier());
+
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsInterceptor interceptor = new MetricsInterceptor();
+        registry.register(interceptor);
+        chatService.registerMetrics(registry);
+
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name)
+                .addService(ServerInterceptors.intercept(chatService, interceptor))
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        MetricsServer metricsServer = new MetricsServer(registry, 0);
+
+        try {
+            ChatGrpc.ChatBlockingStub stub = ChatGrpc.newBlockingStub(channel);
+            Channel chatChannel = Channel.newBuilder().setId(new ObjectId().toString()).build();
+            for (int i = 0; i < 3; i++) {
+                stub.getMessageRange(MessageRangeRequest.newBuilder().setChannel(chatChannel).setCount(10).build());
+            }
+
+            SendMessagesRequest.Builder tooMany = SendMessagesRequest.newBuilder();
+            for (int i = 0; i <= ChatService.MAX_SEND_BATCH; i++) {
+                tooMany.addMessages(OutgoingMessage.getDefaultInstance());
+            }
+            try {
+                stub.sendMessages(tooMany.build());
+                assert false;
+            } catch (StatusRuntimeException e) {
+                assert e.getStatus().getCode() == Status.Code.INVALID_ARGUMENT;
+            }
+
+            assert interceptor.getCallCount("chat.Chat/GetMessageRange", Status.Code.OK) == 3;
+            assert interceptor.getCallCount("chat.Chat/SendMessages", Status.Code.INVALID_ARGUMENT) == 1;
+            assert interceptor.getActiveCalls("chat.Chat/GetMessageRange") == 0;
+            assert interceptor.getLatency("chat.Chat/GetMessageRange").getCount() == 3;
+
+            String scraped = scrape(metricsServer.getPort());
+            assert scraped.contains("chat_rpc_calls_total{method=\"chat.Chat/GetMessageRange\",code=\"OK\"} 3\n");
+            assert scraped.contains("# TYPE chat_rpc_latency_seconds histogram\n");
+            assert scraped.contains(
+                    "chat_rpc_latency_seconds_bucket{method=\"chat.Chat/GetMessageRange\",le=\"+Inf\"} 3\n");
+            assert scraped.contains("chat_rpc_latency_seconds_count{method=\"chat.Chat/SendMessages\"} 1\n");
+            assert scraped.contains("# TYPE chat_writer_pending gauge\n");
+            assert scraped.contains("chat_hub_topics{hub=\"statuses\"} 0\n");
+        } finally {
+            metricsServer.close();
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            chatService.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static String scrape(int port) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics")
+                .openConnection();
+        assert connection.getResponseCode() == 200;
+        assert connection.getContentType().startsWith("text/plain");
+
+        try (InputStream in = connection.getInputStream();
+             Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name())) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+import org.junit.Test;
+import sh.swisschili.chat.server.InProcessMessageBus;
+import sh.swisschili.chat.server.GroupStatus;
+import sh.swisschili.chat.server.MetadataStore;
+import sh.swisschili.chat.server.PresenceTable;
+import sh.swisschili.chat.server.SubscriptionHub;
+import sh.swisschili.chat.util.ChatProtos.*;
+
+import java.io.IOException;
+import java.util.*;
+
+public class TestPresenceTable {
+    private static final Group GROUP = Group.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f70").setName("test").build();
+
+    /**
+     * Only stores statuses, and counts how often they are read and written
+     */
+    private static class StatusStore implements MetadataStore {
+        final Map<String, UserStatus> statuses = new LinkedHashMap<>();
+        int reads = 0;
+        int writes = 0;
+
+        @Override
+        public void setUserStatus(UserStatus status, Group group) {
+            writes++;
+            statuses.put(status.getUser().getName(), status);
+        }
+
+        @Override
+        public Iterable<UserStatus> getUserStatuses(Group group) {
+            reads++;
+            return new ArrayList<>(statuses.values());
+        }
+
+        @Override
+        public Group createGroup(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Channel createChannel(Group group, String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public User getOrAddUser(String name, String host) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Group getGroupByName(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Channel> getGroupChannels(Group group) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createUser(String name, String password, byte[] publicKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean authenticateUser(String name, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getUserPublicKey(String name) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static UserStatus status(String name, Presence presence) {
+        return UserStatus.newBuilder()
+                .setUser(User.newBuilder().setName(name).setHost("localhost"))
+                .setPresence(presence)
+                .build();
+    }
+
+    @Test
+    public void testSnapshotThenUpdates() throws IOException {
+        InProcessMessageBus bus = new InProcessMessageBus();
+        StatusStore store = new StatusStore();
+        store.setUserStatus(status("joe", Presence.ONLINE), GROUP);
+        PresenceTable presence = new PresenceTable(bus, new SubscriptionHub<>(bus, UserStatus.parser()), store, 0, 0);
+
+        List<UserStatus> first = new ArrayList<>();
+        PresenceTable.Watch watch = presence.watch(GROUP, first::add);
+        List<UserStatus> snapshot = watch.getSnapshot();
+        assert snapshot.size() == 1 && snapshot.get(0).getUser().getName().equals("joe");
+        assert first.isEmpty();
+
+        presence.setStatus(GROUP, status("ann", Presence.AWAY));
+        assert first.size() == 1;
+
+        // The second watcher is served from memory, and sees both users
+        List<UserStatus> second = new ArrayList<>();
+        assert presence.watch(GROUP, second::add).getSnapshot().size() == 2;
+        assert store.reads == 1;
+        assert presence.getStatusCount() == 2;
+
+        watch.close();
+        presence.setStatus(GROUP, status("joe", Presence.OFFLINE));
+        assert first.size() == 1;
+        assert second.size() == 1;
+        assert presence.getStatusCount() == 2;
+
+        presence.close();
+    }
+
+    @Test
+    public void testFlapsAreCoalesced() throws IOException {
+        InProcessMessageBus bus = new InProcessMessageBus();
+        StatusStore store = new StatusStore();
+        PresenceTable presence = new PresenceTable(bus, new SubscriptionHub<>(bus, UserStatus.parser()), store,
+                PresenceTable.DEFAULT_FLUSH_MS * 60, 0);
+
+        presence.setStatus(GROUP, status("joe", Presence.ONLINE));
+        presence.setStatus(GROUP, status("joe", Presence.AWAY));
+        presence.setStatus(GROUP, status("joe", Presence.ONLINE));
+        presence.setStatus(GROUP, status("ann", Presence.ONLINE));
+        assert presence.getUnsavedCount() == 2;
+        assert presence.getCoalescedCount() == 2;
+
+        presence.flush();
+        assert store.writes == 2;
+        assert store.statuses.get("joe").getPresence() == Presence.ONLINE;
+        assert presence.getUnsavedCount() == 0;
+
+        // Statuses not saved yet are still part of a new watcher's snapshot
+        presence.setStatus(GROUP, status("joe", Presence.AWAY));
+        List<UserStatus> watched = presence.watch(GROUP, status -> {
+        }).getSnapshot();
+        assert watched.size() == 2;
+        assert watched.stream().anyMatch(s -> s.getUser().getName().equals("joe")
+                && s.getPresence() == Presence.AWAY);
+
+        presence.close();
+        assert store.writes == 3;
+    }
+
+    @Test
+    public void testExpiredLeaseSetsOffline() throws IOException, InterruptedException {
+        InProcessMessageBus bus = new InProcessMessageBus();
+        StatusStore store = new StatusStore();
+        PresenceTable presence = new PresenceTable(bus, new SubscriptionHub<>(bus, UserStatus.parser()), store, 0, 50);
+
+        List<UserStatus> watched = new ArrayList<>();
+        presence.watch(GROUP, status -> {
+            synchronized (watched) {
+                watched.add(status);
+            }
+        });
+        presence.setStatus(GROUP, status("joe", Presence.ONLINE));
+        assert presence.getLeaseCount() == 1;
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (presence.getExpiredCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assert presence.getExpiredCount() == 1;
+        assert !presence.heartbeat(GROUP, status("joe", Presence.ONLINE).getUser());
+        synchronized (watched) {
+            assert watched.get(watched.size() - 1).getPresence() == Presence.OFFLINE;
+        }
+        assert store.statuses.get("joe").getPresence() == Presence.OFFLINE;
+
+        presence.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+import sh.swisschili.chat.server.PublicKeyCache;
+import sh.swisschili.chat.util.ChatProtos.User;
+import sh.swisschili.chat.util.SignedAuth;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class TestPublicKeyCache {
+    private final KeyPair keyPair = SignedAuth.generateKeyPair();
+
+    private static User user(String name) {
+        return User.newBuilder().setName(name).setHost("localhost").build();
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() {
+        List<CompletableFuture<PublicKey>> loads = new ArrayList<>();
+        PublicKeyCache cache = new PublicKeyCache(user -> {
+            CompletableFuture<PublicKey> future = new CompletableFuture<>();
+            loads.add(future);
+            return future;
+        });
+
+        CompletableFuture<PublicKey> first = cache.get(user("joe"));
+        CompletableFuture<PublicKey> second = cache.get(user("joe").toBuilder().setId("ignored").build());
+
+        assert loads.size() == 1;
+        assert !first.isDone();
+
+        loads.get(0).complete(keyPair.getPublic());
+
+        assert first.join().equals(keyPair.getPublic());
+        assert second.join().equals(keyPair.getPublic());
+        assert cache.getMissCount() == 1;
+        assert cache.getHitCount() == 1;
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() {
+        int[] loads = {0};
+        PublicKeyCache cache = new PublicKeyCache(user -> {
+            loads[0]++;
+            CompletableFuture<PublicKey> future = new CompletableFuture<>();
+            future.completeExceptionally(new RuntimeException("Auth server unreachable"));
+            return future;
+        });
+
+        assert cache.get(user("joe")).isCompletedExceptionally();
+        assert cache.get(user("joe")).isCompletedExceptionally();
+        assert loads[0] == 2;
+        assert cache.size() == 0;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        PublicKeyCache cache = new PublicKeyCache(user -> CompletableFuture.completedFuture(keyPair.getPublic()),
+                2, PublicKeyCache.DEFAULT_REFRESH_MS, PublicKeyCache.DEFAULT_EXPIRE_MS);
+
+        cache.get(user("a"));
+        cache.get(user("b"));
+        cache.get(user("a"));
+        cache.get(user("c"));
+
+        assert cache.size() == 2;
+        assert cache.getEvictionCount() == 1;
+
+        long loads = cache.getLoadCount();
+        cache.get(user("a"));
+        assert cache.getLoadCount() == loads;
+        cache.get(user("b"));
+        assert cache.getLoadCount() == loads + 1;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sh.swisschili.chat.server.*;
+import sh.swisschili.chat.util.ChatProtos.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TestRetentionEngine {
+    private final Channel channel = Channel.newBuilder().setId(new ObjectId().toString()).build();
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("chat-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private void save(MessageStore store, long unixTime) {
+        save(store, unixTime, store.reserveSequence(channel, 1));
+    }
+
+    private void save(MessageStore store, long unixTime, long seq) {
+        Message message = Message.newBuilder()
+                .setId(new ObjectId().toString())
+                .setBody("Message sent at " + unixTime)
+                .setUnixTime(unixTime)
+                .setSeq(seq)
+                .build();
+        List<ChannelMessage> batch = new ArrayList<>();
+        batch.add(new ChannelMessage(channel, message));
+        store.saveMessages(batch);
+    }
+
+    @Test
+    public void testParsesPolicy() {
+        RetentionPolicy policy = RetentionPolicy.parse("age=30d, count=1000,size=2m");
+
+        assert policy.getMaxAgeMs() == TimeUnit.DAYS.toMillis(30);
+        assert policy.getMaxCount() == 1000;
+        assert policy.getMaxBytes() == 2 * 1024 * 1024;
+        assert RetentionPolicy.parse("").isUnlimited();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsAgeWithoutUnit() {
+        RetentionPolicy.parse("age=30");
+    }
+
+    @Test
+    public void testArchivesThenDeletesWholeSegments() throws IOException {
+        // Small segments, so pruning by count can only go a few messages at a time
+        LogMessageStore store = new LogMessageStore(directory.resolve("messages"), 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            save(store, i);
+        }
+
+        MessageArchive archive = new MessageArchive(directory.resolve("archive"));
+        RetentionEngine engine = new RetentionEngine(store, null, RetentionPolicy.UNLIMITED, archive, 1_000_000);
+        engine.setChannelPolicy(channel.getId(), new RetentionPolicy(0, 40, 0));
+        engine.runPass();
+
+        long kept = store.getUsage(channel).getCount();
+        assert kept >= 40 && kept < 60;
+        assert engine.getDeletedCount() == 100 - kept;
+        assert engine.getBacklog() == kept - 40;
+
+        // Everything deleted was archived first, and the oldest message kept follows straight on from it
+        List<Message> archived;
+        try (Stream<Path> files = Files.walk(directory.resolve("archive"))) {
+            List<Path> archives = files.filter(path -> path.toString().endsWith(".gz")).collect(Collectors.toList());
+            assert archives.size() == 1;
+            archived = MessageArchive.read(archives.get(0));
+        }
+        assert archived.size() == engine.getArchivedCount();
+        assert archived.size() == 100 - kept;
+        assert archived.get(0).getSeq() == 1;
+        assert store.getMessagesAfter(channel, 0, 1).get(0).getSeq() == archived.size() + 1;
+
+        // New segments keep being numbered after the deleted ones
+        save(store, 100);
+        store.close();
+        LogMessageStore reopened = new LogMessageStore(directory.resolve("messages"), 1024, 4);
+        assert reopened.getUsage(channel).getCount() == kept + 1;
+        assert reopened.getMessagesBefore(channel, null, 1).get(0).getUnixTime() == 100;
+    }
+
+    @Test
+    public void testPrunesByAge() throws IOException {
+        LogMessageStore store = new LogMessageStore(directory, 1024, 4);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            save(store, now - TimeUnit.DAYS.toMillis(10));
+        }
+        for (int i = 0; i < 50; i++) {
+            save(store, now);
+        }
+
+        RetentionEngine engine = new RetentionEngine(store, null, RetentionPolicy.parse("age=1d"), null, 1_000_000);
+        engine.runPass();
+
+        // Only messages in segments that are old all the way through can go
+        List<Message> remaining = store.getMessagesAfter(channel, 0, 200);
+        assert remaining.size() >= 50 && remaining.size() < 100;
+        assert remaining.stream().filter(message -> message.getUnixTime() == now).count() == 50;
+        assert engine.getPassCount() == 1;
+        assert engine.getFailureCount() == 0;
+    }
+
+    @Test
+    public void testIgnoresUnsequencedMessages() throws IOException {
+        LogMessageStore store = new LogMessageStore(directory, 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            save(store, i, 0);
+        }
+        for (int i = 0; i < 30; i++) {
+            save(store, 100 + i);
+        }
+
+        // Only the sequenced messages count against the policy, so none of them are past it
+        assert store.getUsage(channel).getCount() == 30;
+
+        RetentionEngine engine = new RetentionEngine(store, null, RetentionPolicy.parse("count=30"), null, 1_000_000);
+        engine.runPass();
+
+        assert store.getMessagesAfter(channel, 0, 100).size() == 30;
+        assert engine.getBacklog() == 0;
+    }
+}
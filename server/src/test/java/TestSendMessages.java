@@ -0,0 +1,224 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sh.swisschili.chat.server.*;
+import sh.swisschili.chat.util.ChatGrpc;
+import sh.swisschili.chat.util.ChatProtos.*;
+import sh.swisschili.chat.util.SignedAuth;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+public class TestSendMessages {
+    private static final User SENDER = User.newBuilder().setName("joe").setHost("localhost")
+            .setId("5f0c8b8e8f1b2a3c4d5e6f71").build();
+    private static final Channel CHANNEL = Channel.newBuilder().setId("5f0c8b8e8f1b2a3c4d5e6f72").setName("general")
+            .build();
+
+    private final KeyPair keyPair = SignedAuth.generateKeyPair();
+    private final List<ChannelMessage> saved = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong sequence = new AtomicLong(0);
+    private InProcessMessageBus bus;
+    private ChatService chatService;
+    private Server server;
+    private ManagedChannel channel;
+
+    /**
+     * Keeps saved messages in a list
+     */
+    private class ListStore implements MessageStore {
+        @Override
+        public void saveMessages(List<ChannelMessage> batch) {
+            saved.addAll(batch);
+        }
+
+        @Override
+        public List<Message> getMessagesBefore(Channel channel, MessageCursor before, int number) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<Message> getMessageRange(Channel channel, int start, int number) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<Message> getMessagesAfter(Channel channel, long afterSeq, int number) {
+            synchronized (saved) {
+                return saved.stream()
+                        .map(ChannelMessage::getMessage)
+                        .filter(message -> message.getSeq() > afterSeq)
+                        .limit(number)
+                        .collect(Collectors.toList());
+            }
+        }
+
+        @Override
+        public long reserveSequence(Channel channel, int count) {
+            return sequence.getAndAdd(count) + 1;
+        }
+
+        @Override
+        public Usage getUsage(Channel channel) {
+            return new Usage(0, 0);
+        }
+
+        @Override
+        public long deleteMessagesThrough(Channel channel, long seq) {
+            return 0;
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        MessageStore store = new ListStore();
+        bus = new InProcessMessageBus();
+        chatService = new ChatService(bus, null, store, new MessageWriter(store), new SignatureVerifier());
+        chatService.getKeyCache().put(SENDER, keyPair.getPublic());
+
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).addService(chatService).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        chatService.close();
+    }
+
+    private OutgoingMessage outgoing(String body, boolean validSignature)
+            throws InvalidKeyException, SignatureException {
+        Message message = Message.newBuilder().setBody(body).setSender(SENDER).setUnixTime(1).build();
+        Message signed = validSignature ? message : message.toBuilder().setBody("something else").build();
+
+        return OutgoingMessage.newBuilder()
+                .setMessage(message)
+                .setChannel(CHANNEL)
+                .setSignature(ByteString.copyFrom(SignedAuth.sign(keyPair, signed.toByteArray(),
+                        CHANNEL.toByteArray())))
+                .build();
+    }
+
+    @Test
+    public void testBadSignatureOnlyRejectsItsMessage() throws Exception {
+        List<String> published = new ArrayList<>();
+        chatService.getMessageHub().subscribe(ServerConstants.getChannelExchange(CHANNEL.getId()),
+                message -> published.add(message.getBody()));
+
+        SendMessagesResponse response = ChatGrpc.newBlockingStub(channel).sendMessages(SendMessagesRequest.newBuilder()
+                .addMessages(outgoing("one", true))
+                .addMessages(outgoing("two", false))
+                .addMessages(outgoing("three", true))
+                .build());
+
+        assert response.getResultsCount() == 3;
+        assert response.getResults(0).getStatus() == Status.OK && !response.getResults(0).getId().isEmpty();
+        assert response.getResults(1).getStatus() == Status.PERMISSION_DENIED;
+        assert response.getResults(2).getStatus() == Status.OK;
+
+        // Acknowledged once saved, and published in the order sent
+        assert saved.size() == 2;
+        assert published.equals(Arrays.asList("one", "three"));
+        // The bad signature didn't make the server fetch the sender's key again
+        assert chatService.getKeyCache().getLoadCount() == 0;
+    }
+
+    @Test
+    public void testBadSignatureKeepsCachedKey() throws Exception {
+        ChatGrpc.ChatBlockingStub stub = ChatGrpc.newBlockingStub(channel);
+        for (int i = 0; i < 3; i++) {
+            try {
+                stub.sendMessage(outgoing("forged", false));
+                assert false : "Bad signature accepted";
+            } catch (StatusRuntimeException e) {
+                // Expected
+            }
+        }
+
+        // Bad signatures can't make the server fetch the sender's key again
+        assert chatService.getKeyCache().getLoadCount() == 0;
+        assert stub.sendMessage(outgoing("genuine", true)).getSeq() == 1;
+    }
+
+    @Test
+    public void testResumeReplaysMissedMessagesThenContinuesLive() throws Exception {
+        ChatGrpc.ChatBlockingStub stub = ChatGrpc.newBlockingStub(channel);
+        SendMessagesResponse sent = stub.sendMessages(SendMessagesRequest.newBuilder()
+                .addMessages(outgoing("one", true))
+                .addMessages(outgoing("two", true))
+                .addMessages(outgoing("three", true))
+                .build());
+        assert sent.getResults(0).getSeq() == 1 && sent.getResults(2).getSeq() == 3;
+
+        // A client that saw "one" before disconnecting
+        Iterator<Message> stream = stub.getMessages(GetMessagesRequest.newBuilder()
+                .setChannel(CHANNEL)
+                .setAfterSeq(1)
+                .build());
+        assert stream.next().getBody().equals("two");
+        assert stream.next().getBody().equals("three");
+
+        MessageResponse live = stub.sendMessage(outgoing("four", true));
+        assert live.getSeq() == 4;
+        Message next = stream.next();
+        assert next.getBody().equals("four") && next.getSeq() == 4;
+    }
+
+    @Test
+    public void testPublishesInSequenceOrder() throws Exception {
+        List<Long> published = Collections.synchronizedList(new ArrayList<>());
+        chatService.getMessageHub().subscribe(ServerConstants.getChannelExchange(CHANNEL.getId()),
+                message -> published.add(message.getSeq()));
+
+        ChatGrpc.ChatFutureStub stub = ChatGrpc.newFutureStub(channel);
+        List<ListenableFuture<MessageResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            responses.add(stub.sendMessage(outgoing("message " + i, true)));
+        }
+        for (ListenableFuture<MessageResponse> response : responses) {
+            response.get(5, TimeUnit.SECONDS);
+        }
+
+        // A resuming client asks for everything after the highest number it saw, so none may arrive early
+        assert published.size() == 200;
+        for (int i = 0; i < published.size(); i++) {
+            assert published.get(i) == i + 1;
+        }
+    }
+}
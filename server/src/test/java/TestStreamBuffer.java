@@ -0,0 +1,209 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.Test;
+import sh.swisschili.chat.server.StreamBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class TestStreamBuffer {
+    private static class FakeObserver extends ServerCallStreamObserver<String> {
+        final List<String> sent = new ArrayList<>();
+        boolean ready = false;
+        Throwable error = null;
+        Runnable onReady;
+        Runnable onCancel;
+
+        void becomeReady() {
+            ready = true;
+            onReady.run();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+            onCancel = onCancelHandler;
+        }
+
+        @Override
+        public void setCompression(String compression) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            onReady = onReadyHandler;
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+
+        @Override
+        public void onNext(String value) {
+            sent.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    @Test
+    public void testDropOldest() {
+        FakeObserver observer = new FakeObserver();
+        StreamBuffer<String> buffer = new StreamBuffer<>(observer, 2, StreamBuffer.OverflowPolicy.DROP_OLDEST, null);
+
+        buffer.offer("a");
+        buffer.offer("b");
+        buffer.offer("c");
+
+        assert observer.sent.isEmpty();
+        assert buffer.getDropped() == 1;
+
+        observer.becomeReady();
+        assert observer.sent.equals(Arrays.asList("b", "c"));
+
+        buffer.offer("d");
+        assert observer.sent.equals(Arrays.asList("b", "c", "d"));
+    }
+
+    @Test
+    public void testCoalesce() {
+        FakeObserver observer = new FakeObserver();
+        StreamBuffer<String> buffer = new StreamBuffer<>(observer, 4, StreamBuffer.OverflowPolicy.COALESCE,
+                value -> value.substring(0, 1));
+
+        buffer.offer("a1");
+        buffer.offer("b1");
+        buffer.offer("a2");
+        buffer.offer("a3");
+
+        assert buffer.getBuffered() == 2;
+
+        observer.becomeReady();
+        assert observer.sent.equals(Arrays.asList("a3", "b1"));
+    }
+
+    @Test
+    public void testDisconnect() {
+        FakeObserver observer = new FakeObserver();
+        StreamBuffer<String> buffer = new StreamBuffer<>(observer, 1, StreamBuffer.OverflowPolicy.DISCONNECT, null);
+
+        boolean[] closed = {false};
+        buffer.whenClosed(() -> closed[0] = true);
+
+        buffer.offer("a");
+        buffer.offer("b");
+
+        assert closed[0];
+        assert buffer.isClosed();
+        assert observer.error != null;
+
+        observer.becomeReady();
+        assert observer.sent.isEmpty();
+    }
+
+    @Test
+    public void testDisconnectStillCoalesces() {
+        FakeObserver observer = new FakeObserver();
+        StreamBuffer<String> buffer = new StreamBuffer<>(observer, 2, StreamBuffer.OverflowPolicy.DISCONNECT,
+                value -> value.startsWith("status") ? "status" : null);
+
+        buffer.offer("status1");
+        buffer.offer("status2");
+        buffer.offer("message");
+        assert !buffer.isClosed();
+
+        buffer.offer("another message");
+        assert buffer.isClosed();
+        assert observer.error != null;
+    }
+
+    @Test
+    public void testCancelRunsCloseHandler() {
+        FakeObserver observer = new FakeObserver();
+        StreamBuffer<String> buffer = new StreamBuffer<>(observer, 1, StreamBuffer.OverflowPolicy.DROP_OLDEST, null);
+
+        observer.onCancel.run();
+
+        boolean[] closed = {false};
+        buffer.whenClosed(() -> closed[0] = true);
+        assert closed[0];
+    }
+
+    @Test
+    public void testReplayReadsOutsideOffer() {
+        FakeObserver observer = new FakeObserver();
+        StreamBuffer<String> buffer = new StreamBuffer<>(observer, 4, StreamBuffer.OverflowPolicy.DISCONNECT, null);
+
+        Iterator<String> history = Arrays.asList("h1", "h2").iterator();
+        int[] reads = {0};
+        Iterator<String> backlog = new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                // Reading may block, so it must never happen with the buffer locked
+                assert !Thread.holdsLock(buffer);
+                reads[0]++;
+                return history.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return history.next();
+            }
+        };
+
+        buffer.hold();
+        buffer.offer("h2");
+        buffer.replay(backlog, "h2"::equals);
+        buffer.offer("live");
+
+        assert reads[0] == 0;
+        assert observer.sent.isEmpty();
+
+        observer.becomeReady();
+        assert reads[0] > 0;
+        assert observer.sent.equals(Arrays.asList("h1", "h2", "live"));
+    }
+}
@@ -0,0 +1,214 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import sh.swisschili.chat.server.*;
+import sh.swisschili.chat.util.ChatProtos.Channel;
+import sh.swisschili.chat.util.ChatProtos.Message;
+import sh.swisschili.chat.util.ChatProtos.MessageCursor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestTailCache {
+    private final InProcessMessageBus bus = new InProcessMessageBus();
+    private final SubscriptionHub<Message> hub = new SubscriptionHub<>(bus, Message.parser());
+
+    /**
+     * Holds messages newest first and counts reads
+     */
+    private static class ListStore implements MessageStore {
+        final List<Message> messages = new ArrayList<>();
+        int reads = 0;
+
+        @Override
+        public void saveMessages(List<ChannelMessage> batch) {
+            batch.forEach(channelMessage -> messages.add(0, channelMessage.getMessage()));
+        }
+
+        @Override
+        public List<Message> getMessagesBefore(Channel channel, MessageCursor before, int number) {
+            reads++;
+            List<Message> page = new ArrayList<>();
+            for (Message message : messages) {
+                boolean older = before == null || message.getUnixTime() < before.getUnixTime();
+                if (older && page.size() < number)
+                    page.add(message);
+            }
+            return page;
+        }
+
+        @Override
+        public List<Message> getMessageRange(Channel channel, int start, int number) {
+            reads++;
+            return messages.subList(Math.min(start, messages.size()), Math.min(start + number, messages.size()));
+        }
+
+        @Override
+        public List<Message> getMessagesAfter(Channel channel, long afterSeq, int number) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public long reserveSequence(Channel channel, int count) {
+            return 1;
+        }
+
+        @Override
+        public Usage getUsage(Channel channel) {
+            return new Usage(messages.size(), 0);
+        }
+
+        @Override
+        public long deleteMessagesThrough(Channel channel, long seq) {
+            int before = messages.size();
+            messages.removeIf(message -> message.getSeq() > 0 && message.getSeq() <= seq);
+            return before - messages.size();
+        }
+    }
+
+    private static Channel channel() {
+        return Channel.newBuilder().setId(new ObjectId().toString()).build();
+    }
+
+    private static Message message(long unixTime) {
+        return Message.newBuilder().setId(new ObjectId().toString()).setBody("hi").setUnixTime(unixTime).build();
+    }
+
+    private static MessageCursor cursor(Message message) {
+        return MessageCursor.newBuilder().setUnixTime(message.getUnixTime()).setId(message.getId()).build();
+    }
+
+    @Test
+    public void testServesWindowAndFollowsChannel() throws IOException {
+        Channel channel = channel();
+        ListStore store = new ListStore();
+        for (int i = 0; i < 20; i++) {
+            store.messages.add(0, message(i));
+        }
+
+        TailCache cache = new TailCache(store, hub, 10, TailCache.DEFAULT_MAX_BYTES);
+
+        assert cache.getMessagesBefore(channel, null, 5).size() == 5;
+        assert store.reads == 1;
+        assert cache.getMissCount() == 1;
+
+        // Published messages are added as they are delivered
+        Message latest = message(100);
+        bus.publish(ServerConstants.getChannelExchange(channel.getId()), latest);
+
+        List<Message> page = cache.getMessagesBefore(channel, null, 5);
+        assert page.get(0).equals(latest);
+        assert cache.getMessagesBefore(channel, cursor(page.get(4)), 5).get(0).getUnixTime() == 15;
+        assert store.reads == 1;
+        assert cache.getHitCount() == 2;
+
+        // Only the newest 10 are cached, older pages come from the store
+        assert cache.getMessagesBefore(channel, cursor(message(12)), 5).get(0).getUnixTime() == 11;
+        assert store.reads == 2;
+    }
+
+    @Test
+    public void testWholeShortChannelIsCached() {
+        Channel channel = channel();
+        ListStore store = new ListStore();
+        Message only = message(1);
+        store.messages.add(only);
+
+        TailCache cache = new TailCache(store, hub, 10, TailCache.DEFAULT_MAX_BYTES);
+        cache.getMessagesBefore(channel, null, 50);
+
+        // Fewer messages than requested, but the cache knows there are no more
+        assert cache.getMessagesBefore(channel, null, 50).size() == 1;
+        assert cache.getMessagesBefore(channel, cursor(only), 50).isEmpty();
+        assert store.reads == 1;
+    }
+
+    @Test
+    public void testMemoryCapEvictsLeastRecentlyRead() {
+        ListStore store = new ListStore();
+        // Room for about two channels' overhead
+        TailCache cache = new TailCache(store, hub, 10, 2500);
+
+        Channel first = channel();
+        cache.getMessagesBefore(first, null, 10);
+        cache.getMessagesBefore(channel(), null, 10);
+        cache.getMessagesBefore(channel(), null, 10);
+
+        assert cache.getChannelCount() == 2;
+        assert cache.getEvictionCount() == 1;
+        assert cache.getBytes() <= 2500;
+
+        // Evicted channels stop following their topic
+        assert bus.getTopicCount() == 2;
+
+        cache.getMessagesBefore(first, null, 10);
+        assert cache.getMissCount() == 4;
+        cache.close();
+        assert bus.getTopicCount() == 0;
+    }
+
+    @Test
+    public void testDeletesGoThroughCache() {
+        Channel channel = channel();
+        ListStore store = new ListStore();
+        for (int i = 1; i <= 10; i++) {
+            store.messages.add(0, message(i).toBuilder().setSeq(i).build());
+        }
+
+        TailCache cache = new TailCache(store, hub, 20, TailCache.DEFAULT_MAX_BYTES);
+        assert cache.getMessagesBefore(channel, null, 50).size() == 10;
+
+        // As retention deletes, nothing deleted is served from memory afterwards
+        assert cache.deleteMessagesThrough(channel, 6) == 6;
+        List<Message> remaining = cache.getMessagesBefore(channel, null, 50);
+        assert remaining.size() == 4;
+        assert remaining.get(3).getSeq() == 7;
+        assert store.reads == 1;
+    }
+
+    @Test
+    public void testOldLiveMessageLeavesNoGap() throws IOException {
+        Channel channel = channel();
+        ListStore store = new ListStore();
+        // Legacy messages retention never deletes, then sequenced ones
+        for (int i = 0; i < 10; i++) {
+            store.messages.add(0, message(100 + i));
+        }
+        for (int i = 1; i <= 10; i++) {
+            store.messages.add(0, message(109 + i).toBuilder().setSeq(i).build());
+        }
+
+        TailCache cache = new TailCache(store, hub, 10, TailCache.DEFAULT_MAX_BYTES);
+        cache.getMessagesBefore(channel, null, 10);
+        // The window shrinks below its limit, with the legacy messages still uncached
+        cache.deleteMessagesThrough(channel, 5);
+
+        // Older than everything cached, so caching it would skip the legacy messages
+        Message old = message(1).toBuilder().setSeq(11).build();
+        store.messages.add(old);
+        bus.publish(ServerConstants.getChannelExchange(channel.getId()), old);
+
+        List<Message> page = cache.getMessagesBefore(channel, null, 6);
+        assert page.size() == 6;
+        assert page.get(5).getUnixTime() == 109;
+        assert store.reads == 2;
+    }
+}
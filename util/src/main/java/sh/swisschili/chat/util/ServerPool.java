@@ -18,46 +18,320 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 
 package sh.swisschili.chat.util;
 
-import io.grpc.Channel;
-import io.grpc.ManagedChannelBuilder;
-import sh.swisschili.chat.util.AuthGrpc;
-import sh.swisschili.chat.util.ChatGrpc;
+import io.grpc.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sh.swisschili.chat.util.AuthGrpc.AuthStub;
 import sh.swisschili.chat.util.ChatGrpc.ChatStub;
 
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Pooled server gRPC connections
+ * Pooled server gRPC connections.
+ *
+ * Connections are shared by every stub for the same server and are safe to use from any thread. Stubs are bound to
+ * the server rather than to a particular connection, so a connection that is evicted for being idle is transparently
+ * re-opened the next time one of its stubs is used. A connection is only evicted once it has no calls in flight.
+ *
+ * Servers are addressed as host or host:port, the port defaulting to {@link Constants#DEFAULT_SERVER_PORT}.
  */
-public class ServerPool {
-    private final HashMap<String, Channel> channels = new HashMap<>();
+public class ServerPool implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerPool.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 256;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    // gRPC servers reject pings more frequent than every 5 minutes by default
+    public static final long DEFAULT_KEEPALIVE_MS = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_KEEPALIVE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
 
     private static final boolean useSsl = System.getenv("CHAT_NO_SSL") == null;
 
+    private final int maxConnections;
+    private final long idleTimeoutMs;
+    private final Map<String, KeepAlive> keepAlives = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PooledConnection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ServerChannel> serverChannels = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    private final AtomicLong opened = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
+
+    /**
+     * A parsed host:port server address
+     */
+    public static class Address {
+        private final String host;
+        private final int port;
+
+        public Address(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * @param server host, host:port, or [ipv6]:port
+         * @return The parsed address
+         * @throws IllegalArgumentException If the port is not a valid number
+         */
+        public static Address parse(String server) {
+            String trimmed = server.trim();
+            String host = trimmed;
+            int port = Constants.DEFAULT_SERVER_PORT;
+
+            int colon = trimmed.lastIndexOf(':');
+            boolean bracketed = trimmed.startsWith("[");
+            boolean bareIpv6 = !bracketed && trimmed.indexOf(':') != colon;
+
+            if (colon >= 0 && !bareIpv6 && (!bracketed || trimmed.indexOf(']') < colon)) {
+                host = trimmed.substring(0, colon);
+                try {
+                    port = Integer.parseInt(trimmed.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port in server address " + server);
+                }
+
+                if (port < 1 || port > 65535)
+                    throw new IllegalArgumentException("Invalid port in server address " + server);
+            }
+
+            if (host.startsWith("[") && host.endsWith("]"))
+                host = host.substring(1, host.length() - 1);
+
+            return new Address(host, port);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            return (host.contains(":") ? "[" + host + "]" : host) + ":" + port;
+        }
+    }
+
+    private static class KeepAlive {
+        final long timeMs;
+        final long timeoutMs;
+
+        KeepAlive(long timeMs, long timeoutMs) {
+            this.timeMs = timeMs;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    private static class PooledConnection {
+        final ManagedChannel channel;
+        final AtomicInteger activeCalls = new AtomicInteger(0);
+        volatile long lastUsed = System.nanoTime();
+
+        PooledConnection(ManagedChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Channel that stubs are bound to, which picks up the current connection for its server on every call
+     */
+    private class ServerChannel extends Channel {
+        private final String key;
+        private final Address address;
+
+        ServerChannel(String key, Address address) {
+            this.key = key;
+            this.address = address;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method,
+                                                             CallOptions callOptions) {
+            PooledConnection connection = connectionFor(key, address);
+            connection.lastUsed = System.nanoTime();
+            // Counted from creation rather than start, so the connection can't be evicted in between
+            connection.activeCalls.incrementAndGet();
+
+            return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+                    connection.channel.newCall(method, callOptions)) {
+                private final AtomicBoolean finished = new AtomicBoolean(false);
+
+                private void finish() {
+                    if (finished.compareAndSet(false, true)) {
+                        connection.activeCalls.decrementAndGet();
+                        connection.lastUsed = System.nanoTime();
+                    }
+                }
+
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    try {
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(
+                                responseListener) {
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                finish();
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    } catch (RuntimeException e) {
+                        finish();
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void cancel(String message, Throwable cause) {
+                    try {
+                        super.cancel(message, cause);
+                    } finally {
+                        // A call cancelled before it started never reaches onClose
+                        finish();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String authority() {
+            return address.toString();
+        }
+    }
+
+    public ServerPool() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxConnections Maximum connections kept open, beyond which the least recently used idle one is closed
+     * @param idleTimeoutMs  How long a connection with no calls in flight is kept open
+     */
+    public ServerPool(int maxConnections, long idleTimeoutMs) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("maxConnections: " + maxConnections);
+
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "server-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long period = Math.max(1000, idleTimeoutMs / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Override keepalive settings for one server. Takes effect the next time a connection to it is opened.
+     *
+     * @param server    host or host:port
+     * @param timeMs    Interval between keepalive pings
+     * @param timeoutMs How long to wait for a ping to be acknowledged before closing the connection
+     */
+    public void setKeepAlive(String server, long timeMs, long timeoutMs) {
+        keepAlives.put(Address.parse(server).toString(), new KeepAlive(timeMs, timeoutMs));
+    }
+
     private Channel channelFor(String server) {
-        if (!channels.containsKey(server)) {
-            ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forAddress(server.trim(), Constants.DEFAULT_SERVER_PORT);
+        Address address = Address.parse(server);
+        String key = address.toString();
+        return serverChannels.computeIfAbsent(key, k -> new ServerChannel(k, address));
+    }
+
+    private PooledConnection connectionFor(String key, Address address) {
+        if (closed)
+            throw new IllegalStateException("Server pool is closed");
+
+        PooledConnection connection = connections.get(key);
+        if (connection != null)
+            return connection;
+
+        boolean[] created = {false};
+        connection = connections.computeIfAbsent(key, k -> {
+            created[0] = true;
+            return new PooledConnection(build(address));
+        });
+
+        if (created[0]) {
+            opened.incrementAndGet();
+            LOGGER.info("Opened connection to " + key);
+            if (connections.size() > maxConnections)
+                evictLeastRecentlyUsed(key);
+        }
+
+        return connection;
+    }
+
+    private ManagedChannel build(Address address) {
+        KeepAlive keepAlive = keepAlives.getOrDefault(address.toString(),
+                new KeepAlive(DEFAULT_KEEPALIVE_MS, DEFAULT_KEEPALIVE_TIMEOUT_MS));
 
-            if (useSsl) {
-                builder = builder.useTransportSecurity();
-            } else {
-                builder = builder.usePlaintext();
+        ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forAddress(address.getHost(), address.getPort())
+                .keepAliveTime(keepAlive.timeMs, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(keepAlive.timeoutMs, TimeUnit.MILLISECONDS)
+                .idleTimeout(idleTimeoutMs, TimeUnit.MILLISECONDS);
+
+        if (useSsl) {
+            builder = builder.useTransportSecurity();
+        } else {
+            builder = builder.usePlaintext();
+        }
+
+        return builder.build();
+    }
+
+    private void evictLeastRecentlyUsed(String keep) {
+        String oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+
+        for (Map.Entry<String, PooledConnection> entry : connections.entrySet()) {
+            PooledConnection connection = entry.getValue();
+            if (!entry.getKey().equals(keep) && connection.activeCalls.get() == 0 && connection.lastUsed < oldest) {
+                oldest = connection.lastUsed;
+                oldestKey = entry.getKey();
             }
+        }
 
-            Channel channel = builder.build();
+        if (oldestKey != null)
+            evict(oldestKey);
+        else
+            LOGGER.warn(String.format("Over %d connections but all are busy", maxConnections));
+    }
+
+    private void evictIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
 
-            channels.put(server, channel);
-            return channel;
+        for (Map.Entry<String, PooledConnection> entry : connections.entrySet()) {
+            PooledConnection connection = entry.getValue();
+            if (connection.activeCalls.get() == 0 && connection.lastUsed < cutoff)
+                evict(entry.getKey());
         }
+    }
 
-        return channels.get(server);
+    private void evict(String key) {
+        PooledConnection connection = connections.get(key);
+        if (connection != null && connection.activeCalls.get() == 0 && connections.remove(key, connection)) {
+            evicted.incrementAndGet();
+            LOGGER.info("Closing idle connection to " + key);
+            // Graceful, so a call that raced with eviction still completes
+            connection.channel.shutdown();
+        }
     }
 
     /**
      * Connect to a server, returning an existing connection if already connected.
      *
-     * @param server Server host
+     * @param server Server host or host:port
      * @return gRPC stub
      */
     public ChatStub chatStubFor(String server) {
@@ -67,4 +341,71 @@ public class ServerPool {
     public AuthStub authStubFor(String server) {
         return AuthGrpc.newStub(channelFor(server));
     }
+
+    /**
+     * @return Number of open connections
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return Number of open connections in each connectivity state
+     */
+    public Map<ConnectivityState, Integer> getConnectionStates() {
+        Map<ConnectivityState, Integer> states = new EnumMap<>(ConnectivityState.class);
+        for (PooledConnection connection : connections.values()) {
+            states.merge(connection.channel.getState(false), 1, Integer::sum);
+        }
+        return states;
+    }
+
+    /**
+     * @return Number of calls in flight across all connections
+     */
+    public int getActiveCalls() {
+        return connections.values().stream()
+                .mapToInt(connection -> connection.activeCalls.get())
+                .sum();
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * Close every connection, waiting up to the given time for calls in flight to finish.
+     *
+     * @param timeout How long to wait
+     * @param unit    Unit of timeout
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        closed = true;
+        evictor.shutdownNow();
+
+        connections.values().forEach(connection -> connection.channel.shutdown());
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (PooledConnection connection : connections.values()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !connection.channel.awaitTermination(remaining, TimeUnit.NANOSECONDS))
+                connection.channel.shutdownNow();
+        }
+
+        connections.clear();
+    }
+
+    @Override
+    public void close() {
+        try {
+            shutdown(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connections.values().forEach(connection -> connection.channel.shutdownNow());
+        }
+    }
 }
@@ -31,6 +31,15 @@ public class SignedAuth {
     private static final Logger LOGGER = LoggerFactory.getLogger(SignedAuth.class);
     private static KeyFactory keyFactory;
 
+    // Signature instances are not thread safe but are expensive to look up, so keep one per thread
+    private static final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance("SHA1withDSA", "SUN");
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new IllegalStateException("SHA1withDSA is not available", e);
+        }
+    });
+
     static {
         try {
             keyFactory = KeyFactory.getInstance("DSA", "SUN");
@@ -68,13 +77,13 @@ public class SignedAuth {
      */
     public static byte[] sign(KeyPair keyPair, byte[]... data) throws InvalidKeyException, SignatureException {
         try {
-            Signature signature = Signature.getInstance("SHA1withDSA", "SUN");
+            Signature signature = signatures.get();
             signature.initSign(keyPair.getPrivate());
             for (byte[] dataChunk : data) {
                 signature.update(dataChunk);
             }
             return signature.sign();
-        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+        } catch (IllegalStateException e) {
             e.printStackTrace();
             LOGGER.error("Could not generate signature (this should never happen)");
             return null;
@@ -91,7 +100,7 @@ public class SignedAuth {
      */
     public static boolean verify(PublicKey publicKey, byte[] signature, byte[]... data) {
         try {
-            Signature sig = Signature.getInstance("SHA1withDSA", "SUN");
+            Signature sig = signatures.get();
             sig.initVerify(publicKey);
 
             for (byte[] dataChunk : data) {
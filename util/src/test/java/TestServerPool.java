@@ -0,0 +1,60 @@
+/*
+Decentralized chat software
+Copyright (C) 2021  swissChili
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+import sh.swisschili.chat.util.Constants;
+import sh.swisschili.chat.util.ServerPool;
+import sh.swisschili.chat.util.ServerPool.Address;
+
+public class TestServerPool {
+    @Test
+    public void testParseAddress() {
+        Address plain = Address.parse(" chat.example.com ");
+        assert plain.getHost().equals("chat.example.com");
+        assert plain.getPort() == Constants.DEFAULT_SERVER_PORT;
+
+        Address withPort = Address.parse("chat.example.com:1234");
+        assert withPort.getHost().equals("chat.example.com");
+        assert withPort.getPort() == 1234;
+
+        Address ipv6 = Address.parse("[::1]:1234");
+        assert ipv6.getHost().equals("::1");
+        assert ipv6.getPort() == 1234;
+        assert ipv6.toString().equals("[::1]:1234");
+
+        Address bareIpv6 = Address.parse("::1");
+        assert bareIpv6.getHost().equals("::1");
+        assert bareIpv6.getPort() == Constants.DEFAULT_SERVER_PORT;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPort() {
+        Address.parse("chat.example.com:http");
+    }
+
+    @Test
+    public void testStubsConnectLazily() {
+        ServerPool pool = new ServerPool();
+        pool.chatStubFor("localhost");
+        pool.authStubFor("localhost:" + Constants.DEFAULT_SERVER_PORT);
+
+        // Connections are only opened once a call is made
+        assert pool.getConnectionCount() == 0;
+        pool.close();
+    }
+}